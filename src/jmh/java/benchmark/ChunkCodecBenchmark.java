@@ -0,0 +1,82 @@
+package benchmark;
+
+import client.ChunkedCompressedChecksumFileWriter;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.Tracer;
+import org.openjdk.jmh.annotations.*;
+import server.ChunkedCompressedChecksumFileReader;
+import server.FileHeader;
+import shared.ChunkCodec;
+import shared.FileUtil;
+import shared.Handshake;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One chunk through the whole writer and the whole reader: read, hash, LZ4 HC, framing on the way out, framing,
+ * decompression, hash check and the stream hash on the way in. Both sides work on in-memory streams so the numbers are
+ * the CPU cost of a chunk and nothing else. An operation is one chunk, multiply by chunkSize for bytes per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dtelemetry=off")
+public class ChunkCodecBenchmark {
+
+    @Param({"4096", "65536", "1048576", "4194304"})
+    public int chunkSize;
+
+    @Param({"ZEROS", "TEXT", "RANDOM"})
+    public ChunkData.Entropy entropy;
+
+    private final Tracer trace = OpenTelemetry.noop().getTracer("Benchmark");
+
+    // reset before every operation so the writer always has exactly one chunk to read and the reader one frame
+    private ByteArrayInputStream file;
+    private ChunkedCompressedChecksumFileWriter writer;
+    private ByteArrayInputStream frame;
+    private ChunkedCompressedChecksumFileReader reader;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        byte[] chunk = ChunkData.generate(entropy, chunkSize);
+        file = new ByteArrayInputStream(chunk);
+        writer = new ChunkedCompressedChecksumFileWriter(new DataOutputStream(OutputStream.nullOutputStream()), new DataInputStream(file), chunkSize, FileUtil.SEED);
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        ChunkedCompressedChecksumFileWriter encoder = new ChunkedCompressedChecksumFileWriter(new DataOutputStream(encoded),
+                new DataInputStream(new ByteArrayInputStream(chunk)), chunkSize, FileUtil.SEED);
+        encoder.processChunk(trace);
+        encoder.close();
+        frame = new ByteArrayInputStream(encoded.toByteArray());
+        reader = new ChunkedCompressedChecksumFileReader(new DataInputStream(frame), OutputStream.nullOutputStream(),
+                Handshake.offer(chunkSize, FileUtil.SEED, ChunkCodec.values()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        writer.close();
+        reader.abort();
+    }
+
+    @Benchmark
+    public void processChunk() throws IOException {
+        file.reset();
+        writer.processChunk(trace);
+    }
+
+    @Benchmark
+    public FileHeader readChunk() throws IOException {
+        frame.reset();
+        return reader.readChunk(trace);
+    }
+
+}
@@ -0,0 +1,49 @@
+package benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Chunk contents for the benchmarks, from trivially compressible to not compressible at all. Seeded, so every run and
+ * every fork sees the same bytes.
+ */
+public class ChunkData {
+
+    public enum Entropy {
+        // what a sparse file or a fresh disk image is mostly made of
+        ZEROS,
+        // words from a small vocabulary, compresses about as well as logs and source
+        TEXT,
+        // already compressed or encrypted data, every codec should give up on it
+        RANDOM
+    }
+
+    private static final String[] WORDS = ("the of and to in is that for it as was with be by on not he this are or his "
+            + "from at which but have an they you were her she there been one all we their chunk file hash server client "
+            + "compressed stream socket buffer").split(" ");
+
+    public static byte[] generate(Entropy entropy, int size) {
+        Random random = new Random(691);
+        byte[] data = new byte[size];
+        switch (entropy) {
+            case ZEROS:
+                break;
+            case RANDOM:
+                random.nextBytes(data);
+                break;
+            case TEXT: {
+                int position = 0;
+                while (position < size) {
+                    byte[] word = (WORDS[random.nextInt(WORDS.length)] + (random.nextInt(12) == 0 ? "\n" : " "))
+                            .getBytes(StandardCharsets.US_ASCII);
+                    int amount = Integer.min(word.length, size - position);
+                    System.arraycopy(word, 0, data, position, amount);
+                    position += amount;
+                }
+                break;
+            }
+        }
+        return data;
+    }
+
+}
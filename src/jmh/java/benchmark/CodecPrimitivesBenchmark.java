@@ -0,0 +1,88 @@
+package benchmark;
+
+import net.jpountz.xxhash.StreamingXXHash64;
+import org.openjdk.jmh.annotations.*;
+import shared.ChunkCodec;
+import shared.FileUtil;
+import shared.XXHash64Stream;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pieces {@link ChunkCodecBenchmark} is made of, one at a time: both LZ4 compressors, the shared decompressor and
+ * the three ways a chunk gets hashed. An operation is one chunk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dtelemetry=off")
+public class CodecPrimitivesBenchmark {
+
+    @Param({"4096", "65536", "1048576", "4194304"})
+    public int chunkSize;
+
+    @Param({"ZEROS", "TEXT", "RANDOM"})
+    public ChunkData.Entropy entropy;
+
+    private byte[] data;
+    private ByteBuffer input;
+    private ByteBuffer compressed;
+    private ByteBuffer hcPayload;
+    private int hcLength;
+    private ByteBuffer decompressed;
+    private StreamingXXHash64 streaming;
+    private XXHash64Stream mappedStreaming;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        data = ChunkData.generate(entropy, chunkSize);
+        input = ByteBuffer.wrap(data);
+        compressed = ByteBuffer.allocate(ChunkCodec.maxCompressedLength(chunkSize));
+        hcPayload = ByteBuffer.allocate(ChunkCodec.maxCompressedLength(chunkSize));
+        hcLength = ChunkCodec.LZ4_HC.compress(input, chunkSize, hcPayload);
+        decompressed = ByteBuffer.allocate(chunkSize);
+        streaming = FileUtil.XX_HASH_FACTORY.newStreamingHash64(FileUtil.SEED);
+        mappedStreaming = new XXHash64Stream(FileUtil.SEED);
+    }
+
+    @Benchmark
+    public int lz4FastCompress() {
+        return ChunkCodec.LZ4_FAST.compress(input, chunkSize, compressed);
+    }
+
+    @Benchmark
+    public int lz4HcCompress() {
+        return ChunkCodec.LZ4_HC.compress(input, chunkSize, compressed);
+    }
+
+    @Benchmark
+    public ByteBuffer lz4Decompress() {
+        return ChunkCodec.LZ4_HC.decompress(hcPayload, hcLength, decompressed, chunkSize);
+    }
+
+    // what every chunk's own hash costs
+    @Benchmark
+    public long xxHash64OneShot() {
+        return FileUtil.HASH_64.hash(input, 0, chunkSize, FileUtil.SEED);
+    }
+
+    // what the stream hash over the whole file costs per chunk
+    @Benchmark
+    public long xxHash64Streaming() {
+        streaming.reset();
+        streaming.update(data, 0, chunkSize);
+        return streaming.getValue();
+    }
+
+    // the stream hash the mapped writer uses instead, see XXHash64Stream
+    @Benchmark
+    public long xxHash64BufferStreaming() {
+        mappedStreaming.reset();
+        mappedStreaming.update(input, 0, chunkSize);
+        return mappedStreaming.getValue();
+    }
+
+}
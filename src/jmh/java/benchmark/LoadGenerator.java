@@ -0,0 +1,343 @@
+package benchmark;
+
+import client.Client;
+import com.sun.management.OperatingSystemMXBean;
+import server.NioServer;
+import server.Server;
+import shared.ExceptionLogger;
+import shared.OTelUtils;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntSupplier;
+
+/**
+ * Runs the real {@link Client} against the real server with more and more clients at once and reports how the server
+ * holds up. Every step starts that many clients together, each sending its own copy of a {@link SyntheticCorpus} one
+ * file at a time, and waits for all of them to finish and for the server to have written everything.
+ * <p>
+ * Arguments are key=value, in any order:
+ * <ul>
+ *     <li>mode=inprocess (default) starts a server in this JVM, mode=loopback sends to one already running</li>
+ *     <li>server=nio (default) for the {@link NioServer} or server=classic for the thread per connection {@link Server},
+ *     the one started in process mode</li>
+ *     <li>host, port, where to find the server in loopback mode, the port the in-process one listens on</li>
+ *     <li>steps=1,10,100,1000, the number of concurrent clients of each step</li>
+ *     <li>tiny, medium, huge, hugeMB, the makeup of the corpus every client sends</li>
+ *     <li>timeout, seconds a step may take before it is given up on</li>
+ *     <li>out, where the results go besides stdout</li>
+ * </ul>
+ * Every step is one JSON object on stdout, all of them together an array in out. A file's latency is how long
+ * {@link Client#sendFile} took, so the time until its last chunk was handed to the socket. CPU time and the heap high
+ * water mark are this JVM's, server and clients together in process mode; in loopback mode CPU is the clients' alone
+ * and the server's heap is out of reach, so it is reported as null.
+ */
+public class LoadGenerator {
+
+    private static final String IN_PROCESS = "inprocess";
+    private static final String LOOPBACK = "loopback";
+    private static final String NIO = "nio";
+    private static final String CLASSIC = "classic";
+    private static final int IN_PROCESS_PORT = 42070;
+    // binding a local port takes milliseconds, this only guards against a server that hangs on the way up
+    private static final long LISTEN_TIMEOUT_SECONDS = 30;
+
+    private final String mode;
+    private final String serverKind;
+    private final String host;
+    private final int port;
+    private final long timeoutSeconds;
+    private final SyntheticCorpus corpus;
+    private final Path output;
+
+    private LoadGenerator(String mode, String serverKind, String host, int port, long timeoutSeconds, SyntheticCorpus corpus, Path output) {
+        this.mode = mode;
+        this.serverKind = serverKind;
+        this.host = host;
+        this.port = port;
+        this.timeoutSeconds = timeoutSeconds;
+        this.corpus = corpus;
+        this.output = output;
+    }
+
+    /**
+     * What a step needs of the server started in process, whichever kind it is.
+     */
+    private static class InProcessServer {
+        final IntSupplier openConnections;
+        final Runnable stop;
+
+        InProcessServer(IntSupplier openConnections, Runnable stop) {
+            this.openConnections = openConnections;
+            this.stop = stop;
+        }
+    }
+
+    private static class StepResult {
+        String server;
+        int concurrency;
+        int files;
+        int errors;
+        long bytes;
+        double seconds;
+        long[] latencies;
+        long cpuNanos;
+        Long heapPeak;
+
+        String toJson() {
+            Arrays.sort(latencies);
+            return String.format(Locale.ROOT, "{\"server\": %s, \"concurrency\": %d, \"files\": %d, \"errors\": %d, \"bytes\": %d, \"seconds\": %.3f, "
+                            + "\"mbPerSecond\": %.2f, \"latencyMs\": {\"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, \"max\": %.3f}, "
+                            + "\"cpuSecondsPerGb\": %.3f, \"heapPeakBytes\": %s}",
+                    server == null ? null : "\"" + server + "\"", concurrency, files, errors, bytes, seconds, bytes / seconds / (1024 * 1024),
+                    percentile(0.5), percentile(0.9), percentile(0.99), percentile(1),
+                    bytes == 0 ? 0 : cpuNanos / 1e9 / (bytes / (1024.0 * 1024 * 1024)), heapPeak);
+        }
+
+        private double percentile(double p) {
+            if (latencies.length == 0)
+                return 0;
+            int index = (int) Math.ceil(p * latencies.length) - 1;
+            return latencies[Integer.max(0, index)] / 1e6;
+        }
+    }
+
+    private StepResult runStep(int concurrency, InProcessServer server) throws IOException, InterruptedException {
+        List<List<Path>> work = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++)
+            work.add(corpus.forClient(i));
+
+        StepResult result = new StepResult();
+        result.server = server != null ? serverKind : null;
+        result.concurrency = concurrency;
+        result.latencies = new long[concurrency * corpus.getFileCount()];
+        AtomicInteger sent = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        AtomicInteger errors = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            List<Path> files = work.get(i);
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    Client client = new Client(host, port);
+                    for (Path file : files) {
+                        long begin = System.nanoTime();
+                        client.sendFile(file.toString());
+                        result.latencies[sent.getAndIncrement()] = System.nanoTime() - begin;
+                        bytes.addAndGet(Files.size(file));
+                    }
+                    client.close();
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                    ExceptionLogger.log(e);
+                } finally {
+                    done.countDown();
+                }
+            }, "Load Client " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        resetHeapPeaks();
+        long cpu = processCpuNanos();
+        long begin = System.nanoTime();
+        start.countDown();
+        long deadline = begin + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        if (!done.await(timeoutSeconds, TimeUnit.SECONDS))
+            throw new IOException("Step with " + concurrency + " clients didn't finish in " + timeoutSeconds + " seconds");
+        // a connection is closed only once every file it received is on disk
+        while (server != null && server.openConnections.getAsInt() > 0) {
+            if (System.nanoTime() > deadline)
+                throw new IOException("Server still has " + server.openConnections.getAsInt() + " connections open");
+            Thread.sleep(1);
+        }
+        result.seconds = (System.nanoTime() - begin) / 1e9;
+        result.cpuNanos = processCpuNanos() - cpu;
+        result.heapPeak = server != null ? heapPeak() : null;
+        result.files = sent.get();
+        result.errors = errors.get();
+        result.latencies = Arrays.copyOf(result.latencies, result.files);
+        result.bytes = bytes.get();
+        return result;
+    }
+
+    private static long processCpuNanos() {
+        return ((OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    private static void resetHeapPeaks() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+    }
+
+    // pools peak at different moments so this overestimates a little, the JVM keeps no peak for the heap as a whole
+    private static long heapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        return peak;
+    }
+
+    private InProcessServer startNio() throws IOException, InterruptedException {
+        NioServer server = new NioServer(OTelUtils.create("Server").ot.getTracer("Main Server", "0.69"), port);
+        Thread thread = new Thread(server, "Load Server");
+        thread.setDaemon(true);
+        thread.start();
+        if (!server.awaitListening(LISTEN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            server.stop();
+            throw new IOException("NIO server didn't start listening on " + port);
+        }
+        return new InProcessServer(server::getOpenConnections, server::stop);
+    }
+
+    private InProcessServer startClassic() throws IOException, InterruptedException {
+        AtomicReference<Server> listening = new AtomicReference<>();
+        CountDownLatch bound = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                new Server(port, server -> {
+                    listening.set(server);
+                    bound.countDown();
+                });
+            } finally {
+                // also when it never got to listen
+                bound.countDown();
+            }
+        }, "Load Server");
+        thread.setDaemon(true);
+        thread.start();
+        bound.await(LISTEN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Server server = listening.get();
+        if (server == null)
+            throw new IOException("Server didn't start listening on " + port);
+        return new InProcessServer(server::getOpenConnections, server::stop);
+    }
+
+    private List<String> run(int[] steps) throws IOException, InterruptedException {
+        InProcessServer server = null;
+        if (mode.equals(IN_PROCESS))
+            server = serverKind.equals(CLASSIC) ? startClassic() : startNio();
+        PrintStream stdout = System.out;
+        List<String> results = new ArrayList<>();
+        try {
+            for (int concurrency : steps) {
+                // both sides print a line or two per file, which at a thousand clients is all the run would measure
+                System.setOut(new PrintStream(PrintStream.nullOutputStream()));
+                String json;
+                try {
+                    json = runStep(concurrency, server).toJson();
+                } finally {
+                    System.setOut(stdout);
+                }
+                stdout.println(json);
+                results.add(json);
+                Files.writeString(output, "[\n  " + String.join(",\n  ", results) + "\n]\n", StandardCharsets.UTF_8);
+                if (server != null)
+                    SyntheticCorpus.delete(Paths.get(System.getProperty("user.dir"), "write", corpus.getRoot().getParent().getFileName().toString()));
+            }
+        } finally {
+            if (server != null)
+                server.stop.run();
+        }
+        return results;
+    }
+
+    public static void main(String[] args) {
+        // the per chunk telemetry would dominate the numbers, read before OTelUtils is first touched
+        if (System.getProperty("telemetry") == null)
+            System.setProperty("telemetry", "off");
+
+        String mode = IN_PROCESS;
+        String serverKind = NIO;
+        String host = "localhost";
+        Integer port = null;
+        int[] steps = {1, 10, 100, 1000};
+        int tiny = 100, medium = 4, huge = 1, hugeMB = 16;
+        long timeout = 600;
+        Path output = Paths.get("loadtest-result.json");
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0)
+                throw new IllegalArgumentException("Arguments are key=value, got " + arg);
+            String key = arg.substring(0, split).toLowerCase(Locale.ROOT);
+            String value = arg.substring(split + 1);
+            switch (key) {
+                case "mode":
+                    mode = value.toLowerCase(Locale.ROOT);
+                    if (!mode.equals(IN_PROCESS) && !mode.equals(LOOPBACK))
+                        throw new IllegalArgumentException("Mode is " + IN_PROCESS + " or " + LOOPBACK + ", got " + value);
+                    break;
+                case "server":
+                    serverKind = value.toLowerCase(Locale.ROOT);
+                    if (!serverKind.equals(NIO) && !serverKind.equals(CLASSIC))
+                        throw new IllegalArgumentException("Server is " + NIO + " or " + CLASSIC + ", got " + value);
+                    break;
+                case "host":
+                    host = value;
+                    break;
+                case "port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "steps":
+                    steps = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "tiny":
+                    tiny = Integer.parseInt(value);
+                    break;
+                case "medium":
+                    medium = Integer.parseInt(value);
+                    break;
+                case "huge":
+                    huge = Integer.parseInt(value);
+                    break;
+                case "hugemb":
+                    hugeMB = Integer.parseInt(value);
+                    break;
+                case "timeout":
+                    timeout = Long.parseLong(value);
+                    break;
+                case "out":
+                    output = Paths.get(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + arg);
+            }
+        }
+        if (port == null)
+            port = mode.equals(IN_PROCESS) ? IN_PROCESS_PORT : Server.SERVER_PORT;
+
+        try {
+            // relative to the working directory, the paths the server is sent are the ones the client reads
+            Path root = Paths.get("loadtest", "corpus");
+            SyntheticCorpus.delete(root);
+            SyntheticCorpus corpus = SyntheticCorpus.generate(root, tiny, medium, huge, hugeMB * 1024 * 1024);
+            System.err.println("Corpus of " + corpus.getFileCount() + " files, " + corpus.getBytes() + " bytes per client");
+            new LoadGenerator(mode, serverKind, host, port, timeout, corpus, output).run(steps);
+            SyntheticCorpus.delete(root.getParent());
+        } catch (Exception e) {
+            ExceptionLogger.log(e);
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * A generated file tree for the {@link LoadGenerator}: many tiny files, some medium ones and a few huge ones, each
+ * either compressible text or incompressible random bytes. Generated once, every simulated client then gets its own
+ * view of it as a directory of hard links, so each sends the same bytes under its own paths and no two clients ever
+ * write the same file on the server.
+ */
+public class SyntheticCorpus {
+
+    private final Path root;
+    private final Path base;
+    private final List<Path> files = new ArrayList<>();
+    private long bytes = 0;
+
+    private SyntheticCorpus(Path root) {
+        this.root = root;
+        this.base = root.resolve("base");
+    }
+
+    /**
+     * @param tiny   files between 100 bytes and 16 KB
+     * @param medium files between 64 KB and 2 MB
+     * @param huge   files of hugeBytes
+     */
+    public static SyntheticCorpus generate(Path root, int tiny, int medium, int huge, int hugeBytes) throws IOException {
+        SyntheticCorpus corpus = new SyntheticCorpus(root);
+        Random random = new Random(691);
+        for (int i = 0; i < tiny; i++)
+            corpus.add("tiny/" + (i % 32) + "/" + i, 100 + random.nextInt(16 * 1024 - 100), random);
+        for (int i = 0; i < medium; i++)
+            corpus.add("medium/" + i, 64 * 1024 + random.nextInt(2 * 1024 * 1024 - 64 * 1024), random);
+        for (int i = 0; i < huge; i++)
+            corpus.add("huge/" + i, hugeBytes, random);
+        return corpus;
+    }
+
+    private void add(String name, int size, Random random) throws IOException {
+        ChunkData.Entropy entropy = random.nextBoolean() ? ChunkData.Entropy.TEXT : ChunkData.Entropy.RANDOM;
+        Path path = base.resolve(name + (entropy == ChunkData.Entropy.TEXT ? ".txt" : ".bin"));
+        Files.createDirectories(path.getParent());
+        byte[] data = ChunkData.generate(entropy, size);
+        // the generator is seeded, without this every file of the same size would be identical
+        for (int i = 0; i < Integer.min(8, size); i++)
+            data[i] = (byte) random.nextInt();
+        try (OutputStream out = Files.newOutputStream(path)) {
+            out.write(data);
+        }
+        files.add(base.relativize(path));
+        bytes += size;
+    }
+
+    /**
+     * The corpus as seen by one client, links into the generated files under a directory of its own. Made on first use
+     * and kept for later steps.
+     *
+     * @return every file, shuffled the same way for the same client
+     */
+    public List<Path> forClient(int client) throws IOException {
+        Path dir = root.resolve("client-" + client);
+        List<Path> paths = new ArrayList<>(files.size());
+        for (Path file : files) {
+            Path link = dir.resolve(file);
+            if (!Files.exists(link)) {
+                Files.createDirectories(link.getParent());
+                try {
+                    Files.createLink(link, base.resolve(file));
+                } catch (UnsupportedOperationException | FileAlreadyExistsException e) {
+                    Files.copy(base.resolve(file), link);
+                }
+            }
+            paths.add(link);
+        }
+        Collections.shuffle(paths, new Random(client));
+        return paths;
+    }
+
+    public int getFileCount() {
+        return files.size();
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir))
+            return;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+
+}
@@ -0,0 +1,196 @@
+package client;
+
+import shared.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Sends files over a pool of connections to the server, so one process can have many files on the wire at once.
+ * <p>
+ * Every connection is a {@link Client} owned by a thread of its own, which opens it on first use and takes the next
+ * queued file whenever it is free. sendFile returns straight away with a future of the file's {@link TransferStats},
+ * completed once the server has answered that the file is in place.
+ * At most maxInFlight files are queued or being sent at a time, past that sendFile blocks until one finishes. A file
+ * whose connection breaks is sent again from the start on a fresh connection, up to the max retries; the server drops
+ * the half received copy along with the broken connection.
+ */
+public class AsyncClient implements AutoCloseable {
+
+    private static final Job SHUTDOWN = new Job(null);
+
+    private final String address;
+    private final int port;
+    private final BlockingQueue<Job> queue = new LinkedBlockingQueue<>();
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile int maxRetries = 2;
+    private volatile Consumer<Client> settings = client -> {
+    };
+    private boolean closed = false;
+
+    /**
+     * @param connections how many connections to open at most, they are opened as the files come in
+     * @param maxInFlight how many files may be queued or on the wire at once
+     */
+    public AsyncClient(String address, int port, int connections, int maxInFlight) {
+        if (connections < 1)
+            throw new FileUtil.InvalidUsageException("Need at least one connection!");
+        if (maxInFlight < 1)
+            throw new FileUtil.InvalidUsageException("Need to allow at least one file in flight!");
+        this.address = address;
+        this.port = port;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        for (int i = 0; i < connections; i++) {
+            Thread worker = new Thread(this::work, "Async Client " + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * How many times a file is sent again after its connection broke before its future fails.
+     */
+    public AsyncClient setMaxRetries(int maxRetries) {
+        if (maxRetries < 0)
+            throw new FileUtil.InvalidUsageException("Retries can't be negative!");
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * Applied to every connection opened from now on, for the Client setters like compression threads or chunk size.
+     */
+    public AsyncClient configure(Consumer<Client> settings) {
+        this.settings = settings;
+        return this;
+    }
+
+    /**
+     * Queues path to be sent on the first free connection, blocking while maxInFlight files already are.
+     */
+    public CompletableFuture<TransferStats> sendFile(String path) {
+        File file = new File(path);
+        if (!file.exists())
+            throw new FileUtil.InvalidUsageException("Unable to send a file which doesn't exist!");
+        if (file.isDirectory())
+            throw new FileUtil.InvalidUsageException("Path is a directory unable to send! Did you mean sendDir()?");
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+        Job job = new Job(path);
+        synchronized (this) {
+            if (closed) {
+                inFlight.release();
+                throw new FileUtil.InvalidUsageException("Client is closed!");
+            }
+            queue.add(job);
+        }
+        return job.result;
+    }
+
+    /**
+     * Files queued or being sent right now.
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Sends everything already queued, then closes every connection.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            for (int i = 0; i < workers.size(); i++)
+                queue.add(SHUTDOWN);
+        }
+        try {
+            for (Thread worker : workers)
+                worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // a Client is used and closed only by the thread that opened it, its connection span is current on that thread
+    private void work() {
+        Client client = null;
+        try {
+            while (true) {
+                Job job = queue.take();
+                if (job == SHUTDOWN)
+                    break;
+                client = send(job, client);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (client != null)
+                client.close();
+        }
+    }
+
+    /**
+     * @return the connection to use for the next file, null when it broke
+     */
+    private Client send(Job job, Client client) {
+        try {
+            int attempts = 0;
+            while (true) {
+                attempts++;
+                try {
+                    if (client == null) {
+                        client = new Client(address, port);
+                        settings.accept(client);
+                    }
+                    job.result.complete(client.transfer(job.path).withAttempts(attempts));
+                    return client;
+                } catch (IOException e) {
+                    if (client != null)
+                        client.abandon();
+                    client = null;
+                    if (attempts > maxRetries) {
+                        job.result.completeExceptionally(e);
+                        return null;
+                    }
+                    System.out.println("Connection broke sending " + job.path + ", retrying: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    // not the connection's fault so not worth a retry, but whatever was sent left it out of step
+                    if (client != null)
+                        client.abandon();
+                    job.result.completeExceptionally(e);
+                    return null;
+                }
+            }
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    private static class Job {
+        private final String path;
+        private final CompletableFuture<TransferStats> result = new CompletableFuture<>();
+
+        private Job(String path) {
+            this.path = path;
+        }
+    }
+
+}
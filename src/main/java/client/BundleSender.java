@@ -0,0 +1,99 @@
+package client;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import shared.FileUtil;
+import shared.Handshake;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs many small files into one BUNDLE command, so they share a single command, one set of chunk frames and one
+ * stream hash instead of paying for all of that per file, and compress together rather than one tiny file at a time.
+ * <p>
+ * After the command byte comes the file count and the index: for every file the number of leading characters its path
+ * shares with the previous path, the rest of the path as writeUTF, and the file size as an int. Then the contents of all
+ * files back to back, as ordinary chunk frames ending with a zero header and the stream hash.
+ */
+public class BundleSender {
+
+    private final List<String> paths = new ArrayList<>();
+    private final List<Integer> sizes = new ArrayList<>();
+    private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+    /**
+     * @return false when the bundle has no room left for path, send it and add path again
+     */
+    public boolean add(String path) throws IOException {
+        byte[] data = Files.readAllBytes(Paths.get(path));
+        if (data.length > FileUtil.BUNDLE_FILE_MAX_BYTES)
+            throw new FileUtil.InvalidUsageException("File " + path + " is too big to bundle, send it on its own!");
+        if (!paths.isEmpty() && (paths.size() >= FileUtil.BUNDLE_MAX_FILES || content.size() + data.length > FileUtil.BUNDLE_MAX_BYTES))
+            return false;
+        paths.add(path.replace(System.getProperty("user.dir"), ""));
+        sizes.add(data.length);
+        content.write(data);
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return paths.isEmpty();
+    }
+
+    public int getFileCount() {
+        return paths.size();
+    }
+
+    /**
+     * Sends everything added so far and empties the bundle.
+     */
+    public void send(DataOutputStream out, Tracer trace, Span sp, Handshake session, boolean adaptive) throws IOException {
+        out.writeByte(FileUtil.COMMAND.BUNDLE.type);
+        out.writeInt(paths.size());
+        String previous = "";
+        for (int i = 0; i < paths.size(); i++) {
+            String path = paths.get(i);
+            int common = commonPrefix(previous, path);
+            out.writeShort(common);
+            out.writeUTF(path.substring(common));
+            out.writeInt(sizes.get(i));
+            previous = path;
+        }
+
+        DataInputStream contentReader = new DataInputStream(new ByteArrayInputStream(content.toByteArray()));
+        CodecSelector codecs = CodecSelector.of(session, adaptive, 1);
+        ChunkedCompressedChecksumFileWriter writer = new ChunkedCompressedChecksumFileWriter(out, contentReader, session.getChunkSize(), session.getSeed(), codecs);
+        while (contentReader.available() > 0)
+            writer.processChunk(trace);
+
+        sp.setAttribute("Bundled Files", paths.size());
+        sp.setAttribute("Data Read Uncompressed Bytes", writer.getUncompressedBytes());
+        sp.setAttribute("Data Read Compressed Bytes", writer.getCompressedBytes());
+        sp.setAttribute("Data Compression Ratio", writer.getRatio());
+        sp.setAttribute("Codec", codecs.getBest().name());
+        sp.setStatus(StatusCode.OK);
+        writer.close();
+
+        paths.clear();
+        sizes.clear();
+        content.reset();
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int max = Integer.min(Integer.min(a.length(), b.length()), 0xFFFF);
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i))
+            i++;
+        return i;
+    }
+
+}
@@ -0,0 +1,162 @@
+package client;
+
+import shared.FileUtil;
+import shared.Handshake;
+
+/**
+ * Picks how many bytes of the file go into each chunk a writer sends.
+ * <p>
+ * A fixed sizer always answers the same size. An auto-tuning one keeps a moving average of the compression cost and the
+ * socket drain cost per byte, the same measurements {@link CodecSelector} works from, and every RETUNE_INTERVAL chunks
+ * moves the chunk size one power of two towards the size that would take about TARGET_CHUNK_NANOS per chunk. Chunks
+ * much faster than that spend a noticeable share of their time on the frame header, the hash setup and the syscalls;
+ * much slower ones hold more memory per in-flight chunk and delay the first bytes reaching the server. The size always
+ * stays between {@link Handshake#MIN_CHUNK_SIZE} and the chunk size the handshake agreed on, which the server treats as
+ * the largest chunk it will see. Shared between the workers of a pipelined writer, hence the synchronization.
+ */
+public class ChunkSizer {
+
+    private static final int RETUNE_INTERVAL = 16;
+    private static final long TARGET_CHUNK_NANOS = 2_000_000;
+    // weight of the newest sample in the moving averages
+    private static final double ALPHA = 0.2;
+    // a chunk within this factor of the target is left alone, so the size doesn't flap between two neighbours
+    private static final double TOLERANCE = 2;
+    // drain samples are pooled like CodecSelector's, one chunk may cost nothing and the next a whole batched write
+    private static final int DRAIN_SAMPLE_BYTES = GatheringOutputStream.DEFAULT_FLUSH_BYTES;
+
+    private final boolean auto;
+    private final int min;
+    private final int max;
+    private final int parallelism;
+
+    private int size;
+    // nanoseconds per uncompressed byte
+    private double compressCost = 0;
+    private double drainCost = 0;
+    private boolean compressSampled = false;
+    private boolean drainSampled = false;
+    private long drainBytes = 0;
+    private long drainNanos = 0;
+    private long chunks = 0;
+    private long resizes = 0;
+
+    private ChunkSizer(boolean auto, int size, int min, int max, int parallelism) {
+        this.auto = auto;
+        this.size = size;
+        this.min = min;
+        this.max = max;
+        this.parallelism = parallelism;
+    }
+
+    public static ChunkSizer fixed(int size) {
+        if (size < Handshake.MIN_CHUNK_SIZE || size > Handshake.MAX_CHUNK_SIZE)
+            throw new FileUtil.InvalidUsageException("Chunk size must be between " + Handshake.MIN_CHUNK_SIZE + " and " + Handshake.MAX_CHUNK_SIZE + "!");
+        return new ChunkSizer(false, size, size, size, 1);
+    }
+
+    /**
+     * @param start       size of the first chunks, before anything has been measured
+     * @param max         the largest chunk the server agreed to take
+     * @param parallelism how many threads compress while one writes to the socket, 1 for the serial writer
+     */
+    public static ChunkSizer auto(int start, int max, int parallelism) {
+        if (parallelism < 1)
+            throw new FileUtil.InvalidUsageException("Parallelism must be at least 1!");
+        int min = Integer.min(Handshake.MIN_CHUNK_SIZE, max);
+        return new ChunkSizer(true, Integer.max(min, Integer.min(start, max)), min, max, parallelism);
+    }
+
+    /**
+     * The sizer a transfer should use given what the handshake agreed on.
+     *
+     * @param chunkSize the size asked for, at most the agreed chunk size; where auto-tuning starts when it is on
+     */
+    public static ChunkSizer of(Handshake session, int chunkSize, boolean auto, int parallelism) {
+        if (chunkSize > session.getChunkSize())
+            throw new FileUtil.InvalidUsageException("Chunk size " + chunkSize + " is more than the " + session.getChunkSize() + " the server agreed to!");
+        return auto ? auto(chunkSize, session.getChunkSize(), parallelism) : fixed(chunkSize);
+    }
+
+    public boolean isAuto() {
+        return auto;
+    }
+
+    /**
+     * @return the size of the next chunk
+     */
+    public synchronized int next() {
+        if (auto && ++chunks % RETUNE_INTERVAL == 0)
+            retune();
+        return size;
+    }
+
+    /**
+     * The largest size {@link #next} will ever answer, what buffers have to be able to hold.
+     */
+    public int getMax() {
+        return max;
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    public synchronized long getResizes() {
+        return resizes;
+    }
+
+    public synchronized void recordCompression(int length, long nanos) {
+        if (!auto || length == 0)
+            return;
+        double cost = (double) nanos / length;
+        if (compressSampled) {
+            compressCost += ALPHA * (cost - compressCost);
+        } else {
+            compressCost = cost;
+            compressSampled = true;
+        }
+    }
+
+    /**
+     * @param length the uncompressed length of the chunk, so the cost is per byte of file like the compression cost
+     * @param nanos  time spent blocked writing and flushing the chunk to the socket
+     */
+    public synchronized void recordDrain(int length, long nanos) {
+        if (!auto || length == 0)
+            return;
+        drainBytes += length;
+        drainNanos += nanos;
+        if (drainBytes < DRAIN_SAMPLE_BYTES)
+            return;
+        double cost = (double) drainNanos / drainBytes;
+        drainBytes = 0;
+        drainNanos = 0;
+        if (drainSampled) {
+            drainCost += ALPHA * (cost - drainCost);
+        } else {
+            drainCost = cost;
+            drainSampled = true;
+        }
+    }
+
+    private void retune() {
+        if (!compressSampled)
+            return;
+        double compress = compressCost / parallelism;
+        double perByte = parallelism == 1 ? compress + drainCost : Double.max(compress, drainCost);
+        if (perByte <= 0)
+            return;
+        double chunkNanos = perByte * size;
+        int next = size;
+        if (chunkNanos * TOLERANCE < TARGET_CHUNK_NANOS)
+            next = Integer.min(max, size * 2);
+        else if (chunkNanos > TARGET_CHUNK_NANOS * TOLERANCE)
+            next = Integer.max(min, size / 2);
+        if (next != size) {
+            size = next;
+            resizes++;
+        }
+    }
+
+}
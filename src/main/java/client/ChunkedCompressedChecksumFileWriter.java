@@ -5,20 +5,32 @@ import io.opentelemetry.api.trace.StatusCode;
 import io.opentelemetry.api.trace.Tracer;
 import io.opentelemetry.context.Scope;
 import net.jpountz.xxhash.StreamingXXHash64;
-import shared.ArrayData;
+import shared.ChunkCodec;
 import shared.FileUtil;
+import shared.Metrics;
+import shared.OTelUtils;
+import shared.ZeroRuns;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class ChunkedCompressedChecksumFileWriter {
 
     private final DataOutputStream networkStreamWriter;
     private final StreamingXXHash64 streamHash;
     private final DataInputStream fileInputReader;
-    private final int bufferSize;
+    private final ChunkSizer sizer;
     private final long seed;
+    private final CodecSelector codecs;
+    private ByteBuffer uncompressed;
+    private ByteBuffer compressed;
+    // set when the file is one of several interleaved on the connection, see MultiplexedFileSender
+    private int streamId = -1;
+    private boolean zeroRuns = false;
+    // zeros read but not sent yet, they go out as one run once something else comes along
+    private long pendingZeros = 0;
 
     private Span currentSpan = null;
     private Scope currentScope = null;
@@ -26,95 +38,195 @@ public class ChunkedCompressedChecksumFileWriter {
     private long count = 0;
     private long uncompressed_bytes = 0;
     private long compressed_bytes = 0;
+    private long zero_bytes = 0;
 
     public ChunkedCompressedChecksumFileWriter(DataOutputStream networkStreamWriter, DataInputStream fileInputReader, int bufferSize, long seed) {
+        this(networkStreamWriter, fileInputReader, bufferSize, seed, FileUtil.XX_HASH_FACTORY.newStreamingHash64(seed), CodecSelector.DEFAULT);
+    }
+
+    public ChunkedCompressedChecksumFileWriter(DataOutputStream networkStreamWriter, DataInputStream fileInputReader, int bufferSize, long seed, CodecSelector codecs) {
+        this(networkStreamWriter, fileInputReader, bufferSize, seed, FileUtil.XX_HASH_FACTORY.newStreamingHash64(seed), codecs);
+    }
+
+    /**
+     * For resumed transfers, streamHash must already have seen the part of the file the server has.
+     */
+    public ChunkedCompressedChecksumFileWriter(DataOutputStream networkStreamWriter, DataInputStream fileInputReader, int bufferSize, long seed, StreamingXXHash64 streamHash, CodecSelector codecs) {
+        this(networkStreamWriter, fileInputReader, ChunkSizer.fixed(bufferSize), seed, streamHash, codecs);
+    }
+
+    /**
+     * @param sizer picks the length of every chunk, see {@link ChunkSizer}
+     */
+    public ChunkedCompressedChecksumFileWriter(DataOutputStream networkStreamWriter, DataInputStream fileInputReader, ChunkSizer sizer, long seed, StreamingXXHash64 streamHash, CodecSelector codecs) {
         this.networkStreamWriter = networkStreamWriter;
-        this.streamHash = FileUtil.XX_HASH_FACTORY.newStreamingHash64(seed);
+        this.streamHash = streamHash;
         this.fileInputReader = fileInputReader;
-        this.bufferSize = bufferSize;
+        this.sizer = sizer;
         this.seed = seed;
+        this.codecs = codecs;
+        this.uncompressed = FileUtil.BUFFER_POOL.acquire(sizer.getSize());
+        this.compressed = FileUtil.BUFFER_POOL.acquire(ChunkCodec.maxCompressedLength(sizer.getSize()));
     }
 
     public void processChunk(Tracer trace) throws IOException {
-        if (++count >= FileUtil.MAX_COUNT) {
-            currentSpan.addEvent("--{End Write}--");
-            currentSpan.setStatus(StatusCode.OK);
-            currentScope.close();
-            currentSpan.end();
-            currentSpan = null;
-            currentScope = null;
-            count = 0;
-        }
-        if (currentSpan == null) {
-            currentSpan = trace.spanBuilder("Chunk Write").startSpan();
-            currentScope = currentSpan.makeCurrent();
-        }
+        if (OTelUtils.CHUNK_EVENTS)
+            rollChunkSpan(trace);
         // read / write files in chunks
-        currentSpan.addEvent("--{Begin Write}--");
-        byte[] uncompressed = readSome();
-        if (uncompressed.length == 0)
+        int size = sizer.next();
+        uncompressed = FileUtil.BUFFER_POOL.ensureCapacity(uncompressed, size);
+        compressed = FileUtil.BUFFER_POOL.ensureCapacity(compressed, ChunkCodec.maxCompressedLength(size));
+        long start = System.nanoTime();
+        int length = readSome(size);
+        if (length == 0)
+            return;
+        long read = System.nanoTime();
+        Metrics.record(Metrics.Stage.READ, read - start, length);
+
+        if (zeroRuns && ZeroRuns.isZero(uncompressed.array(), uncompressed.arrayOffset(), length)) {
+            streamHash.update(uncompressed.array(), uncompressed.arrayOffset(), length);
+            if (pendingZeros + length > ZeroRuns.MAX_RUN)
+                flushZeros();
+            pendingZeros += length;
+            uncompressed_bytes += length;
+            zero_bytes += length;
             return;
+        }
 
         // create a checksum for this chunk + update the overall checksum
-        currentSpan.addEvent("Hash");
-        long hash = hash(uncompressed);
+        long hash = hash(length);
+        start = System.nanoTime();
+        Metrics.record(Metrics.Stage.HASH, start - read, length);
 
         // apply compression
-        currentSpan.addEvent("Compress");
-        ArrayData compressed = compress(uncompressed);
-
-        // track data
-        currentSpan.addEvent("Attribute: Write Uncompressed = " + uncompressed.length);
-        currentSpan.addEvent("Attribute: Write Compressed = " + compressed.getActualLength());
-        currentSpan.addEvent("Attribute: Compression Ratio = " + ((double)uncompressed.length / (double)compressed.getActualLength()));
-        currentSpan.addEvent("Attribute: Write Hash = " + hash);
-        uncompressed_bytes += uncompressed.length;
-        compressed_bytes += compressed.getActualLength();
-        count++;
+        ChunkCodec codec = codecs.next();
+        int compressedLength = compress(codec, uncompressed, length, compressed);
+        long compressNanos = System.nanoTime() - start;
+        codecs.recordCompression(codec, length, compressedLength, compressNanos);
+        sizer.recordCompression(length, compressNanos);
+        Metrics.record(Metrics.Stage.COMPRESS, compressNanos, length);
+        if (compressedLength == length)
+            codec = ChunkCodec.STORED;
+
+        if (OTelUtils.CHUNK_EVENTS && currentSpan.isRecording())
+            currentSpan.addEvent("Chunk Written", OTelUtils.chunkAttributes(length, compressedLength, codec, hash));
+        uncompressed_bytes += length;
+        compressed_bytes += compressedLength;
 
         // write data
-        currentSpan.addEvent("Write");
-        writeHeader(uncompressed.length, compressed.getActualLength(), hash);
-        networkStreamWriter.write(compressed.getData(), 0, compressed.getActualLength());
-        networkStreamWriter.flush();
+        ByteBuffer payload = codec == ChunkCodec.STORED ? uncompressed : compressed;
+        flushZeros();
+        start = System.nanoTime();
+        writeStreamPrefix();
+        writeFrame(networkStreamWriter, length, compressedLength, codec, hash, payload);
+        long drainNanos = System.nanoTime() - start;
+        codecs.recordDrain(compressedLength, drainNanos);
+        sizer.recordDrain(length, drainNanos);
+        Metrics.record(Metrics.Stage.SOCKET_WRITE, drainNanos, compressedLength);
     }
 
     public void close() throws IOException {
+        flushZeros();
+        writeStreamPrefix();
         networkStreamWriter.writeInt(0);
         networkStreamWriter.writeLong(streamHash.getValue());
         networkStreamWriter.flush();
+        FileUtil.BUFFER_POOL.release(uncompressed);
+        FileUtil.BUFFER_POOL.release(compressed);
         if (currentSpan != null) {
-            currentSpan.addEvent("--{End Read}--");
+            currentSpan.setStatus(StatusCode.OK);
+            currentScope.close();
+            currentSpan.end();
+        }
+    }
+
+    /**
+     * Chunk events go on a span of their own that is swapped every {@link FileUtil#MAX_COUNT} chunks, so no single span
+     * grows without bound.
+     */
+    private void rollChunkSpan(Tracer trace) {
+        if (currentSpan != null && ++count >= FileUtil.MAX_COUNT) {
+            currentSpan.setStatus(StatusCode.OK);
             currentScope.close();
             currentSpan.end();
+            currentSpan = null;
+            currentScope = null;
+        }
+        if (currentSpan == null) {
+            currentSpan = trace.spanBuilder("Chunk Write").startSpan();
+            // interleaved streams would close each other's scopes out of order
+            currentScope = streamId < 0 ? currentSpan.makeCurrent() : Scope.noop();
+            count = 0;
         }
     }
 
-    private void writeHeader(int uncompressed, int compressed, long hash) throws IOException {
-        networkStreamWriter.writeInt(uncompressed);
-        networkStreamWriter.writeInt(compressed);
-        networkStreamWriter.writeLong(hash);
+    /**
+     * Every frame, the end of file one included, goes out as a STREAM_CHUNK command for the given stream instead of
+     * bare, so frames of several files can share the connection.
+     */
+    public void setStreamId(int streamId) {
+        this.streamId = streamId;
+    }
+
+    /**
+     * Chunks of nothing but zeros are sent as zero runs instead, see {@link ZeroRuns}. Only for a WRITE to a server that
+     * {@link shared.Handshake#supportsZeroRuns}.
+     */
+    public void setZeroRuns(boolean zeroRuns) {
+        this.zeroRuns = zeroRuns;
+    }
+
+    private void flushZeros() throws IOException {
+        if (pendingZeros == 0)
+            return;
+        writeStreamPrefix();
+        writeZeroRun(networkStreamWriter, (int) pendingZeros);
+        pendingZeros = 0;
+    }
+
+    private void writeStreamPrefix() throws IOException {
+        if (streamId < 0)
+            return;
+        networkStreamWriter.writeByte(FileUtil.COMMAND.STREAM_CHUNK.type);
+        networkStreamWriter.writeInt(streamId);
+    }
+
+    static void writeFrame(DataOutputStream out, int uncompressed, int compressed, ChunkCodec codec, long hash, ByteBuffer payload) throws IOException {
+        out.writeInt(uncompressed);
+        out.writeInt(compressed);
+        out.writeByte(codec.type);
+        out.writeLong(hash);
+        out.write(payload.array(), payload.arrayOffset(), compressed);
     }
 
-    private byte[] readSome() throws IOException {
-        byte[] readBytes = new byte[Integer.min(fileInputReader.available(), bufferSize)];
+    static void writeZeroRun(DataOutputStream out, int length) throws IOException {
+        out.writeInt(-length);
+    }
+
+    private int readSome(int size) throws IOException {
+        return fileInputReader.readNBytes(uncompressed.array(), uncompressed.arrayOffset(), size);
+    }
 
-        int totalRead = fileInputReader.read(readBytes);
-        assert (readBytes.length == totalRead);
+    private long hash(int length) {
+        streamHash.update(uncompressed.array(), uncompressed.arrayOffset(), length);
+        return FileUtil.HASH_64.hash(uncompressed, 0, length, seed);
+    }
 
-        return readBytes;
+    /**
+     * @return the compressed length, or length itself when the chunk should go out stored because the codec is STORED
+     * or compressing didn't make it any smaller
+     */
+    static int compress(ChunkCodec codec, ByteBuffer input, int length, ByteBuffer output) {
+        return compress(codec, input, 0, length, output);
     }
 
-    private long hash(byte[] input) {
-        streamHash.update(input, 0, input.length);
-        return FileUtil.HASH_64.hash(input, 0, input.length, seed);
+    static int compress(ChunkCodec codec, ByteBuffer input, int offset, int length, ByteBuffer output) {
+        int compressedLength = codec.compress(input, offset, length, output);
+        return compressedLength < 0 || compressedLength >= length ? length : compressedLength;
     }
 
-    private ArrayData compress(byte[] input) {
-        int maxCompressedLength = FileUtil.COMPRESSOR.maxCompressedLength(input.length);
-        byte[] compressedBytes = new byte[maxCompressedLength];
-        int compressedLength = FileUtil.COMPRESSOR.compress(input, 0, input.length, compressedBytes, 0, maxCompressedLength);
-        return new ArrayData(compressedBytes, compressedLength);
+    public long getStreamHash() {
+        return streamHash.getValue();
     }
 
     public long getCompressedBytes() {
@@ -125,6 +237,13 @@ public class ChunkedCompressedChecksumFileWriter {
         return uncompressed_bytes;
     }
 
+    /**
+     * Part of the uncompressed bytes that went out as zero runs.
+     */
+    public long getZeroBytes() {
+        return zero_bytes;
+    }
+
     public double getRatio() {
         if (compressed_bytes == 0)
             return 0;
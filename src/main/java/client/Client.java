@@ -5,80 +5,482 @@ import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.api.trace.StatusCode;
 import io.opentelemetry.api.trace.Tracer;
 import io.opentelemetry.context.Scope;
+import server.ChunkedCompressedChecksumFileReader;
+import server.MultiplexedFileReceiver;
+import server.PipelinedChunkedCompressedChecksumFileReader;
 import server.Server;
 import shared.ExceptionLogger;
 import shared.FileUtil;
+import shared.Handshake;
 import shared.OTelUtils;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Client {
 
+    // listing directories is mostly waiting on the disk, a few more walkers than cores keeps it busy
+    private static final int SCAN_THREADS = Runtime.getRuntime().availableProcessors() * 4;
+
+    private final String address;
+    private final int port;
     private final Socket serverConnection;
+    private final GatheringOutputStream socketOut;
     private final DataOutputStream out;
     private final DataInputStream in;
     private OTelUtils.SexyContainer ot = OTelUtils.create("Client"); // Computational Unit Machine Client
     private final Tracer tracer;
     private final Scope sc;
     private final Span s;
+    private final Handshake offer;
+    private final Handshake session;
+    private ExecutorService compressionPool = null;
+    private int compressionThreads = 1;
+    private boolean adaptiveCompression = false;
+    private boolean memoryMapped = false;
+    private int chunkSize;
+    private boolean autoChunkSize = false;
+    private int maxStreams = 8;
+    // extra connections opened for striped sends, kept around so the next striped file doesn't pay for the handshake
+    private final List<Socket> stripeConnections = new ArrayList<>();
+    private final List<DataOutputStream> stripeOutputs = new ArrayList<>();
 
     public Client(String address, int port) throws IOException {
-        serverConnection = new Socket(address, port);
-        out = new DataOutputStream(new BufferedOutputStream(serverConnection.getOutputStream()));
+        this(address, port, Handshake.DEFAULT);
+    }
+
+    /**
+     * @param offer the chunk size, seed and codecs (most preferred first) to ask the server for
+     */
+    public Client(String address, int port, Handshake offer) throws IOException {
+        this.address = address;
+        this.port = port;
+        this.offer = offer;
+        SocketChannel channel = connect();
+        serverConnection = channel.socket();
+        socketOut = new GatheringOutputStream(channel);
+        out = new DataOutputStream(socketOut);
         in = new DataInputStream(new BufferedInputStream(serverConnection.getInputStream()));
+        session = handshake(out, in);
+        chunkSize = session.getChunkSize();
         tracer = ot.ot.getTracer("A Client", "1.33.7");
-        s = tracer.spanBuilder("Client Connection").setAttribute("Server Address", address).setAttribute("Server Port", port).startSpan();
+        s = tracer.spanBuilder("Client Connection").setAttribute("Server Address", address).setAttribute("Server Port", port)
+                .setAttribute("Protocol Version", session.getVersion()).setAttribute("Chunk Size", session.getChunkSize())
+                .setAttribute("Codec", session.getCodec().name()).startSpan();
         sc = s.makeCurrent();
     }
 
+    private SocketChannel connect() throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(address, port));
+        // writes are already batched by GatheringOutputStream, Nagle holding back the tail of a batch only adds latency
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        return channel;
+    }
+
+    private Handshake handshake(DataOutputStream out, DataInputStream in) throws IOException {
+        out.writeByte(FileUtil.COMMAND.HELLO.type);
+        offer.write(out);
+        out.flush();
+        Handshake agreed = Handshake.readAnswer(in);
+        if (!agreed.isAccepted())
+            throw new IOException("Server refused protocol version " + offer.getVersion());
+        return agreed;
+    }
+
+    /**
+     * Fails before anything is sent when the server said at HELLO it doesn't take command, as a server running in nio
+     * mode does for everything but WRITE, BUNDLE and SYNC.
+     */
+    private void require(FileUtil.COMMAND command) {
+        if (!session.supports(command))
+            throw new FileUtil.InvalidUsageException("The server doesn't take " + command + " commands!");
+    }
+
     public Client sendFile(String path) {
         Span sp = tracer.spanBuilder("Send File").setAttribute("File", path).startSpan();
         try (Scope seethe = sp.makeCurrent()) {
             System.out.println("Sending path " + path);
-            FileUtil.write(path, out, tracer, sp);
+            if (memoryMapped)
+                FileUtil.writeMapped(path, out, tracer, sp, session, adaptiveCompression, chunkSize, autoChunkSize);
+            else
+                FileUtil.write(path, out, tracer, sp, compressionPool, compressionThreads, session, adaptiveCompression, chunkSize, autoChunkSize);
             System.out.println("Sent path " + path);
         } finally {
             sp.end();
         }
-        ot.tp.forceFlush();
-        ot.bp.forceFlush();
-        ot.ox.flush();
-//        try {
-//            Thread.sleep((long)(Math.random() * 10));
-//        } catch (InterruptedException e) {
-//            throw new RuntimeException(e);
-//        }
+        return this;
+    }
+
+    /**
+     * sendFile for the {@link AsyncClient}, which needs to know how it went. Returns once the server has answered a SYNC
+     * behind the file, so the file is in place on the server. Throws whatever went wrong, the connection is unusable
+     * afterwards.
+     */
+    TransferStats transfer(String path) throws IOException {
+        require(FileUtil.COMMAND.SYNC);
+        Span sp = tracer.spanBuilder("Send File").setAttribute("File", path).startSpan();
+        try (Scope seethe = sp.makeCurrent()) {
+            TransferStats stats;
+            if (memoryMapped)
+                stats = FileUtil.transferMapped(path, out, tracer, sp, session, adaptiveCompression, chunkSize, autoChunkSize);
+            else
+                stats = FileUtil.transfer(path, out, tracer, sp, compressionPool, compressionThreads, session, adaptiveCompression, chunkSize, autoChunkSize);
+            out.writeByte(FileUtil.COMMAND.SYNC.type);
+            out.flush();
+            // the answer is always true, a server that couldn't take the file drops the connection instead
+            in.readBoolean();
+            return stats;
+        } catch (IOException | RuntimeException e) {
+            sp.recordException(e);
+            sp.setStatus(StatusCode.ERROR);
+            throw e;
+        } finally {
+            sp.end();
+        }
+    }
+
+    /**
+     * Sends all the paths at once over this connection, up to the max streams at a time with their chunks interleaved,
+     * so the small ones aren't stuck behind a big one. See {@link MultiplexedFileSender}.
+     */
+    public Client sendFiles(String... paths) {
+        require(FileUtil.COMMAND.STREAM_OPEN);
+        Span sp = tracer.spanBuilder("Send Multiplexed").setAttribute("Files", paths.length).setAttribute("Max Streams", maxStreams).startSpan();
+        try (Scope seethe = sp.makeCurrent()) {
+            MultiplexedFileSender sender = new MultiplexedFileSender(out, tracer, session, adaptiveCompression, chunkSize, autoChunkSize, maxStreams);
+            for (String path : paths)
+                sender.add(path);
+            sender.sendAll();
+            sp.setStatus(StatusCode.OK);
+        } catch (IOException e) {
+            sp.recordException(e);
+            sp.setStatus(StatusCode.ERROR);
+            ExceptionLogger.log(e);
+        } finally {
+            sp.end();
+        }
+        return this;
+    }
+
+    /**
+     * Sends path, picking up where a previous, interrupted sendFileResumable of the same path left off.
+     */
+    public Client sendFileResumable(String path) {
+        require(FileUtil.COMMAND.RESUME);
+        Span sp = tracer.spanBuilder("Send File Resumable").setAttribute("File", path).startSpan();
+        try (Scope seethe = sp.makeCurrent()) {
+            System.out.println("Sending path " + path);
+            FileUtil.writeResumable(path, out, in, tracer, sp, session, adaptiveCompression);
+            System.out.println("Sent path " + path);
+        } catch (IOException e) {
+            sp.recordException(e);
+            ExceptionLogger.log(e);
+        } finally {
+            sp.end();
+        }
+        return this;
+    }
+
+    /**
+     * Sends path so that chunks damaged on the way are sent again on their own instead of failing the whole file, at
+     * the cost of waiting for the server's answer at the end. See {@link VerifiedFileSender}.
+     *
+     * @return whether the server ended up with the whole file
+     */
+    public boolean sendFileVerified(String path) {
+        require(FileUtil.COMMAND.VERIFIED);
+        Span sp = tracer.spanBuilder("Send File Verified").setAttribute("File", path).startSpan();
+        try (Scope seethe = sp.makeCurrent()) {
+            System.out.println("Sending path " + path);
+            CodecSelector codecs = CodecSelector.of(session, adaptiveCompression, 1);
+            VerifiedFileSender sender = new VerifiedFileSender(out, in, session, codecs, ChunkSizer.of(session, chunkSize, autoChunkSize, 1));
+            boolean complete = sender.send(path, path.replace(System.getProperty("user.dir"), ""), sp);
+            sp.setAttribute("Data Read Uncompressed Bytes", sender.getUncompressedBytes());
+            sp.setAttribute("Data Read Compressed Bytes", sender.getCompressedBytes());
+            sp.setAttribute("Data Compression Ratio", sender.getRatio());
+            sp.setStatus(complete ? StatusCode.OK : StatusCode.ERROR);
+            System.out.println((complete ? "Sent path " : "Server gave up on path ") + path);
+            return complete;
+        } catch (IOException e) {
+            sp.recordException(e);
+            ExceptionLogger.log(e);
+            return false;
+        } finally {
+            sp.end();
+        }
+    }
+
+    /**
+     * Downloads remotePath, the path a file was sent under, from the server into localPath. Checked the same way the
+     * server checks what it receives, localPath only appears once the whole file has arrived intact.
+     *
+     * @return whether the server had the file and it arrived
+     */
+    public boolean receiveFile(String remotePath, String localPath) {
+        require(FileUtil.COMMAND.READ);
+        Span sp = tracer.spanBuilder("Receive File").setAttribute("File", remotePath).startSpan();
+        try (Scope seethe = sp.makeCurrent()) {
+            System.out.println("Receiving path " + remotePath);
+            out.write(FileUtil.COMMAND.READ.type);
+            out.writeUTF(remotePath);
+            out.flush();
+            if (in.readLong() < 0) {
+                sp.setStatus(StatusCode.ERROR, "No such file");
+                System.out.println("Server doesn't have path " + remotePath);
+                return false;
+            }
+            ChunkedCompressedChecksumFileReader reader = new ChunkedCompressedChecksumFileReader(in, localPath, session);
+            try {
+                new PipelinedChunkedCompressedChecksumFileReader(in, reader, session.getSeed()).readAll(tracer);
+                sp.setAttribute("Data Read Uncompressed Bytes", reader.getUncompressedBytes());
+                sp.setAttribute("Data Read Compressed Bytes", reader.getCompressedBytes());
+                sp.setAttribute("Data Compression Ratio", reader.getRatio());
+                reader.close();
+            } catch (IOException | RuntimeException e) {
+                reader.abort();
+                throw e;
+            }
+            sp.setStatus(StatusCode.OK);
+            System.out.println("Received path " + remotePath + " into " + localPath);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            sp.recordException(e);
+            ExceptionLogger.log(e);
+            return false;
+        } finally {
+            sp.end();
+        }
+    }
+
+    /**
+     * Sends only the parts of path that differ from the copy the server already has, if it has one.
+     */
+    public Client sendFileDelta(String path) {
+        require(FileUtil.COMMAND.DELTA);
+        Span sp = tracer.spanBuilder("Send File Delta").setAttribute("File", path).startSpan();
+        try (Scope seethe = sp.makeCurrent()) {
+            if (!new File(path).isFile())
+                throw new FileUtil.InvalidUsageException("Unable to send a file which doesn't exist!");
+            System.out.println("Sending delta of path " + path);
+            DeltaFileSender sender = new DeltaFileSender(out, in, session.getSeed(), session.getChunkSize(), CodecSelector.of(session, adaptiveCompression, 1));
+            boolean rebuilt = sender.send(path, path.replace(System.getProperty("user.dir"), ""), tracer, sp);
+            sp.setAttribute("Delta Literal Bytes", sender.getLiteralBytes());
+            sp.setAttribute("Delta Copied Bytes", sender.getCopiedBytes());
+            sp.setAttribute("Data Read Compressed Bytes", sender.getCompressedBytes());
+            sp.setStatus(rebuilt ? StatusCode.OK : StatusCode.ERROR);
+            System.out.println((rebuilt ? "Sent delta of path " : "Server rejected delta of path ") + path
+                    + " (" + sender.getLiteralBytes() + " literal bytes, " + sender.getCopiedBytes() + " copied bytes)");
+        } catch (Exception e) {
+            sp.recordException(e);
+            ExceptionLogger.log(e);
+        } finally {
+            sp.end();
+        }
+        return this;
+    }
+
+    public Client sendFileStriped(String path, int stripes) {
+        require(FileUtil.COMMAND.STRIPE);
+        Span sp = tracer.spanBuilder("Send File Striped").setAttribute("File", path).setAttribute("Stripes", stripes).startSpan();
+        try (Scope seethe = sp.makeCurrent()) {
+            if (new File(path).isDirectory())
+                throw new FileUtil.InvalidUsageException("Path is a directory unable to send! Did you mean sendDir()?");
+            if (stripes < 1 || stripes > FileUtil.STRIPE_MAX_COUNT)
+                throw new FileUtil.InvalidUsageException("Stripes must be between 1 and " + FileUtil.STRIPE_MAX_COUNT + "!");
+            System.out.println("Sending path " + path + " over " + stripes + " connections");
+            while (stripeConnections.size() < stripes - 1) {
+                SocketChannel channel = connect();
+                Socket socket = channel.socket();
+                DataOutputStream stripeOut = new DataOutputStream(new GatheringOutputStream(channel));
+                // every stripe has to agree on the same settings as the main connection or the ranges won't fit together
+                Handshake agreed = handshake(stripeOut, new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+                if (agreed.getChunkSize() != session.getChunkSize() || agreed.getSeed() != session.getSeed()) {
+                    socket.close();
+                    throw new IOException("Stripe connection negotiated " + agreed + " instead of " + session);
+                }
+                stripeConnections.add(socket);
+                stripeOutputs.add(stripeOut);
+            }
+            DataOutputStream[] connections = new DataOutputStream[stripes];
+            connections[0] = out;
+            for (int i = 1; i < stripes; i++)
+                connections[i] = stripeOutputs.get(i - 1);
+
+            StripedFileSender sender = new StripedFileSender(connections, in, session, adaptiveCompression);
+            boolean committed = sender.send(path, path.replace(System.getProperty("user.dir"), ""), tracer);
+            sp.setAttribute("Data Read Uncompressed Bytes", sender.getUncompressedBytes());
+            sp.setAttribute("Data Read Compressed Bytes", sender.getCompressedBytes());
+            sp.setAttribute("Data Compression Ratio", sender.getRatio());
+            sp.setStatus(committed ? StatusCode.OK : StatusCode.ERROR);
+            System.out.println((committed ? "Sent path " : "Server rejected striped path ") + path);
+        } catch (Exception e) {
+            sp.recordException(e);
+            ExceptionLogger.log(e);
+        } finally {
+            sp.end();
+        }
         return this;
     }
 
     public Client sendDir(String path) {
-        Span sd = tracer.spanBuilder("Send Directory").setAttribute("Directory", path).startSpan();
-        try (Scope cope = sd.makeCurrent()) {
-            File p = new File(path);
-            ArrayDeque<File> filesToCheck = new ArrayDeque<>(Arrays.asList(Objects.requireNonNull(p.listFiles())));
-            while (!filesToCheck.isEmpty()) {
-                File f = filesToCheck.remove();
-                System.out.println("Processing file " + f.getPath());
-                if (f.isDirectory())
-                    filesToCheck.addAll(Arrays.asList(Objects.requireNonNull(f.listFiles())));
+        return sendDir(path, DirectoryScanner.Order.LARGEST_FIRST);
+    }
+
+    /**
+     * Sends every file under path, starting as soon as the parallel walk finds the first one rather than after the
+     * whole tree has been listed. While a file is on the wire the first chunks of the one after it are read ahead.
+     * Files of up to {@link FileUtil#BUNDLE_FILE_MAX_BYTES} go out packed together in BUNDLE commands.
+     */
+    public Client sendDir(String path, DirectoryScanner.Order order) {
+        Span sd = tracer.spanBuilder("Send Directory").setAttribute("Directory", path)
+                .setAttribute("Order", order.name()).startSpan();
+        BundleSender bundle = new BundleSender();
+        try (Scope cope = sd.makeCurrent();
+             DirectoryScanner scanner = new DirectoryScanner(Paths.get(path), order, SCAN_THREADS).start()) {
+            DirectoryScanner.ScannedFile current = scanner.next();
+            while (current != null) {
+                // only what the walk has already found, waiting for the walk here would hold up the current file
+                DirectoryScanner.ScannedFile upcoming = scanner.poll();
+                if (upcoming != null)
+                    scanner.prefetch(upcoming);
+                System.out.println("Processing file " + current.getPath());
+                if (current.getSize() <= FileUtil.BUNDLE_FILE_MAX_BYTES)
+                    addToBundle(bundle, current.getPath().toString());
                 else
-                    sendFile(f.getPath());
+                    sendFile(current.getPath().toString());
+                current = upcoming != null ? upcoming : scanner.next();
             }
-        } finally {
+            if (!bundle.isEmpty())
+                sendBundle(bundle);
+            sd.setAttribute("Files", scanner.getFilesFound());
+            sd.setAttribute("Bytes", scanner.getBytesFound());
             sd.setStatus(StatusCode.OK);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sd.recordException(e);
+            sd.setStatus(StatusCode.ERROR);
+            ExceptionLogger.log(e);
+        } finally {
             sd.end();
         }
         System.out.println("Sent directory " + path);
         return this;
     }
 
+    private void addToBundle(BundleSender bundle, String path) {
+        try {
+            if (!bundle.add(path)) {
+                sendBundle(bundle);
+                bundle.add(path);
+            }
+        } catch (IOException e) {
+            ExceptionLogger.log(e);
+        }
+    }
+
+    private void sendBundle(BundleSender bundle) {
+        Span sp = tracer.spanBuilder("Send Bundle").setAttribute("Files", bundle.getFileCount()).startSpan();
+        try (Scope seethe = sp.makeCurrent()) {
+            System.out.println("Sending bundle of " + bundle.getFileCount() + " files");
+            bundle.send(out, tracer, sp, session, adaptiveCompression);
+        } catch (IOException e) {
+            sp.recordException(e);
+            ExceptionLogger.log(e);
+        } finally {
+            sp.end();
+        }
+    }
+
+    public Client setCompressionThreads(int threads) {
+        if (threads < 1)
+            throw new FileUtil.InvalidUsageException("Need at least one compression thread!");
+        if (compressionPool != null)
+            compressionPool.shutdown();
+        compressionThreads = threads;
+        compressionPool = threads > 1 ? Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "Chunk Compressor");
+            t.setDaemon(true);
+            return t;
+        }) : null;
+        return this;
+    }
+
+    /**
+     * When on, every chunk is sent with whichever codec (stored, LZ4 fast or one of the LZ4 HC levels) currently gives
+     * the best throughput for this file and link, instead of always LZ4 HC.
+     */
+    public Client setAdaptiveCompression(boolean adaptive) {
+        adaptiveCompression = adaptive;
+        return this;
+    }
+
+    /**
+     * When on, sendFile reads files through memory mapped windows instead of a stream. Saves the copies through the
+     * stream buffers, at the cost of the compression pool which the mapped sender doesn't use.
+     */
+    public Client setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        return this;
+    }
+
+    /**
+     * Length of the chunks sendFile cuts files into from now on, anywhere between {@link Handshake#MIN_CHUNK_SIZE} and
+     * the chunk size the handshake agreed on, which is also the default. With auto chunk sizing on this is where each
+     * file starts.
+     */
+    public Client setChunkSize(int chunkSize) {
+        if (chunkSize < Handshake.MIN_CHUNK_SIZE || chunkSize > session.getChunkSize())
+            throw new FileUtil.InvalidUsageException("Chunk size must be between " + Handshake.MIN_CHUNK_SIZE + " and the agreed " + session.getChunkSize() + "!");
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * When on, sendFile grows or shrinks the chunks of every file as it goes, from measured compression time and socket
+     * throughput, instead of always using the chunk size. See {@link ChunkSizer}.
+     */
+    public Client setAutoChunkSize(boolean autoChunkSize) {
+        this.autoChunkSize = autoChunkSize;
+        return this;
+    }
+
+    /**
+     * How many files sendFiles puts on the wire at once.
+     */
+    public Client setMaxStreams(int maxStreams) {
+        if (maxStreams < 1 || maxStreams > MultiplexedFileReceiver.MAX_OPEN_STREAMS)
+            throw new FileUtil.InvalidUsageException("Max streams must be between 1 and " + MultiplexedFileReceiver.MAX_OPEN_STREAMS + "!");
+        this.maxStreams = maxStreams;
+        return this;
+    }
+
+    public Handshake getSession() {
+        return session;
+    }
+
     public Client close() {
         try {
+            if (compressionPool != null)
+                compressionPool.shutdown();
             sc.close();
+            s.setAttribute("Socket Writes", socketOut.getWrites());
+            s.setAttribute("Socket Bytes Written", socketOut.getBytesWritten());
             s.setStatus(StatusCode.OK);
             s.end();
+            // spans are exported in batches in the background, just give the last batch a push
+            ot.flush();
+            for (int i = 0; i < stripeConnections.size(); i++) {
+                stripeOutputs.get(i).writeByte(FileUtil.COMMAND.CLOSE.type);
+                stripeOutputs.get(i).flush();
+                stripeConnections.get(i).close();
+            }
             out.writeByte(FileUtil.COMMAND.CLOSE.type);
             out.flush();
             in.close();
@@ -91,15 +493,32 @@ public class Client {
         return this;
     }
 
+    /**
+     * Drops a connection that broke, without the goodbye close would try to send over it.
+     */
+    void abandon() {
+        if (compressionPool != null)
+            compressionPool.shutdown();
+        sc.close();
+        s.setStatus(StatusCode.ERROR, "Connection abandoned");
+        s.end();
+        try {
+            for (Socket stripe : stripeConnections)
+                stripe.close();
+            serverConnection.close();
+        } catch (IOException e) {
+            ExceptionLogger.log(e);
+        }
+    }
+
     public OTelUtils.SexyContainer getContainer() {
         return ot;
     }
 
     public static void main(String[] args) {
         try {
-            OTelUtils.SexyContainer con = new Client("localhost", Server.SERVER_PORT).sendDir("in/").close().getContainer();
-            con.tp.forceFlush();
-            con.tp.shutdown();
+            OTelUtils.SexyContainer con = new Client("localhost", Server.SERVER_PORT).setCompressionThreads(Runtime.getRuntime().availableProcessors()).sendDir("in/").close().getContainer();
+            con.shutdown();
             //new Client("localhost", Server.SERVER_PORT).sendFile("in/ihaveafile.txt").close();
         } catch (Exception e) {
             ExceptionLogger.log(e);
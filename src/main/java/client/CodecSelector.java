@@ -0,0 +1,180 @@
+package client;
+
+import shared.ChunkCodec;
+import shared.FileUtil;
+import shared.Handshake;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Picks the {@link ChunkCodec} for every chunk a writer sends.
+ * <p>
+ * A fixed selector always answers the same codec. An adaptive one keeps a moving average of how fast each codec
+ * compresses and how much it saves, along with how fast the socket drains, and picks the codec with the lowest estimated
+ * time per chunk: compression plus wire time when one thread does both, or the slower of the two when a pool compresses
+ * while the socket is written. Every EXPLORE_INTERVAL chunks one of the other codecs gets a turn so the estimates follow
+ * the data and the link as they change. Shared between the workers of a pipelined writer, hence the synchronization.
+ */
+public class CodecSelector {
+
+    private static final int EXPLORE_INTERVAL = 32;
+    // weight of the newest sample in the moving averages
+    private static final double ALPHA = 0.2;
+    // socket writes are batched, so one chunk may cost nothing and the next the drain of a whole batch; drain samples
+    // are pooled until they cover about a batch before they count
+    private static final int DRAIN_SAMPLE_BYTES = GatheringOutputStream.DEFAULT_FLUSH_BYTES;
+
+    // what every writer used before codecs could be picked per chunk
+    public static final CodecSelector DEFAULT = fixed(ChunkCodec.LZ4_HC);
+
+    private final ChunkCodec fixed;
+    private final int parallelism;
+    private final ChunkCodec[] codecs;
+
+    // nanoseconds per uncompressed byte and compressed / uncompressed size, indexed like codecs
+    private final double[] compressCost;
+    private final double[] ratio;
+    private final boolean[] sampled;
+    // nanoseconds per byte written to the socket
+    private double drainCost = 0;
+    private boolean drainSampled = false;
+    private long drainBytes = 0;
+    private long drainNanos = 0;
+
+    private long chunks = 0;
+    private int explore = 0;
+    private ChunkCodec best;
+
+    private CodecSelector(ChunkCodec fixed, int parallelism, List<ChunkCodec> codecs) {
+        this.fixed = fixed;
+        this.parallelism = parallelism;
+        this.codecs = codecs.toArray(new ChunkCodec[0]);
+        this.compressCost = new double[this.codecs.length];
+        this.ratio = new double[this.codecs.length];
+        this.sampled = new boolean[this.codecs.length];
+        this.best = fixed != null ? fixed : this.codecs[0];
+    }
+
+    public static CodecSelector fixed(ChunkCodec codec) {
+        return new CodecSelector(codec, 1, Collections.singletonList(codec));
+    }
+
+    /**
+     * @param parallelism how many threads compress while one writes to the socket, 1 for the serial writer
+     */
+    public static CodecSelector adaptive(int parallelism) {
+        return adaptive(parallelism, Arrays.asList(ChunkCodec.values()));
+    }
+
+    /**
+     * @param codecs the codecs the server agreed to decode, see {@link shared.Handshake}
+     */
+    public static CodecSelector adaptive(int parallelism, List<ChunkCodec> codecs) {
+        if (parallelism < 1)
+            throw new FileUtil.InvalidUsageException("Parallelism must be at least 1!");
+        if (codecs.isEmpty())
+            throw new FileUtil.InvalidUsageException("Need at least one codec!");
+        return new CodecSelector(null, parallelism, codecs);
+    }
+
+    /**
+     * The selector a connection should use given what the handshake agreed on.
+     */
+    public static CodecSelector of(Handshake session, boolean adaptive, int parallelism) {
+        if (!adaptive)
+            return session.getCodec() == DEFAULT.fixed ? DEFAULT : fixed(session.getCodec());
+        return adaptive(parallelism, session.getCodecs());
+    }
+
+    public boolean isAdaptive() {
+        return fixed == null;
+    }
+
+    public synchronized ChunkCodec next() {
+        if (fixed != null)
+            return fixed;
+        // try everything once before trusting the estimates
+        for (int i = 0; i < codecs.length; i++)
+            if (!sampled[i])
+                return codecs[i];
+        if (++chunks % EXPLORE_INTERVAL == 0) {
+            explore = (explore + 1) % codecs.length;
+            if (codecs[explore] != best)
+                return codecs[explore];
+        }
+        return best;
+    }
+
+    /**
+     * @param compressedLength what was actually sent, so a chunk that fell back to stored counts as not compressing
+     */
+    public synchronized void recordCompression(ChunkCodec codec, int length, int compressedLength, long nanos) {
+        if (fixed != null || length == 0)
+            return;
+        int i = indexOf(codec);
+        if (i < 0)
+            return;
+        double cost = (double) nanos / length;
+        double r = (double) compressedLength / length;
+        if (sampled[i]) {
+            compressCost[i] += ALPHA * (cost - compressCost[i]);
+            ratio[i] += ALPHA * (r - ratio[i]);
+        } else {
+            compressCost[i] = cost;
+            ratio[i] = r;
+            sampled[i] = true;
+        }
+        choose();
+    }
+
+    /**
+     * @param nanos time spent blocked writing and flushing bytes to the socket
+     */
+    public synchronized void recordDrain(int bytes, long nanos) {
+        if (fixed != null || bytes == 0)
+            return;
+        drainBytes += bytes;
+        drainNanos += nanos;
+        if (drainBytes < DRAIN_SAMPLE_BYTES)
+            return;
+        double cost = (double) drainNanos / drainBytes;
+        drainBytes = 0;
+        drainNanos = 0;
+        if (drainSampled) {
+            drainCost += ALPHA * (cost - drainCost);
+        } else {
+            drainCost = cost;
+            drainSampled = true;
+        }
+        choose();
+    }
+
+    public synchronized ChunkCodec getBest() {
+        return fixed != null ? fixed : best;
+    }
+
+    private void choose() {
+        double bestCost = Double.MAX_VALUE;
+        for (int i = 0; i < codecs.length; i++) {
+            if (!sampled[i])
+                continue;
+            double compress = compressCost[i] / parallelism;
+            double wire = ratio[i] * drainCost;
+            double cost = parallelism == 1 ? compress + wire : Double.max(compress, wire);
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = codecs[i];
+            }
+        }
+    }
+
+    private int indexOf(ChunkCodec codec) {
+        for (int i = 0; i < codecs.length; i++)
+            if (codecs[i] == codec)
+                return i;
+        return -1;
+    }
+
+}
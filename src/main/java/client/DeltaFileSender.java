@@ -0,0 +1,239 @@
+package client;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import net.jpountz.xxhash.StreamingXXHash64;
+import shared.ChunkCodec;
+import shared.FileUtil;
+import shared.RollingChecksum;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Client side of the DELTA command. Slides a window the size of the server's blocks over the local file one byte at a
+ * time; wherever the rolling checksum and then the xxHash64 match one of the server's blocks a COPY instruction is sent
+ * instead of the data, everything in between goes out as ordinary compressed chunk frames.
+ */
+public class DeltaFileSender {
+
+    private final DataOutputStream networkStreamWriter;
+    private final DataInputStream networkStreamReader;
+    private final StreamingXXHash64 streamHash;
+    private final long seed;
+    // literals are cut at the agreed chunk size, the server refuses longer chunks
+    private final int chunkSize;
+    private final CodecSelector codecs;
+    private final ByteBuffer compressed;
+
+    // server's signature, blocks sharing a weak checksum are chained through nextBlock
+    private int blockSize;
+    private int[] weakHashes;
+    private long[] strongHashes;
+    private int[] nextBlock;
+    private final Map<Integer, Integer> firstBlock = new HashMap<>();
+
+    // consecutive block references are merged into a single COPY
+    private int copyStart = -1;
+    private int copyCount = 0;
+
+    private long literal_bytes = 0;
+    private long copied_bytes = 0;
+    private long compressed_bytes = 0;
+
+    public DeltaFileSender(DataOutputStream networkStreamWriter, DataInputStream networkStreamReader, long seed) {
+        this(networkStreamWriter, networkStreamReader, seed, FileUtil.DEFAULT_CHUNK_SIZE, CodecSelector.DEFAULT);
+    }
+
+    public DeltaFileSender(DataOutputStream networkStreamWriter, DataInputStream networkStreamReader, long seed, int chunkSize, CodecSelector codecs) {
+        this.networkStreamWriter = networkStreamWriter;
+        this.networkStreamReader = networkStreamReader;
+        this.streamHash = FileUtil.XX_HASH_FACTORY.newStreamingHash64(seed);
+        this.seed = seed;
+        this.chunkSize = chunkSize;
+        this.codecs = codecs;
+        this.compressed = ByteBuffer.allocate(ChunkCodec.maxCompressedLength(chunkSize));
+    }
+
+    /**
+     * @return true once the server has rebuilt the file and its stream hash matched
+     */
+    public boolean send(String path, String relativePath, Tracer trace, Span sp) throws IOException {
+        networkStreamWriter.writeByte(FileUtil.COMMAND.DELTA.type);
+        networkStreamWriter.writeUTF(relativePath);
+        networkStreamWriter.flush();
+        readSignature();
+        sp.setAttribute("Delta Block Size", blockSize);
+        sp.setAttribute("Delta Blocks", weakHashes.length);
+
+        try (InputStream file = Files.newInputStream(Paths.get(path))) {
+            scan(file);
+        }
+        flushCopy();
+        networkStreamWriter.writeByte(FileUtil.DELTA_OP.END.type);
+        networkStreamWriter.writeLong(streamHash.getValue());
+        networkStreamWriter.flush();
+        return networkStreamReader.readBoolean();
+    }
+
+    private void readSignature() throws IOException {
+        blockSize = networkStreamReader.readInt();
+        int blockCount = networkStreamReader.readInt();
+        weakHashes = new int[blockCount];
+        strongHashes = new long[blockCount];
+        nextBlock = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            weakHashes[i] = networkStreamReader.readInt();
+            strongHashes[i] = networkStreamReader.readLong();
+        }
+        // walk backwards so each chain lists the blocks in file order
+        for (int i = blockCount - 1; i >= 0; i--) {
+            Integer head = firstBlock.put(weakHashes[i], i);
+            nextBlock[i] = head == null ? -1 : head;
+        }
+    }
+
+    private void scan(InputStream file) throws IOException {
+        // room for a pending literal (< one chunk), the window, and plenty to read ahead
+        byte[] buffer = new byte[Integer.max(4 * blockSize, 4 * chunkSize)];
+        RollingChecksum rolling = new RollingChecksum(blockSize);
+        int have = 0;
+        int position = 0;
+        int literalStart = 0;
+        boolean eof = false;
+        boolean windowValid = false;
+
+        while (true) {
+            // the window and the byte after it have to be in the buffer to roll
+            if (position + blockSize >= have && !eof) {
+                System.arraycopy(buffer, literalStart, buffer, 0, have - literalStart);
+                have -= literalStart;
+                position -= literalStart;
+                literalStart = 0;
+                int read = file.readNBytes(buffer, have, buffer.length - have);
+                have += read;
+                eof = have < buffer.length;
+                continue;
+            }
+            if (position + blockSize > have || weakHashes.length == 0)
+                break;
+            if (!windowValid) {
+                rolling.reset(buffer, position);
+                windowValid = true;
+            }
+
+            int block = findBlock(rolling.getValue(), buffer, position);
+            if (block >= 0) {
+                emitLiteral(buffer, literalStart, position - literalStart);
+                emitCopy(block);
+                streamHash.update(buffer, position, blockSize);
+                position += blockSize;
+                literalStart = position;
+                windowValid = false;
+                continue;
+            }
+
+            if (position + 1 - literalStart >= chunkSize) {
+                emitLiteral(buffer, literalStart, position + 1 - literalStart);
+                literalStart = position + 1;
+            }
+            if (position + blockSize >= have)
+                break;
+            rolling.roll(buffer[position], buffer[position + blockSize]);
+            position++;
+        }
+
+        // whatever is left after the last possible window, plus the rest of the file if the server had no blocks
+        while (true) {
+            while (literalStart < have) {
+                int length = Integer.min(chunkSize, have - literalStart);
+                emitLiteral(buffer, literalStart, length);
+                literalStart += length;
+            }
+            if (eof)
+                break;
+            have = file.readNBytes(buffer, 0, buffer.length);
+            literalStart = 0;
+            eof = have < buffer.length;
+        }
+    }
+
+    private int findBlock(int weak, byte[] buffer, int position) {
+        Integer head = firstBlock.get(weak);
+        if (head == null)
+            return -1;
+        long strong = FileUtil.HASH_64.hash(buffer, position, blockSize, seed);
+        // prefer continuing the current run, it keeps runs of identical blocks in a single COPY
+        int expected = copyStart + copyCount;
+        if (copyStart >= 0 && expected < weakHashes.length && weakHashes[expected] == weak && strongHashes[expected] == strong)
+            return expected;
+        for (int block = head; block >= 0; block = nextBlock[block])
+            if (strongHashes[block] == strong)
+                return block;
+        return -1;
+    }
+
+    private void emitCopy(int block) throws IOException {
+        copied_bytes += blockSize;
+        if (copyStart >= 0 && block == copyStart + copyCount) {
+            copyCount++;
+            return;
+        }
+        flushCopy();
+        copyStart = block;
+        copyCount = 1;
+    }
+
+    private void flushCopy() throws IOException {
+        if (copyStart < 0)
+            return;
+        networkStreamWriter.writeByte(FileUtil.DELTA_OP.COPY.type);
+        networkStreamWriter.writeInt(copyStart);
+        networkStreamWriter.writeInt(copyCount);
+        copyStart = -1;
+        copyCount = 0;
+    }
+
+    private void emitLiteral(byte[] data, int offset, int length) throws IOException {
+        if (length == 0)
+            return;
+        flushCopy();
+        streamHash.update(data, offset, length);
+        long hash = FileUtil.HASH_64.hash(data, offset, length, seed);
+        ByteBuffer input = ByteBuffer.wrap(data, offset, length).slice();
+        ChunkCodec codec = codecs.next();
+        long start = System.nanoTime();
+        int compressedLength = ChunkedCompressedChecksumFileWriter.compress(codec, input, length, compressed);
+        codecs.recordCompression(codec, length, compressedLength, System.nanoTime() - start);
+        if (compressedLength == length)
+            codec = ChunkCodec.STORED;
+        literal_bytes += length;
+        compressed_bytes += compressedLength;
+
+        networkStreamWriter.writeByte(FileUtil.DELTA_OP.LITERAL.type);
+        start = System.nanoTime();
+        ChunkedCompressedChecksumFileWriter.writeFrame(networkStreamWriter, length, compressedLength, codec, hash,
+                codec == ChunkCodec.STORED ? input : compressed);
+        codecs.recordDrain(compressedLength, System.nanoTime() - start);
+    }
+
+    public long getLiteralBytes() {
+        return literal_bytes;
+    }
+
+    public long getCopiedBytes() {
+        return copied_bytes;
+    }
+
+    public long getCompressedBytes() {
+        return compressed_bytes;
+    }
+
+}
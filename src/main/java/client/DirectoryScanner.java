@@ -0,0 +1,216 @@
+package client;
+
+import shared.ExceptionLogger;
+import shared.FileUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Walks a directory tree on a fork join pool, one task per directory, and hands every regular file to the sender as
+ * soon as it is found, so the first files are on the wire long before the walk of a big tree finishes. Files waiting to
+ * be sent are ordered according to {@link Order} among whatever has been discovered so far.
+ * <p>
+ * Directory symlinks are not followed so a link back up the tree can't make the walk go round forever, file symlinks
+ * are sent as the file they point to.
+ */
+public class DirectoryScanner implements AutoCloseable {
+
+    public enum Order {
+        // the order the walk finds them in, like the old breadth first walk
+        DISCOVERY,
+        // biggest first, the long transfers start early and the small ones fill in at the end
+        LARGEST_FIRST,
+        // alternate between the biggest and the smallest waiting file
+        MIXED
+    }
+
+    // how much of an upcoming file is read ahead while the current one is being sent
+    private static final int PREFETCH_BYTES = 4 * FileUtil.DEFAULT_CHUNK_SIZE;
+
+    private final Path root;
+    private final Order order;
+    private final ForkJoinPool walkers;
+    private final ExecutorService prefetcher;
+    private final TreeSet<ScannedFile> waiting;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong files_found = new AtomicLong();
+    private final AtomicLong bytes_found = new AtomicLong();
+
+    private boolean walkDone = false;
+    private boolean takeLargest = true;
+
+    /**
+     * @param threads how many directories are listed at once, the walk is mostly waiting on the disk so more threads
+     *                than cores is fine
+     */
+    public DirectoryScanner(Path root, Order order, int threads) {
+        this.root = root;
+        this.order = order;
+        this.walkers = new ForkJoinPool(threads);
+        this.prefetcher = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "File Prefetcher");
+            t.setDaemon(true);
+            return t;
+        });
+        Comparator<ScannedFile> bySequence = Comparator.comparingLong(f -> f.sequence);
+        this.waiting = new TreeSet<>(order == Order.DISCOVERY ? bySequence
+                : Comparator.<ScannedFile>comparingLong(f -> f.size).thenComparing(bySequence));
+    }
+
+    public DirectoryScanner start() {
+        if (!Files.isDirectory(root))
+            throw new FileUtil.InvalidUsageException("Path is not a directory unable to scan! Did you mean sendFile()?");
+        walkers.execute(() -> {
+            try {
+                walkers.invoke(new Walk(root));
+            } finally {
+                synchronized (this) {
+                    walkDone = true;
+                    notifyAll();
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Blocks until a file is available.
+     *
+     * @return the next file to send, or null once the walk is over and everything has been handed out
+     */
+    public synchronized ScannedFile next() throws InterruptedException {
+        while (waiting.isEmpty() && !walkDone)
+            wait();
+        return take();
+    }
+
+    /**
+     * @return the next file to send if one has been found already, null otherwise
+     */
+    public synchronized ScannedFile poll() {
+        return take();
+    }
+
+    /**
+     * Reads the first chunks of file in the background so they are in the page cache by the time the sender opens it.
+     * For the many small files of a big tree that is the whole file.
+     */
+    public void prefetch(ScannedFile file) {
+        prefetcher.execute(() -> {
+            ByteBuffer buffer = FileUtil.BUFFER_POOL.acquire(PREFETCH_BYTES);
+            try (FileChannel channel = FileChannel.open(file.path, StandardOpenOption.READ)) {
+                buffer.limit((int) Long.min(PREFETCH_BYTES, file.size));
+                while (buffer.hasRemaining())
+                    if (channel.read(buffer) < 0)
+                        break;
+            } catch (IOException e) {
+                // the sender will run into the same problem and report it
+            } finally {
+                FileUtil.BUFFER_POOL.release(buffer);
+            }
+        });
+    }
+
+    public long getFilesFound() {
+        return files_found.get();
+    }
+
+    public long getBytesFound() {
+        return bytes_found.get();
+    }
+
+    @Override
+    public void close() {
+        walkers.shutdownNow();
+        prefetcher.shutdownNow();
+    }
+
+    private ScannedFile take() {
+        if (waiting.isEmpty())
+            return null;
+        switch (order) {
+            case LARGEST_FIRST:
+                return waiting.pollLast();
+            case MIXED:
+                takeLargest = !takeLargest;
+                return takeLargest ? waiting.pollFirst() : waiting.pollLast();
+            default:
+                return waiting.pollFirst();
+        }
+    }
+
+    private synchronized void found(Path path, long size) {
+        waiting.add(new ScannedFile(path, size, sequence.getAndIncrement()));
+        files_found.incrementAndGet();
+        bytes_found.addAndGet(size);
+        notifyAll();
+    }
+
+    private class Walk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+
+        private Walk(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            List<Walk> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isSymbolicLink() && Files.isRegularFile(entry))
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    if (attributes.isDirectory())
+                        subdirectories.add(new Walk(entry));
+                    else if (attributes.isRegularFile())
+                        found(entry, attributes.size());
+                }
+            } catch (IOException e) {
+                // one unreadable directory shouldn't stop the rest of the tree from going out
+                ExceptionLogger.log(e);
+            }
+            invokeAll(subdirectories);
+        }
+    }
+
+    public static class ScannedFile {
+        private final Path path;
+        private final long size;
+        private final long sequence;
+
+        private ScannedFile(Path path, long size, long sequence) {
+            this.path = path;
+            this.size = size;
+            this.sequence = sequence;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+}
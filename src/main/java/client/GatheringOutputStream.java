@@ -0,0 +1,117 @@
+package client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Output stage for a blocking socket channel. Everything written, frame headers and payloads alike, is packed into a
+ * handful of direct buffers which go out together in one gathering write once they hold {@link #DEFAULT_FLUSH_BYTES},
+ * or once the oldest unsent byte has waited {@link #DEFAULT_FLUSH_NANOS}. The writers no longer flush after every chunk,
+ * so a 64 KB frame doesn't cost its own syscall and TCP segment.
+ * <p>
+ * {@link #flush()} still sends everything straight away, for the places that wait on an answer from the server.
+ */
+public class GatheringOutputStream extends OutputStream {
+
+    public static final int DEFAULT_FLUSH_BYTES = 1024 * 1024;
+    public static final long DEFAULT_FLUSH_NANOS = 2_000_000;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final GatheringByteChannel channel;
+    private final long flushNanos;
+    private final ByteBuffer[] buffers;
+    private int current = 0;
+    // nanoTime of the oldest byte that hasn't been sent yet, 0 when there is none
+    private long pendingSince = 0;
+
+    private long writes = 0;
+    private long bytes_written = 0;
+
+    public GatheringOutputStream(GatheringByteChannel channel) {
+        this(channel, DEFAULT_FLUSH_BYTES, DEFAULT_FLUSH_NANOS);
+    }
+
+    /**
+     * @param flushBytes send once this much is waiting, rounded up to whole 256 KB buffers
+     * @param flushNanos send once the oldest waiting byte is this old, checked whenever something is written
+     */
+    public GatheringOutputStream(GatheringByteChannel channel, int flushBytes, long flushNanos) {
+        this.channel = channel;
+        this.flushNanos = flushNanos;
+        this.buffers = new ByteBuffer[Integer.max(1, (flushBytes + BUFFER_SIZE - 1) / BUFFER_SIZE)];
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffers[current].hasRemaining())
+            next();
+        buffers[current].put((byte) b);
+        written();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buffers[current].hasRemaining())
+                next();
+            int amount = Integer.min(len, buffers[current].remaining());
+            buffers[current].put(b, off, amount);
+            off += amount;
+            len -= amount;
+        }
+        written();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (current == 0 && buffers[0].position() == 0) {
+            pendingSince = 0;
+            return;
+        }
+        int used = current + 1;
+        for (int i = 0; i < used; i++)
+            buffers[i].flip();
+        while (buffers[current].hasRemaining()) {
+            bytes_written += channel.write(buffers, 0, used);
+            writes++;
+        }
+        for (int i = 0; i < used; i++)
+            buffers[i].clear();
+        current = 0;
+        pendingSince = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    public long getWrites() {
+        return writes;
+    }
+
+    public long getBytesWritten() {
+        return bytes_written;
+    }
+
+    private void next() throws IOException {
+        if (current + 1 < buffers.length)
+            current++;
+        else
+            flush();
+    }
+
+    private void written() throws IOException {
+        long now = System.nanoTime();
+        if (pendingSince == 0)
+            pendingSince = now;
+        else if (now - pendingSince >= flushNanos)
+            flush();
+    }
+
+}
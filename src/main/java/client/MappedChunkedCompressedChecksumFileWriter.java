@@ -0,0 +1,198 @@
+package client;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import shared.ChunkCodec;
+import shared.FileUtil;
+import shared.Metrics;
+import shared.XXHash64Stream;
+import shared.ZeroRuns;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Variant of {@link ChunkedCompressedChecksumFileWriter} that reads the file through {@link FileChannel#map} instead of
+ * a stream. The file is mapped a window at a time and every chunk is hashed and compressed straight out of the page
+ * cache, which saves the read into a heap buffer; the compressor's output is then copied once more into the
+ * {@link GatheringOutputStream}'s direct buffers by the frame write. A chunk that doesn't compress is copied out of the
+ * mapping into the compression buffer first, so it takes two copies. Positions are longs throughout, so files over
+ * 2 GB are fine.
+ * <p>
+ * The frames and the stream hash are the same as the stream based writer's, the server can't tell them apart.
+ */
+public class MappedChunkedCompressedChecksumFileWriter {
+
+    // a chunk that would straddle the end of a window starts the next one instead, so no chunk spans two mappings
+    private static final long WINDOW_BYTES = 64 * 1024 * 1024;
+
+    private final DataOutputStream networkStreamWriter;
+    private final FileChannel channel;
+    private final long fileLength;
+    private final ChunkSizer sizer;
+    private final long windowSize;
+    private final long seed;
+    private final CodecSelector codecs;
+    private final XXHash64Stream streamHash;
+    private ByteBuffer compressed;
+
+    private MappedByteBuffer window = null;
+    private long windowStart = 0;
+    private long position;
+    private Span windowSpan = null;
+    private boolean zeroRuns = false;
+    private long pendingZeros = 0;
+
+    private long uncompressed_bytes = 0;
+    private long compressed_bytes = 0;
+    private long zero_bytes = 0;
+
+    public MappedChunkedCompressedChecksumFileWriter(DataOutputStream networkStreamWriter, FileChannel channel, int bufferSize, long seed,
+                                                     CodecSelector codecs) throws IOException {
+        this(networkStreamWriter, channel, ChunkSizer.fixed(bufferSize), seed, codecs);
+    }
+
+    public MappedChunkedCompressedChecksumFileWriter(DataOutputStream networkStreamWriter, FileChannel channel, ChunkSizer sizer, long seed,
+                                                     CodecSelector codecs) throws IOException {
+        this.networkStreamWriter = networkStreamWriter;
+        this.channel = channel;
+        this.fileLength = channel.size();
+        this.position = 0;
+        this.sizer = sizer;
+        this.windowSize = Long.max(WINDOW_BYTES, sizer.getMax());
+        this.seed = seed;
+        this.streamHash = new XXHash64Stream(seed);
+        this.codecs = codecs;
+        this.compressed = FileUtil.BUFFER_POOL.acquire(ChunkCodec.maxCompressedLength(sizer.getSize()));
+    }
+
+    public boolean hasRemaining() {
+        return position < fileLength;
+    }
+
+    public void processChunk(Tracer trace) throws IOException {
+        if (!hasRemaining())
+            return;
+        int length = (int) Long.min(sizer.next(), fileLength - position);
+        if (window == null || position + length > windowStart + window.capacity())
+            mapNextWindow(trace);
+        compressed = FileUtil.BUFFER_POOL.ensureCapacity(compressed, ChunkCodec.maxCompressedLength(length));
+
+        int offset = (int) (position - windowStart);
+
+        // the holes of a sparse file map to the shared zero page, so checking them doesn't even read the disk
+        if (zeroRuns && ZeroRuns.isZero(window, offset, length)) {
+            streamHash.update(window, offset, length);
+            if (pendingZeros + length > ZeroRuns.MAX_RUN)
+                flushZeros();
+            pendingZeros += length;
+            uncompressed_bytes += length;
+            zero_bytes += length;
+            position += length;
+            return;
+        }
+
+        // reading the file happens inside the hash, when it touches pages that aren't cached yet
+        long start = System.nanoTime();
+        long hash = FileUtil.HASH_64.hash(window, offset, length, seed);
+        streamHash.update(window, offset, length);
+        long hashed = System.nanoTime();
+        Metrics.record(Metrics.Stage.HASH, hashed - start, length);
+
+        ChunkCodec codec = codecs.next();
+        int compressedLength = ChunkedCompressedChecksumFileWriter.compress(codec, window, offset, length, compressed);
+        long compressNanos = System.nanoTime() - hashed;
+        codecs.recordCompression(codec, length, compressedLength, compressNanos);
+        sizer.recordCompression(length, compressNanos);
+        Metrics.record(Metrics.Stage.COMPRESS, compressNanos, length);
+        if (compressedLength == length) {
+            codec = ChunkCodec.STORED;
+            compressed.clear();
+            compressed.put(window.duplicate().position(offset).limit(offset + length));
+        }
+        uncompressed_bytes += length;
+        compressed_bytes += compressedLength;
+        position += length;
+
+        flushZeros();
+        start = System.nanoTime();
+        ChunkedCompressedChecksumFileWriter.writeFrame(networkStreamWriter, length, compressedLength, codec, hash, compressed);
+        long drainNanos = System.nanoTime() - start;
+        codecs.recordDrain(compressedLength, drainNanos);
+        sizer.recordDrain(length, drainNanos);
+        Metrics.record(Metrics.Stage.SOCKET_WRITE, drainNanos, compressedLength);
+    }
+
+    /**
+     * See {@link ChunkedCompressedChecksumFileWriter#setZeroRuns}.
+     */
+    public void setZeroRuns(boolean zeroRuns) {
+        this.zeroRuns = zeroRuns;
+    }
+
+    public void close() throws IOException {
+        flushZeros();
+        networkStreamWriter.writeInt(0);
+        networkStreamWriter.writeLong(streamHash.getValue());
+        networkStreamWriter.flush();
+        FileUtil.BUFFER_POOL.release(compressed);
+        compressed = null;
+        endWindowSpan();
+        // there's no supported way to unmap, the last window goes when the collector gets to it
+        window = null;
+    }
+
+    private void flushZeros() throws IOException {
+        if (pendingZeros == 0)
+            return;
+        ChunkedCompressedChecksumFileWriter.writeZeroRun(networkStreamWriter, (int) pendingZeros);
+        pendingZeros = 0;
+    }
+
+    private void mapNextWindow(Tracer trace) throws IOException {
+        endWindowSpan();
+        windowStart = position;
+        long length = Long.min(windowSize, fileLength - windowStart);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, length);
+        // XXH64 reads little endian words, matching the order saves a duplicate on every update
+        window.order(ByteOrder.LITTLE_ENDIAN);
+        windowSpan = trace.spanBuilder("Mapped Window").setAttribute("Window Offset", windowStart)
+                .setAttribute("Window Length", length).startSpan();
+    }
+
+    private void endWindowSpan() {
+        if (windowSpan == null)
+            return;
+        windowSpan.setStatus(StatusCode.OK);
+        windowSpan.end();
+        windowSpan = null;
+    }
+
+    public long getStreamHash() {
+        return streamHash.getValue();
+    }
+
+    public long getCompressedBytes() {
+        return compressed_bytes;
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressed_bytes;
+    }
+
+    public long getZeroBytes() {
+        return zero_bytes;
+    }
+
+    public double getRatio() {
+        if (compressed_bytes == 0)
+            return 0;
+        return (double) uncompressed_bytes / (double) compressed_bytes;
+    }
+
+}
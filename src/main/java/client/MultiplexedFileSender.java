@@ -0,0 +1,166 @@
+package client;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import shared.ExceptionLogger;
+import shared.FileUtil;
+import shared.Handshake;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Sends several files over one connection at once, so a small file doesn't have to wait behind a huge one.
+ * <p>
+ * Every file gets a stream: a STREAM_OPEN command with the stream id and the path opens it, then its chunk frames go out
+ * as STREAM_CHUNK commands, each the stream id followed by an ordinary chunk frame. The zero end of file frame and the
+ * stream hash after it close the stream. Up to maxStreams files are open at a time and get one chunk each in turn, when
+ * one finishes the next file waiting takes its place. With every stream sending chunks of the same size that splits the
+ * connection evenly between them.
+ */
+public class MultiplexedFileSender {
+
+    private final DataOutputStream out;
+    private final Tracer trace;
+    private final Handshake session;
+    private final boolean adaptive;
+    private final int chunkSize;
+    private final boolean autoChunkSize;
+    private final int maxStreams;
+    private final ArrayDeque<String> waiting = new ArrayDeque<>();
+    private final List<Stream> open = new ArrayList<>();
+    private int nextId = 0;
+
+    /**
+     * @param maxStreams how many files may be on the wire at once
+     */
+    public MultiplexedFileSender(DataOutputStream out, Tracer trace, Handshake session, boolean adaptive, int chunkSize, boolean autoChunkSize, int maxStreams) {
+        if (maxStreams < 1)
+            throw new FileUtil.InvalidUsageException("Need at least one stream!");
+        this.out = out;
+        this.trace = trace;
+        this.session = session;
+        this.adaptive = adaptive;
+        this.chunkSize = chunkSize;
+        this.autoChunkSize = autoChunkSize;
+        this.maxStreams = maxStreams;
+    }
+
+    public MultiplexedFileSender add(String path) {
+        File file = new File(path);
+        if (!file.exists())
+            throw new FileUtil.InvalidUsageException("Unable to send a file which doesn't exist!");
+        if (file.isDirectory())
+            throw new FileUtil.InvalidUsageException("Path is a directory unable to send! Did you mean sendDir()?");
+        waiting.add(path);
+        return this;
+    }
+
+    /**
+     * Sends every file added so far. A file that fails to open is logged and skipped, a failure on the socket ends the
+     * whole send since the server can't make sense of the connection after it.
+     */
+    public void sendAll() throws IOException {
+        try {
+            fill();
+            while (!open.isEmpty()) {
+                Iterator<Stream> streams = open.iterator();
+                while (streams.hasNext()) {
+                    Stream stream = streams.next();
+                    if (stream.fileReader.available() > 0)
+                        stream.writer.processChunk(trace);
+                    if (stream.fileReader.available() == 0) {
+                        stream.finish();
+                        streams.remove();
+                    }
+                }
+                fill();
+            }
+        } finally {
+            for (Stream stream : open)
+                stream.abort();
+            open.clear();
+        }
+    }
+
+    private void fill() throws IOException {
+        while (open.size() < maxStreams && !waiting.isEmpty()) {
+            String path = waiting.poll();
+            DataInputStream fileReader;
+            try {
+                fileReader = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(path))));
+            } catch (IOException e) {
+                ExceptionLogger.log(e);
+                continue;
+            }
+            int id = nextId++;
+            out.writeByte(FileUtil.COMMAND.STREAM_OPEN.type);
+            out.writeInt(id);
+            out.writeUTF(path.replace(System.getProperty("user.dir"), ""));
+
+            CodecSelector codecs = CodecSelector.of(session, adaptive, 1);
+            ChunkSizer sizer = ChunkSizer.of(session, chunkSize, autoChunkSize, 1);
+            ChunkedCompressedChecksumFileWriter writer = new ChunkedCompressedChecksumFileWriter(out, fileReader, sizer, session.getSeed(),
+                    FileUtil.XX_HASH_FACTORY.newStreamingHash64(session.getSeed()), codecs);
+            writer.setStreamId(id);
+            writer.setZeroRuns(session.supportsZeroRuns());
+            // not made current, the files interleave
+            Span span = trace.spanBuilder("Send File").setAttribute("File", path).setAttribute("Stream", id).startSpan();
+            System.out.println("Sending path " + path + " as stream " + id);
+            open.add(new Stream(path, fileReader, writer, codecs, sizer, span));
+        }
+    }
+
+    private static class Stream {
+        private final String path;
+        private final DataInputStream fileReader;
+        private final ChunkedCompressedChecksumFileWriter writer;
+        private final CodecSelector codecs;
+        private final ChunkSizer sizer;
+        private final Span span;
+
+        private Stream(String path, DataInputStream fileReader, ChunkedCompressedChecksumFileWriter writer, CodecSelector codecs, ChunkSizer sizer, Span span) {
+            this.path = path;
+            this.fileReader = fileReader;
+            this.writer = writer;
+            this.codecs = codecs;
+            this.sizer = sizer;
+            this.span = span;
+        }
+
+        private void finish() throws IOException {
+            writer.close();
+            fileReader.close();
+            span.setAttribute("Data Read Uncompressed Bytes", writer.getUncompressedBytes());
+            span.setAttribute("Data Read Compressed Bytes", writer.getCompressedBytes());
+            span.setAttribute("Data Compression Ratio", writer.getRatio());
+            span.setAttribute("Zero Bytes Elided", writer.getZeroBytes());
+            span.setAttribute("Codec", codecs.getBest().name());
+            span.setAttribute("Chunk Size", sizer.getSize());
+            span.setStatus(StatusCode.OK);
+            span.end();
+            System.out.println("Sent path " + path);
+        }
+
+        private void abort() {
+            try {
+                fileReader.close();
+            } catch (IOException e) {
+                ExceptionLogger.log(e);
+            }
+            span.setStatus(StatusCode.ERROR);
+            span.end();
+        }
+    }
+
+}
@@ -0,0 +1,315 @@
+package client;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Scope;
+import net.jpountz.xxhash.StreamingXXHash64;
+import shared.BufferPool;
+import shared.ChunkCodec;
+import shared.FileUtil;
+import shared.Metrics;
+import shared.ZeroRuns;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+
+/**
+ * Multi-core variant of {@link ChunkedCompressedChecksumFileWriter}.
+ * <p>
+ * A reader thread pulls chunks off the file, a pool of workers hashes and compresses them in parallel and the calling
+ * thread emits the finished frames in their original order. The frames and the stream hash are identical to what the
+ * single threaded writer would have sent, so the server side does not know the difference. Chunk buffers come from
+ * {@link FileUtil#BUFFER_POOL} and go back to it once the emitter has written them.
+ */
+public class PipelinedChunkedCompressedChecksumFileWriter {
+
+    private static final Future<CompressedChunk> END_OF_FILE = CompletableFuture.completedFuture(null);
+
+    private final DataOutputStream networkStreamWriter;
+    private final StreamingXXHash64 streamHash;
+    private final DataInputStream fileInputReader;
+    private final ExecutorService workers;
+    private final ChunkSizer sizer;
+    private final int parallelism;
+    private final long seed;
+    private final CodecSelector codecs;
+    private boolean zeroRuns = false;
+    private long pendingZeros = 0;
+
+    private long uncompressed_bytes = 0;
+    private long compressed_bytes = 0;
+    private long zero_bytes = 0;
+
+    public PipelinedChunkedCompressedChecksumFileWriter(DataOutputStream networkStreamWriter, DataInputStream fileInputReader, ExecutorService workers,
+                                                        int parallelism, int bufferSize, long seed) {
+        this(networkStreamWriter, fileInputReader, workers, parallelism, bufferSize, seed, CodecSelector.DEFAULT);
+    }
+
+    public PipelinedChunkedCompressedChecksumFileWriter(DataOutputStream networkStreamWriter, DataInputStream fileInputReader, ExecutorService workers,
+                                                        int parallelism, int bufferSize, long seed, CodecSelector codecs) {
+        this(networkStreamWriter, fileInputReader, workers, parallelism, ChunkSizer.fixed(bufferSize), seed, codecs);
+    }
+
+    /**
+     * @param sizer picks the length of every chunk as the reader thread takes it off the file, see {@link ChunkSizer}
+     */
+    public PipelinedChunkedCompressedChecksumFileWriter(DataOutputStream networkStreamWriter, DataInputStream fileInputReader, ExecutorService workers,
+                                                        int parallelism, ChunkSizer sizer, long seed, CodecSelector codecs) {
+        if (parallelism < 1)
+            throw new FileUtil.InvalidUsageException("Parallelism must be at least 1!");
+        this.networkStreamWriter = networkStreamWriter;
+        this.streamHash = FileUtil.XX_HASH_FACTORY.newStreamingHash64(seed);
+        this.fileInputReader = fileInputReader;
+        this.workers = workers;
+        this.parallelism = parallelism;
+        this.sizer = sizer;
+        this.seed = seed;
+        this.codecs = codecs;
+    }
+
+    public void writeAll(Tracer trace) throws IOException {
+        Span span = trace.spanBuilder("Pipelined Chunk Write").setAttribute("Parallelism", parallelism).startSpan();
+        // twice the parallelism keeps the workers busy while the emitter is blocked on the socket
+        BlockingQueue<Future<CompressedChunk>> inFlight = new ArrayBlockingQueue<>(parallelism * 2);
+        Thread reader = new Thread(() -> readStage(inFlight), "Chunk Reader");
+        reader.setDaemon(true);
+        try (Scope scope = span.makeCurrent()) {
+            reader.start();
+            long chunks = 0;
+            while (true) {
+                CompressedChunk chunk = take(inFlight);
+                if (chunk == null)
+                    break;
+                emit(chunk);
+                chunks++;
+            }
+            span.setAttribute("Chunks", chunks);
+            span.setStatus(StatusCode.OK);
+        } catch (IOException | RuntimeException e) {
+            span.recordException(e);
+            span.setStatus(StatusCode.ERROR);
+            reader.interrupt();
+            drain(reader, inFlight);
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * See {@link ChunkedCompressedChecksumFileWriter#setZeroRuns}, set before {@link #writeAll}.
+     */
+    public void setZeroRuns(boolean zeroRuns) {
+        this.zeroRuns = zeroRuns;
+    }
+
+    public void close() throws IOException {
+        flushZeros();
+        networkStreamWriter.writeInt(0);
+        networkStreamWriter.writeLong(streamHash.getValue());
+        networkStreamWriter.flush();
+    }
+
+    private void readStage(BlockingQueue<Future<CompressedChunk>> inFlight) {
+        BufferPool pool = FileUtil.BUFFER_POOL;
+        // a chunk read but not yet handed to a worker, the reader still owns its buffer
+        ByteBuffer pending = null;
+        Future<CompressedChunk> queued = null;
+        try {
+            while (true) {
+                int size = sizer.next();
+                ByteBuffer uncompressed = pending = pool.acquire(size);
+                long start = System.nanoTime();
+                int length = readSome(uncompressed, size);
+                if (length == 0)
+                    break;
+                Metrics.record(Metrics.Stage.READ, System.nanoTime() - start, length);
+                // nothing to hash or compress, it still has to queue up behind the chunks before it
+                if (zeroRuns && ZeroRuns.isZero(uncompressed.array(), uncompressed.arrayOffset(), length))
+                    queued = CompletableFuture.completedFuture(new CompressedChunk(uncompressed, length, null, 0, null, 0));
+                else
+                    queued = workers.submit(() -> process(uncompressed, length));
+                pending = null;
+                inFlight.put(queued);
+                queued = null;
+            }
+            pool.release(pending);
+            pending = null;
+            inFlight.put(END_OF_FILE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            // RejectedExecutionException once the client has shut its workers down, among others
+            CompletableFuture<CompressedChunk> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            try {
+                inFlight.put(failed);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            if (pending != null)
+                pool.release(pending);
+            if (queued != null)
+                release(queued);
+        }
+    }
+
+    private CompressedChunk process(ByteBuffer uncompressed, int length) {
+        ByteBuffer compressed = null;
+        try {
+            long start = System.nanoTime();
+            long hash = FileUtil.HASH_64.hash(uncompressed, 0, length, seed);
+            long hashed = System.nanoTime();
+            Metrics.record(Metrics.Stage.HASH, hashed - start, length);
+            compressed = FileUtil.BUFFER_POOL.acquire(ChunkCodec.maxCompressedLength(length));
+            ChunkCodec codec = codecs.next();
+            int compressedLength = ChunkedCompressedChecksumFileWriter.compress(codec, uncompressed, length, compressed);
+            long compressNanos = System.nanoTime() - hashed;
+            codecs.recordCompression(codec, length, compressedLength, compressNanos);
+            sizer.recordCompression(length, compressNanos);
+            Metrics.record(Metrics.Stage.COMPRESS, compressNanos, length);
+            if (compressedLength == length)
+                codec = ChunkCodec.STORED;
+            return new CompressedChunk(uncompressed, length, compressed, compressedLength, codec, hash);
+        } catch (RuntimeException e) {
+            FileUtil.BUFFER_POOL.release(uncompressed);
+            if (compressed != null)
+                FileUtil.BUFFER_POOL.release(compressed);
+            throw e;
+        }
+    }
+
+    /**
+     * After a failure, waits for the reader to stop and gives the buffers of every chunk still in flight back to the
+     * pool.
+     */
+    private static void drain(Thread reader, BlockingQueue<Future<CompressedChunk>> inFlight) {
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Future<CompressedChunk> chunk; (chunk = inFlight.poll()) != null; )
+            release(chunk);
+    }
+
+    private static void release(Future<CompressedChunk> future) {
+        CompressedChunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException | CancellationException e) {
+            // a failed chunk has given its buffers back already
+            return;
+        }
+        if (chunk != null)
+            chunk.release();
+    }
+
+    private CompressedChunk take(BlockingQueue<Future<CompressedChunk>> inFlight) throws IOException {
+        try {
+            return inFlight.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting on a compressed chunk", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void emit(CompressedChunk chunk) throws IOException {
+        try {
+            send(chunk);
+        } finally {
+            chunk.release();
+        }
+    }
+
+    private void send(CompressedChunk chunk) throws IOException {
+        // the stream hash has to see the chunks in file order, so it is the one thing the workers can't do
+        streamHash.update(chunk.uncompressed.array(), chunk.uncompressed.arrayOffset(), chunk.length);
+        uncompressed_bytes += chunk.length;
+        compressed_bytes += chunk.compressedLength;
+
+        if (chunk.codec == null) {
+            if (pendingZeros + chunk.length > ZeroRuns.MAX_RUN)
+                flushZeros();
+            pendingZeros += chunk.length;
+            zero_bytes += chunk.length;
+            return;
+        }
+        flushZeros();
+
+        ByteBuffer payload = chunk.codec == ChunkCodec.STORED ? chunk.uncompressed : chunk.compressed;
+        long start = System.nanoTime();
+        ChunkedCompressedChecksumFileWriter.writeFrame(networkStreamWriter, chunk.length, chunk.compressedLength, chunk.codec, chunk.hash, payload);
+        long drainNanos = System.nanoTime() - start;
+        codecs.recordDrain(chunk.compressedLength, drainNanos);
+        sizer.recordDrain(chunk.length, drainNanos);
+        Metrics.record(Metrics.Stage.SOCKET_WRITE, drainNanos, chunk.compressedLength);
+    }
+
+    private void flushZeros() throws IOException {
+        if (pendingZeros == 0)
+            return;
+        ChunkedCompressedChecksumFileWriter.writeZeroRun(networkStreamWriter, (int) pendingZeros);
+        pendingZeros = 0;
+    }
+
+    private int readSome(ByteBuffer buffer, int size) throws IOException {
+        return fileInputReader.readNBytes(buffer.array(), buffer.arrayOffset(), size);
+    }
+
+    public long getCompressedBytes() {
+        return compressed_bytes;
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressed_bytes;
+    }
+
+    public long getZeroBytes() {
+        return zero_bytes;
+    }
+
+    public double getRatio() {
+        if (compressed_bytes == 0)
+            return 0;
+        return (double) uncompressed_bytes / (double) compressed_bytes;
+    }
+
+    private static class CompressedChunk {
+        private final ByteBuffer uncompressed;
+        private final int length;
+        private final ByteBuffer compressed;
+        private final int compressedLength;
+        // null for a chunk of zeros
+        private final ChunkCodec codec;
+        private final long hash;
+
+        private CompressedChunk(ByteBuffer uncompressed, int length, ByteBuffer compressed, int compressedLength, ChunkCodec codec, long hash) {
+            this.uncompressed = uncompressed;
+            this.length = length;
+            this.compressed = compressed;
+            this.compressedLength = compressedLength;
+            this.codec = codec;
+            this.hash = hash;
+        }
+
+        private void release() {
+            FileUtil.BUFFER_POOL.release(uncompressed);
+            if (compressed != null)
+                FileUtil.BUFFER_POOL.release(compressed);
+        }
+    }
+
+}
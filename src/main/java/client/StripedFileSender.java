@@ -0,0 +1,164 @@
+package client;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+import shared.FileUtil;
+import shared.Handshake;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Client side of a striped transfer. The file is cut into one byte range per connection, each range goes out as a
+ * STRIPE command with the normal chunk framing, and once every range is on the wire the first connection sends
+ * STRIPE_COMMIT with the whole file hash (see {@link FileUtil#combineRangeHashes}) and waits for the server's verdict.
+ */
+public class StripedFileSender {
+
+    private final DataOutputStream[] connections;
+    private final DataInputStream commitReader;
+    private final int bufferSize;
+    private final long seed;
+    private final Handshake session;
+    private final boolean adaptive;
+
+    private long uncompressed_bytes = 0;
+    private long compressed_bytes = 0;
+
+    /**
+     * @param connections  one output per stripe, the first one also carries the commit
+     * @param commitReader input of the first connection, the server answers the commit on it
+     */
+    public StripedFileSender(DataOutputStream[] connections, DataInputStream commitReader, int bufferSize, long seed) {
+        this(connections, commitReader, bufferSize, seed, Handshake.DEFAULT, false);
+    }
+
+    /**
+     * @param session  what every one of the connections agreed on with the server
+     * @param adaptive give every stripe its own adaptive {@link CodecSelector}, each one drains into its own socket
+     */
+    public StripedFileSender(DataOutputStream[] connections, DataInputStream commitReader, Handshake session, boolean adaptive) {
+        this(connections, commitReader, session.getChunkSize(), session.getSeed(), session, adaptive);
+    }
+
+    private StripedFileSender(DataOutputStream[] connections, DataInputStream commitReader, int bufferSize, long seed, Handshake session, boolean adaptive) {
+        if (connections.length < 1)
+            throw new FileUtil.InvalidUsageException("Striping needs at least one connection!");
+        this.connections = connections;
+        this.commitReader = commitReader;
+        this.bufferSize = bufferSize;
+        this.seed = seed;
+        this.session = session;
+        this.adaptive = adaptive;
+    }
+
+    public boolean send(String path, String relativePath, Tracer trace) throws IOException {
+        long fileLength = Files.size(Paths.get(path));
+        long chunks = Long.max(1, (fileLength + bufferSize - 1) / bufferSize);
+        int stripes = (int) Long.min(connections.length, chunks);
+        // ranges are whole chunks so each writer can just read bufferSize at a time without running into the next range
+        long stripeLength = (chunks + stripes - 1) / stripes * bufferSize;
+        long transferId = ThreadLocalRandom.current().nextLong();
+
+        long[] rangeHashes = new long[stripes];
+        ExecutorService senders = Executors.newFixedThreadPool(stripes, r -> {
+            Thread t = new Thread(r, "Stripe Sender");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<ChunkedCompressedChecksumFileWriter>> results = new ArrayList<>();
+            Context context = Context.current();
+            for (int i = 0; i < stripes; i++) {
+                int index = i;
+                long offset = index * stripeLength;
+                long length = Long.min(stripeLength, fileLength - offset);
+                results.add(senders.submit(context.wrap(() -> sendStripe(path, relativePath, trace, transferId, fileLength, stripes, index, offset, length))));
+            }
+            for (int i = 0; i < stripes; i++) {
+                ChunkedCompressedChecksumFileWriter writer = results.get(i).get();
+                rangeHashes[i] = writer.getStreamHash();
+                uncompressed_bytes += writer.getUncompressedBytes();
+                compressed_bytes += writer.getCompressedBytes();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending stripes", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            senders.shutdown();
+        }
+
+        DataOutputStream commitWriter = connections[0];
+        commitWriter.writeByte(FileUtil.COMMAND.STRIPE_COMMIT.type);
+        commitWriter.writeLong(transferId);
+        commitWriter.writeLong(FileUtil.combineRangeHashes(rangeHashes));
+        commitWriter.flush();
+        return commitReader.readBoolean();
+    }
+
+    private ChunkedCompressedChecksumFileWriter sendStripe(String path, String relativePath, Tracer trace, long transferId, long fileLength,
+                                                           int stripes, int index, long offset, long length) throws IOException {
+        Span span = trace.spanBuilder("Send Stripe").setAttribute("Stripe", index).setAttribute("Stripe Offset", offset)
+                .setAttribute("Stripe Length", length).startSpan();
+        DataOutputStream out = connections[index];
+        try (Scope scope = span.makeCurrent();
+             FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            channel.position(offset);
+            DataInputStream fileReader = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+
+            out.writeByte(FileUtil.COMMAND.STRIPE.type);
+            out.writeUTF(relativePath);
+            out.writeLong(transferId);
+            out.writeLong(fileLength);
+            out.writeInt(stripes);
+            out.writeInt(index);
+            out.writeLong(offset);
+            out.writeLong(length);
+
+            ChunkedCompressedChecksumFileWriter writer = new ChunkedCompressedChecksumFileWriter(out, fileReader, bufferSize, seed,
+                    CodecSelector.of(session, adaptive, 1));
+            for (long sent = 0; sent < length; sent += bufferSize)
+                writer.processChunk(trace);
+            writer.close();
+
+            span.setAttribute("Data Read Uncompressed Bytes", writer.getUncompressedBytes());
+            span.setAttribute("Data Read Compressed Bytes", writer.getCompressedBytes());
+            span.setStatus(StatusCode.OK);
+            return writer;
+        } finally {
+            span.end();
+        }
+    }
+
+    public long getCompressedBytes() {
+        return compressed_bytes;
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressed_bytes;
+    }
+
+    public double getRatio() {
+        if (compressed_bytes == 0)
+            return 0;
+        return (double) uncompressed_bytes / (double) compressed_bytes;
+    }
+
+}
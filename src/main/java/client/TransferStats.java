@@ -0,0 +1,64 @@
+package client;
+
+/**
+ * What sending one file took, the result of an {@link AsyncClient} send.
+ */
+public class TransferStats {
+
+    private final String path;
+    private final long uncompressedBytes;
+    private final long compressedBytes;
+    private final long durationNanos;
+    private final int attempts;
+
+    public TransferStats(String path, long uncompressedBytes, long compressedBytes, long durationNanos, int attempts) {
+        this.path = path;
+        this.uncompressedBytes = uncompressedBytes;
+        this.compressedBytes = compressedBytes;
+        this.durationNanos = durationNanos;
+        this.attempts = attempts;
+    }
+
+    TransferStats withAttempts(int attempts) {
+        return new TransferStats(path, uncompressedBytes, compressedBytes, durationNanos, attempts);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    public double getRatio() {
+        if (compressedBytes == 0)
+            return 0;
+        return (double) uncompressedBytes / (double) compressedBytes;
+    }
+
+    /**
+     * Time on the wire of the attempt that succeeded, not counting time spent waiting for a connection.
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * 1 unless the file had to be sent again on a fresh connection.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    @Override
+    public String toString() {
+        return path + " " + uncompressedBytes + " bytes, ratio " + String.format("%.2f", getRatio()) + ", " + durationNanos / 1_000_000 + "ms"
+                + (attempts > 1 ? ", " + attempts + " attempts" : "");
+    }
+
+}
@@ -0,0 +1,173 @@
+package client;
+
+import io.opentelemetry.api.trace.Span;
+import server.VerifiedFileReceiver;
+import shared.ChunkCodec;
+import shared.FileUtil;
+import shared.Handshake;
+import shared.Metrics;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Client side of the VERIFIED command, a WRITE that survives corrupt chunks by resending only those.
+ * <p>
+ * After the command byte come the path as writeUTF and the file length as a long, then the file as ordinary chunk frames
+ * ending with a zero header. Instead of the stream hash the end carries the manifest hash, the
+ * {@link FileUtil#combineRangeHashes} of every chunk's hash in order. The server answers with an int:
+ * {@link VerifiedFileReceiver#COMPLETE} when it has the whole file, {@link VerifiedFileReceiver#FAILED} when it gave up
+ * on it, otherwise that many chunk indexes follow and the client sends exactly those chunks again, as frames in the order
+ * asked, and waits for the next answer.
+ */
+public class VerifiedFileSender {
+
+    private final DataOutputStream networkStreamWriter;
+    private final DataInputStream networkStreamReader;
+    private final long seed;
+    private final CodecSelector codecs;
+    private final ChunkSizer sizer;
+    private ByteBuffer uncompressed;
+    private ByteBuffer compressed;
+
+    // what was sent, chunk i covers [offsets[i], offsets[i + 1])
+    private long[] offsets = new long[64];
+    private long[] hashes = new long[64];
+    private int chunks = 0;
+
+    private long uncompressed_bytes = 0;
+    private long compressed_bytes = 0;
+    private long resent = 0;
+
+    public VerifiedFileSender(DataOutputStream networkStreamWriter, DataInputStream networkStreamReader, Handshake session, CodecSelector codecs, ChunkSizer sizer) {
+        this.networkStreamWriter = networkStreamWriter;
+        this.networkStreamReader = networkStreamReader;
+        this.seed = session.getSeed();
+        this.codecs = codecs;
+        this.sizer = sizer;
+        this.uncompressed = FileUtil.BUFFER_POOL.acquire(sizer.getSize());
+        this.compressed = FileUtil.BUFFER_POOL.acquire(ChunkCodec.maxCompressedLength(sizer.getSize()));
+    }
+
+    /**
+     * @return true once the server has every chunk, false when it gave up on the file
+     */
+    public boolean send(String path, String relativePath, Span sp) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long length = channel.size();
+            networkStreamWriter.writeByte(FileUtil.COMMAND.VERIFIED.type);
+            networkStreamWriter.writeUTF(relativePath);
+            networkStreamWriter.writeLong(length);
+
+            long position = 0;
+            while (position < length) {
+                int size = (int) Long.min(sizer.next(), length - position);
+                if (chunks == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, chunks * 2);
+                    hashes = Arrays.copyOf(hashes, chunks * 2);
+                }
+                offsets[chunks] = position;
+                hashes[chunks] = sendChunk(channel, position, size);
+                uncompressed_bytes += size;
+                position += size;
+                chunks++;
+            }
+            networkStreamWriter.writeInt(0);
+            networkStreamWriter.writeLong(FileUtil.combineRangeHashes(Arrays.copyOf(hashes, chunks)));
+            networkStreamWriter.flush();
+
+            while (true) {
+                int answer = networkStreamReader.readInt();
+                if (answer == VerifiedFileReceiver.COMPLETE || answer == VerifiedFileReceiver.FAILED) {
+                    sp.setAttribute("Resent Chunks", resent);
+                    return answer == VerifiedFileReceiver.COMPLETE;
+                }
+                if (answer < 0 || answer > chunks)
+                    throw new IOException("Server asked for " + answer + " chunks of a file sent in " + chunks);
+                int[] requested = new int[answer];
+                for (int i = 0; i < answer; i++) {
+                    requested[i] = networkStreamReader.readInt();
+                    if (requested[i] < 0 || requested[i] >= chunks)
+                        throw new IOException("Server asked for chunk " + requested[i] + " of " + chunks);
+                }
+                for (int chunk : requested) {
+                    long end = chunk + 1 < chunks ? offsets[chunk + 1] : length;
+                    if (sendChunk(channel, offsets[chunk], (int) (end - offsets[chunk])) != hashes[chunk])
+                        throw new IOException("Chunk " + chunk + " of " + path + " changed since it was first sent");
+                    resent++;
+                }
+                networkStreamWriter.flush();
+            }
+        } finally {
+            FileUtil.BUFFER_POOL.release(uncompressed);
+            FileUtil.BUFFER_POOL.release(compressed);
+            uncompressed = null;
+            compressed = null;
+        }
+    }
+
+    /**
+     * @return the chunk's hash
+     */
+    private long sendChunk(FileChannel channel, long position, int length) throws IOException {
+        uncompressed = FileUtil.BUFFER_POOL.ensureCapacity(uncompressed, length);
+        compressed = FileUtil.BUFFER_POOL.ensureCapacity(compressed, ChunkCodec.maxCompressedLength(length));
+        long start = System.nanoTime();
+        uncompressed.clear().limit(length);
+        while (uncompressed.hasRemaining())
+            if (channel.read(uncompressed, position + uncompressed.position()) < 0)
+                throw new EOFException("File shrank while sending it");
+        uncompressed.clear();
+        long read = System.nanoTime();
+        Metrics.record(Metrics.Stage.READ, read - start, length);
+
+        long hash = FileUtil.HASH_64.hash(uncompressed, 0, length, seed);
+        start = System.nanoTime();
+        Metrics.record(Metrics.Stage.HASH, start - read, length);
+
+        ChunkCodec codec = codecs.next();
+        int compressedLength = ChunkedCompressedChecksumFileWriter.compress(codec, uncompressed, length, compressed);
+        long compressNanos = System.nanoTime() - start;
+        codecs.recordCompression(codec, length, compressedLength, compressNanos);
+        sizer.recordCompression(length, compressNanos);
+        Metrics.record(Metrics.Stage.COMPRESS, compressNanos, length);
+        if (compressedLength == length)
+            codec = ChunkCodec.STORED;
+        compressed_bytes += compressedLength;
+
+        start = System.nanoTime();
+        ChunkedCompressedChecksumFileWriter.writeFrame(networkStreamWriter, length, compressedLength, codec, hash,
+                codec == ChunkCodec.STORED ? uncompressed : compressed);
+        long drainNanos = System.nanoTime() - start;
+        codecs.recordDrain(compressedLength, drainNanos);
+        sizer.recordDrain(length, drainNanos);
+        Metrics.record(Metrics.Stage.SOCKET_WRITE, drainNanos, compressedLength);
+        return hash;
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressed_bytes;
+    }
+
+    public long getCompressedBytes() {
+        return compressed_bytes;
+    }
+
+    public long getResentChunks() {
+        return resent;
+    }
+
+    public double getRatio() {
+        if (compressed_bytes == 0)
+            return 0;
+        return (double) uncompressed_bytes / (double) compressed_bytes;
+    }
+
+}
@@ -0,0 +1,115 @@
+package server;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import shared.FileUtil;
+import shared.Handshake;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Server side of the BUNDLE command, see {@link client.BundleSender} for the layout. The chunk frames are decoded into
+ * memory and nothing touches the disk until the stream hash checks out, then all the files are handed to the
+ * {@link DiskWriter} at once so its writer threads write them in parallel.
+ */
+public class BundleReceiver {
+
+    private final List<String> paths;
+    private final int[] sizes;
+    private final long totalSize;
+    private final ByteArrayOutputStream content;
+    private final ChunkedCompressedChecksumFileReader reader;
+
+    private BundleReceiver(List<String> paths, int[] sizes, long totalSize, DataInputStream dataIn, Handshake session) {
+        this.paths = paths;
+        this.sizes = sizes;
+        this.totalSize = totalSize;
+        this.content = new ByteArrayOutputStream((int) totalSize);
+        this.reader = new ChunkedCompressedChecksumFileReader(dataIn, content, session);
+    }
+
+    public static void receive(DataInputStream dataIn, Handshake session, Tracer trace, Span sp) throws IOException {
+        BundleReceiver bundle = readIndex(dataIn, dataIn, session);
+        new PipelinedChunkedCompressedChecksumFileReader(dataIn, bundle.reader, session.getSeed()).readAll(trace);
+        bundle.finish(dataIn.readLong(), sp);
+    }
+
+    /**
+     * Reads the file count and index from index, the chunk frames that follow are then read from dataIn. The two are
+     * the same stream except for {@link NioConnection}, which frames the chunks itself and passes null.
+     */
+    static BundleReceiver readIndex(DataInputStream index, DataInputStream dataIn, Handshake session) throws IOException {
+        int count = index.readInt();
+        if (count < 1 || count > FileUtil.BUNDLE_MAX_FILES)
+            throw new IOException("Bundle of " + count + " files is more than the " + FileUtil.BUNDLE_MAX_FILES + " allowed");
+        List<String> paths = new ArrayList<>(count);
+        int[] sizes = new int[count];
+        long totalSize = 0;
+        String previous = "";
+        for (int i = 0; i < count; i++) {
+            int common = index.readUnsignedShort();
+            String rest = index.readUTF();
+            sizes[i] = index.readInt();
+            if (common > previous.length() || sizes[i] < 0)
+                throw new IOException("Bundle index entry " + i + " is corrupt");
+            previous = previous.substring(0, common) + rest;
+            paths.add(previous);
+            totalSize += sizes[i];
+        }
+        if (totalSize > FileUtil.BUNDLE_MAX_BYTES)
+            throw new IOException("Bundle of " + totalSize + " bytes is more than the " + FileUtil.BUNDLE_MAX_BYTES + " allowed");
+        return new BundleReceiver(paths, sizes, totalSize, dataIn, session);
+    }
+
+    ChunkedCompressedChecksumFileReader getReader() {
+        return reader;
+    }
+
+    int getFileCount() {
+        return paths.size();
+    }
+
+    void finish(long streamHash, Span sp) throws IOException {
+        reader.close(streamHash);
+        byte[] data = content.toByteArray();
+        if (data.length != totalSize)
+            throw new IOException("Bundle decoded to " + data.length + " bytes but its index adds up to " + totalSize);
+
+        // directories are made up front, createPath isn't meant to race itself
+        List<String> targets = new ArrayList<>(paths.size());
+        for (String path : paths)
+            targets.add(FileUtil.createPath(path));
+
+        List<DiskWriter.PendingFile> files = new ArrayList<>(targets.size());
+        try {
+            int offset = 0;
+            for (int i = 0; i < targets.size(); i++) {
+                DiskWriter.PendingFile file = DiskWriter.open(targets.get(i));
+                files.add(file);
+                if (sizes[i] > 0)
+                    file.write(ByteBuffer.wrap(data, offset, sizes[i]).slice(), sizes[i], 0, false);
+                offset += sizes[i];
+            }
+            for (DiskWriter.PendingFile file : files)
+                file.commit();
+        } catch (IOException e) {
+            for (DiskWriter.PendingFile file : files)
+                file.abort();
+            throw e;
+        }
+
+        sp.setAttribute("Bundled Files", paths.size());
+        sp.setAttribute("Data Read Uncompressed Bytes", reader.getUncompressedBytes());
+        sp.setAttribute("Data Read Compressed Bytes", reader.getCompressedBytes());
+        sp.setAttribute("Data Compression Ratio", reader.getRatio());
+        sp.setStatus(StatusCode.OK);
+        System.out.println("Writing bundle of " + paths.size() + " files complete");
+    }
+
+}
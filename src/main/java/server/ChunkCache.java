@@ -0,0 +1,312 @@
+package server;
+
+import shared.ChunkCodec;
+import shared.FileUtil;
+import shared.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chunk frames the READ command already built, kept so a file that is downloaded again is sent straight from memory
+ * without reading or compressing it, see {@link ReadFileSender}.
+ * <p>
+ * Frames are keyed by the file, their offset and everything that went into them: chunk size, codec, seed and whether
+ * zero runs were allowed. The file part of the key is its size, modification time and a generation that goes up
+ * whenever the server replaces the file, so an overwritten file never hits its old frames, they just age out.
+ * <p>
+ * Eviction is least recently used, bounded by the bytes held. Admission is TinyLFU: once the cache is full, a new frame
+ * only gets in if it has been asked for at least as often as the frame it would push out, so one download of a big cold
+ * file doesn't flush every hot one.
+ */
+public class ChunkCache {
+
+    public static final long DEFAULT_CAPACITY = 256 * 1024 * 1024;
+    // the map entry, key and array header around every frame
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int MAX_STREAM_HASHES = 4096;
+
+    private static final Map<Path, Long> GENERATIONS = new ConcurrentHashMap<>();
+
+    // guarded by the class
+    private static long capacity = DEFAULT_CAPACITY;
+    private static long bytes = 0;
+    private static final LinkedHashMap<ChunkKey, byte[]> CHUNKS = new LinkedHashMap<>(1024, 0.75f, true);
+    private static FrequencySketch sketch = new FrequencySketch(capacity);
+    private static final LinkedHashMap<StreamKey, Long> STREAM_HASHES = new LinkedHashMap<StreamKey, Long>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<StreamKey, Long> eldest) {
+            return size() > MAX_STREAM_HASHES;
+        }
+    };
+    private static long hits = 0;
+    private static long misses = 0;
+    private static long evictions = 0;
+    private static long rejections = 0;
+
+    static {
+        Metrics.gauge("server_chunk_cache_bytes", "Bytes of chunk frames cached", ChunkCache::getBytes);
+        Metrics.gauge("server_chunk_cache_entries", "Chunk frames cached", ChunkCache::getEntries);
+        Metrics.counter("server_chunk_cache_hits", "Chunks sent from the cache", ChunkCache::getHits);
+        Metrics.counter("server_chunk_cache_misses", "Chunks that had to be read and compressed", ChunkCache::getMisses);
+        Metrics.gauge("server_chunk_cache_hit_percent", "Hits out of every chunk looked up since start up", ChunkCache::getHitPercent);
+        Metrics.counter("server_chunk_cache_evictions", "Frames pushed out to make room", ChunkCache::getEvictions);
+        Metrics.counter("server_chunk_cache_rejections", "Frames not admitted because what they would push out is used more", ChunkCache::getRejections);
+    }
+
+    /**
+     * Bytes of frames to hold at most, 0 turns the cache off.
+     */
+    public static synchronized void setCapacity(long capacity) {
+        if (capacity < 0)
+            throw new FileUtil.InvalidUsageException("Cache capacity can't be negative!");
+        ChunkCache.capacity = capacity;
+        sketch = new FrequencySketch(capacity);
+        for (Iterator<byte[]> it = CHUNKS.values().iterator(); bytes > capacity && it.hasNext(); ) {
+            bytes -= cost(it.next());
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * The file as it is right now, to key its frames with.
+     */
+    static FileKey key(Path path) throws IOException {
+        path = path.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        return new FileKey(path, GENERATIONS.getOrDefault(path, 0L), attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * The server replaced path, whatever is cached for the old file is never handed out again.
+     */
+    static void invalidate(Path path) {
+        GENERATIONS.merge(path.toAbsolutePath().normalize(), 1L, Long::sum);
+    }
+
+    static synchronized byte[] get(ChunkKey key) {
+        sketch.increment(key);
+        byte[] frame = CHUNKS.get(key);
+        if (frame == null)
+            misses++;
+        else
+            hits++;
+        return frame;
+    }
+
+    static synchronized void put(ChunkKey key, byte[] frame) {
+        long cost = cost(frame);
+        if (cost > capacity)
+            return;
+        Iterator<Map.Entry<ChunkKey, byte[]>> it = CHUNKS.entrySet().iterator();
+        if (bytes + cost > capacity && it.hasNext() && sketch.frequency(key) < sketch.frequency(CHUNKS.keySet().iterator().next())) {
+            rejections++;
+            return;
+        }
+        while (bytes + cost > capacity && it.hasNext()) {
+            bytes -= cost(it.next().getValue());
+            it.remove();
+            evictions++;
+        }
+        byte[] replaced = CHUNKS.put(key, frame);
+        if (replaced != null)
+            bytes -= cost(replaced);
+        bytes += cost;
+    }
+
+    /**
+     * The stream hash of a whole file, so a download that finds every frame cached needn't read the file to end with it.
+     */
+    static synchronized Long getStreamHash(FileKey file, long seed) {
+        return STREAM_HASHES.get(new StreamKey(file, seed));
+    }
+
+    static synchronized void putStreamHash(FileKey file, long seed, long hash) {
+        STREAM_HASHES.put(new StreamKey(file, seed), hash);
+    }
+
+    private static long cost(byte[] frame) {
+        return frame.length + ENTRY_OVERHEAD;
+    }
+
+    public static synchronized long getBytes() {
+        return bytes;
+    }
+
+    public static synchronized long getEntries() {
+        return CHUNKS.size();
+    }
+
+    public static synchronized long getHits() {
+        return hits;
+    }
+
+    public static synchronized long getMisses() {
+        return misses;
+    }
+
+    public static synchronized long getHitPercent() {
+        return hits + misses == 0 ? 0 : hits * 100 / (hits + misses);
+    }
+
+    public static synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public static synchronized long getRejections() {
+        return rejections;
+    }
+
+    static class FileKey {
+        private final Path path;
+        private final long generation;
+        private final long size;
+        private final long modified;
+
+        private FileKey(Path path, long generation, long size, long modified) {
+            this.path = path;
+            this.generation = generation;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileKey))
+                return false;
+            FileKey other = (FileKey) o;
+            return generation == other.generation && size == other.size && modified == other.modified && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, generation, size, modified);
+        }
+    }
+
+    static class ChunkKey {
+        private final FileKey file;
+        private final long offset;
+        private final int chunkSize;
+        private final ChunkCodec codec;
+        private final long seed;
+        private final boolean zeroRuns;
+
+        ChunkKey(FileKey file, long offset, int chunkSize, ChunkCodec codec, long seed, boolean zeroRuns) {
+            this.file = file;
+            this.offset = offset;
+            this.chunkSize = chunkSize;
+            this.codec = codec;
+            this.seed = seed;
+            this.zeroRuns = zeroRuns;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ChunkKey))
+                return false;
+            ChunkKey other = (ChunkKey) o;
+            return offset == other.offset && chunkSize == other.chunkSize && codec == other.codec && seed == other.seed
+                    && zeroRuns == other.zeroRuns && file.equals(other.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, offset, chunkSize, codec, seed, zeroRuns);
+        }
+    }
+
+    private static class StreamKey {
+        private final FileKey file;
+        private final long seed;
+
+        private StreamKey(FileKey file, long seed) {
+            this.file = file;
+            this.seed = seed;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof StreamKey))
+                return false;
+            StreamKey other = (StreamKey) o;
+            return seed == other.seed && file.equals(other.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, seed);
+        }
+    }
+
+    /**
+     * Count-min sketch of how often every key was asked for, counters saturate at 15 and are all halved every so often so
+     * what was popular a while ago fades.
+     */
+    private static class FrequencySketch {
+        private static final int ROWS = 4;
+        private static final int MAX_COUNT = 15;
+
+        private final int[][] counters;
+        private final int mask;
+        private final long resetAfter;
+        private long increments = 0;
+
+        private FrequencySketch(long capacity) {
+            // sized for as many frames of the default chunk size as fit
+            long expected = Long.max(1024, capacity / FileUtil.DEFAULT_CHUNK_SIZE);
+            int width = Integer.highestOneBit((int) Long.min(1 << 24, expected * 4) - 1) << 1;
+            this.counters = new int[ROWS][width];
+            this.mask = width - 1;
+            this.resetAfter = expected * 10;
+        }
+
+        private void increment(Object key) {
+            int hash = spread(key.hashCode());
+            for (int row = 0; row < ROWS; row++) {
+                int[] counter = counters[row];
+                int index = index(hash, row);
+                if (counter[index] < MAX_COUNT)
+                    counter[index]++;
+            }
+            if (++increments >= resetAfter) {
+                for (int[] row : counters)
+                    for (int i = 0; i < row.length; i++)
+                        row[i] >>>= 1;
+                increments /= 2;
+            }
+        }
+
+        private int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < ROWS; row++)
+                frequency = Integer.min(frequency, counters[row][index(hash, row)]);
+            return frequency;
+        }
+
+        private int index(int hash, int row) {
+            // a different odd multiplier per row gives each row its own hash function
+            return ((hash * (0x9E3779B9 + row * 0x632BE5AC)) >>> 8) & mask;
+        }
+
+        private static int spread(int hash) {
+            hash ^= hash >>> 16;
+            hash *= 0x45D9F3B;
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+package server;
+
+import shared.FileUtil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Durable record of which chunks of a partially received file have been verified.
+ * <p>
+ * The manifest is a small header (magic + expected file length + hash seed) followed by fixed size (offset, length,
+ * hash) records. Records are batched and only appended after the data file has been forced to disk, so anything listed
+ * in the manifest is guaranteed to be on disk. A torn record at the end from a crash is simply dropped on load.
+ */
+public class ChunkManifest implements Closeable {
+
+    private static final int MAGIC = 0x4D414E32;
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Long.BYTES;
+    private static final int RECORD_SIZE = Long.BYTES + Integer.BYTES + Long.BYTES;
+    // data is forced and the pending records appended every this many chunks, ~4 MB at the default chunk size
+    public static final int SYNC_INTERVAL = 64;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final FileChannel dataChannel;
+    private final long seed;
+    private final ByteBuffer pending = ByteBuffer.allocate(RECORD_SIZE * SYNC_INTERVAL);
+    private int pendingRecords = 0;
+
+    private long[] offsets = new long[0];
+    private int[] lengths = new int[0];
+    private long[] hashes = new long[0];
+    private int recordCount = 0;
+
+    private ChunkManifest(Path path, FileChannel channel, FileChannel dataChannel, long seed) {
+        this.path = path;
+        this.channel = channel;
+        this.dataChannel = dataChannel;
+        this.seed = seed;
+    }
+
+    /**
+     * Opens the manifest at path, keeping its records only if they were written for a file of the same length and with
+     * the same hash seed.
+     */
+    public static ChunkManifest open(Path path, FileChannel dataChannel, long fileLength, long seed) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ChunkManifest manifest = new ChunkManifest(path, channel, dataChannel, seed);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        boolean valid = channel.read(header, 0) == HEADER_SIZE && header.getInt(0) == MAGIC
+                && header.getLong(Integer.BYTES) == fileLength && header.getLong(Integer.BYTES + Long.BYTES) == seed;
+        if (valid) {
+            manifest.load();
+        } else {
+            header.clear();
+            header.putInt(MAGIC).putLong(fileLength).putLong(seed).flip();
+            channel.truncate(0);
+            while (header.hasRemaining())
+                channel.write(header, HEADER_SIZE - header.remaining());
+            channel.force(false);
+        }
+        return manifest;
+    }
+
+    private void load() throws IOException {
+        int count = (int) ((channel.size() - HEADER_SIZE) / RECORD_SIZE);
+        ByteBuffer records = ByteBuffer.allocate(count * RECORD_SIZE);
+        while (records.hasRemaining())
+            if (channel.read(records, HEADER_SIZE + records.position()) < 0)
+                break;
+        records.flip();
+        grow(count);
+        for (int i = 0; i < count; i++) {
+            offsets[i] = records.getLong();
+            lengths[i] = records.getInt();
+            hashes[i] = records.getLong();
+        }
+        recordCount = count;
+    }
+
+    /**
+     * Walks the recorded chunks from the start of the file, re-hashing each one from disk and feeding it to consumer.
+     * Stops at the first gap or mismatch and forgets every record after it.
+     *
+     * @return the end of the verified prefix, which is where the transfer can resume
+     */
+    public long verifyPrefix(ChunkConsumer consumer) throws IOException {
+        long expected = 0;
+        int verified = 0;
+        ByteBuffer buffer = FileUtil.BUFFER_POOL.acquire(FileUtil.DEFAULT_CHUNK_SIZE);
+        try {
+            for (; verified < recordCount; verified++) {
+                if (offsets[verified] != expected)
+                    break;
+                buffer = FileUtil.BUFFER_POOL.ensureCapacity(buffer, lengths[verified]);
+                buffer.clear().limit(lengths[verified]);
+                while (buffer.hasRemaining())
+                    if (dataChannel.read(buffer, expected + buffer.position()) < 0)
+                        break;
+                if (buffer.hasRemaining())
+                    break;
+                if (FileUtil.HASH_64.hash(buffer, 0, lengths[verified], seed) != hashes[verified])
+                    break;
+                consumer.accept(buffer.array(), buffer.arrayOffset(), lengths[verified]);
+                expected += lengths[verified];
+            }
+        } finally {
+            FileUtil.BUFFER_POOL.release(buffer);
+        }
+        recordCount = verified;
+        channel.truncate(HEADER_SIZE + (long) verified * RECORD_SIZE);
+        channel.force(false);
+        return expected;
+    }
+
+    public void append(long offset, int length, long hash) throws IOException {
+        pending.putLong(offset).putInt(length).putLong(hash);
+        if (++pendingRecords == SYNC_INTERVAL)
+            sync();
+    }
+
+    /**
+     * Forces the data file and then writes out the pending records, in that order, so the manifest never lists data
+     * that could be lost.
+     */
+    public void sync() throws IOException {
+        if (pendingRecords == 0)
+            return;
+        dataChannel.force(false);
+        pending.flip();
+        long position = channel.size();
+        while (pending.hasRemaining())
+            position += channel.write(pending, position);
+        channel.force(false);
+        pending.clear();
+        recordCount += pendingRecords;
+        pendingRecords = 0;
+    }
+
+    public int getRecordCount() {
+        return recordCount + pendingRecords;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    private void grow(int size) {
+        offsets = Arrays.copyOf(offsets, size);
+        lengths = Arrays.copyOf(lengths, size);
+        hashes = Arrays.copyOf(hashes, size);
+    }
+
+    public interface ChunkConsumer {
+        void accept(byte[] data, int offset, int length);
+    }
+
+}
@@ -5,9 +5,17 @@ import io.opentelemetry.api.trace.StatusCode;
 import io.opentelemetry.api.trace.Tracer;
 import io.opentelemetry.context.Scope;
 import net.jpountz.xxhash.StreamingXXHash64;
+import shared.ChunkCodec;
+import shared.ExceptionLogger;
 import shared.FileUtil;
+import shared.Handshake;
+import shared.Metrics;
+import shared.OTelUtils;
+import shared.ZeroRuns;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 
@@ -16,7 +24,16 @@ public class ChunkedCompressedChecksumFileReader {
     private final DataInputStream networkStreamReader;
     private final StreamingXXHash64 streamHash;
     private final DataOutputStream fileOutputWriter;
+    private final FileChannel fileChannel;
+    private final DiskWriter.PendingFile pendingFile;
+    private long filePosition;
     private final long seed;
+    private final int maxChunkSize;
+    private final FileHeader header = new FileHeader();
+    private ByteBuffer compressed;
+    private ByteBuffer decompressed;
+
+    private ChunkListener chunkListener = null;
 
     private Span currentSpan = null;
     private Scope currentScope = null;
@@ -25,61 +42,268 @@ public class ChunkedCompressedChecksumFileReader {
     private long uncompressed_bytes = 0;
     private long compressed_bytes = 0;
 
-    public ChunkedCompressedChecksumFileReader(DataInputStream networkStreamReader, String fileOutputPath, long seed) throws IOException {
+    /**
+     * Writes the decoded chunks to fileOutputPath through the {@link DiskWriter}, the file only appears under that name
+     * once close has verified the stream hash.
+     */
+    public ChunkedCompressedChecksumFileReader(DataInputStream networkStreamReader, String fileOutputPath, Handshake session) throws IOException {
+        this(networkStreamReader, null, null, DiskWriter.open(fileOutputPath), 0, FileUtil.XX_HASH_FACTORY.newStreamingHash64(session.getSeed()), session);
+    }
+
+    /**
+     * Decodes into output instead of a file, like a {@link BundleReceiver} collecting a bundle in memory. Output is
+     * closed along with the reader.
+     */
+    public ChunkedCompressedChecksumFileReader(DataInputStream networkStreamReader, OutputStream output, Handshake session) {
+        this(networkStreamReader, new DataOutputStream(output), null, null, 0, FileUtil.XX_HASH_FACTORY.newStreamingHash64(session.getSeed()), session);
+    }
+
+    /**
+     * Writes the decoded chunks into a channel shared with other readers, starting at filePosition. The channel is left
+     * open on close since it belongs to the caller (see {@link StripedFileAssembler}).
+     */
+    public ChunkedCompressedChecksumFileReader(DataInputStream networkStreamReader, FileChannel fileChannel, long filePosition, Handshake session) {
+        this(networkStreamReader, null, fileChannel, null, filePosition, FileUtil.XX_HASH_FACTORY.newStreamingHash64(session.getSeed()), session);
+    }
+
+    /**
+     * Continues a transfer part way through the file, streamHash must already have seen everything before filePosition.
+     */
+    public ChunkedCompressedChecksumFileReader(DataInputStream networkStreamReader, FileChannel fileChannel, long filePosition, StreamingXXHash64 streamHash,
+                                               Handshake session) {
+        this(networkStreamReader, null, fileChannel, null, filePosition, streamHash, session);
+    }
+
+    private ChunkedCompressedChecksumFileReader(DataInputStream networkStreamReader, DataOutputStream fileOutputWriter, FileChannel fileChannel,
+                                                DiskWriter.PendingFile pendingFile, long filePosition, StreamingXXHash64 streamHash, Handshake session) {
         this.networkStreamReader = networkStreamReader;
-        this.streamHash = FileUtil.XX_HASH_FACTORY.newStreamingHash64(seed);
-        this.fileOutputWriter = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(Paths.get(fileOutputPath))));
-        this.seed = seed;
+        this.streamHash = streamHash;
+        this.fileOutputWriter = fileOutputWriter;
+        this.fileChannel = fileChannel;
+        this.pendingFile = pendingFile;
+        this.filePosition = filePosition;
+        this.seed = session.getSeed();
+        this.maxChunkSize = session.getChunkSize();
+        this.compressed = FileUtil.BUFFER_POOL.acquire(ChunkCodec.maxCompressedLength(FileUtil.DEFAULT_CHUNK_SIZE));
+        this.decompressed = FileUtil.BUFFER_POOL.acquire(FileUtil.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * For callers that do their own framing (see {@link NioServer}) and hand complete chunks to {@link #acceptChunk}.
+     */
+    public ChunkedCompressedChecksumFileReader(String fileOutputPath, Handshake session) throws IOException {
+        this(null, fileOutputPath, session);
     }
 
     public FileHeader readChunk(Tracer trace) throws IOException {
-        if (++count >= FileUtil.MAX_COUNT) {
-            currentSpan.addEvent("--{End Read}--");
+        if (OTelUtils.CHUNK_EVENTS)
+            rollChunkSpan(trace);
+        FileHeader header = readHeader();
+        if (header.getUncompressed() == 0)
+            return header;
+        if (header.isZeroRun()) {
+            acceptZeroRun(header.getUncompressed());
+            return header;
+        }
+        if (OTelUtils.CHUNK_EVENTS && currentSpan.isRecording())
+            currentSpan.addEvent("Chunk Read", OTelUtils.chunkAttributes(header.getUncompressed(), header.getCompressed(), header.getCodec(), header.getHash()));
+        acceptChunk(header, readSome(header));
+        return header;
+    }
+
+    /**
+     * Chunk events go on a span of their own that is swapped every {@link FileUtil#MAX_COUNT} chunks, so no single span
+     * grows without bound.
+     */
+    private void rollChunkSpan(Tracer trace) {
+        if (currentSpan != null && ++count >= FileUtil.MAX_COUNT) {
             currentSpan.setStatus(StatusCode.OK);
             currentScope.close();
             currentSpan.end();
             currentSpan = null;
             currentScope = null;
-            count = 0;
         }
         if (currentSpan == null) {
             currentSpan = trace.spanBuilder("Chunk Read").startSpan();
             currentScope = currentSpan.makeCurrent();
+            count = 0;
         }
-        FileHeader header = readHeader();
+    }
+
+    /**
+     * @param data compressed payload starting at position 0, it is only read during the call so pooled buffers can be
+     *             released straight after
+     */
+    public void acceptChunk(FileHeader header, ByteBuffer data) throws IOException {
+        if (header.isZeroRun()) {
+            acceptZeroRun(header.getUncompressed());
+            return;
+        }
+        if (header.getCodec() != ChunkCodec.STORED)
+            decompressed = FileUtil.BUFFER_POOL.ensureCapacity(decompressed, header.getUncompressed());
+        ByteBuffer plain = decode(header, data, decompressed, seed);
+        append(header, plain);
+        long chunkPosition = filePosition;
+        write(plain, header.getUncompressed());
+        if (chunkListener != null)
+            chunkListener.onChunkWritten(chunkPosition, header.getUncompressed(), header.getHash());
+    }
+
+    /**
+     * Second half of {@link #acceptChunk} for chunks that went through {@link #decode} elsewhere, see
+     * {@link PipelinedChunkedCompressedChecksumFileReader}. Chunks have to arrive in file order. Takes over plain, a
+     * buffer from {@link FileUtil#BUFFER_POOL}, null for a zero run.
+     */
+    public void acceptDecoded(FileHeader header, ByteBuffer plain) throws IOException {
+        if (header.isZeroRun()) {
+            acceptZeroRun(header.getUncompressed());
+            return;
+        }
+        append(header, plain);
+        long chunkPosition = filePosition;
+        if (pendingFile != null) {
+            pendingFile.write(plain, header.getUncompressed(), filePosition, true);
+            filePosition += header.getUncompressed();
+        } else {
+            try {
+                write(plain, header.getUncompressed());
+            } finally {
+                FileUtil.BUFFER_POOL.release(plain);
+            }
+        }
+        if (chunkListener != null)
+            chunkListener.onChunkWritten(chunkPosition, header.getUncompressed(), header.getHash());
+    }
+
+    /**
+     * Decompresses one chunk and checks it against its own hash, touches nothing but its arguments so it can run on any
+     * thread.
+     *
+     * @param output big enough for the uncompressed chunk, unused for a stored one
+     * @return the plain chunk, payload itself when it was stored
+     */
+    static ByteBuffer decode(FileHeader header, ByteBuffer payload, ByteBuffer output, long seed) {
+        ByteBuffer plain;
+        long start = System.nanoTime();
+        if (header.getCodec() == ChunkCodec.STORED) {
+            if (header.getCompressed() != header.getUncompressed())
+                throw new RuntimeException("Stored chunk length doesn't match its uncompressed length!");
+            plain = payload;
+        } else {
+            plain = header.getCodec().decompress(payload, header.getCompressed(), output, header.getUncompressed());
+            long decompressed = System.nanoTime();
+            Metrics.record(Metrics.Stage.DECOMPRESS, decompressed - start, header.getCompressed());
+            start = decompressed;
+        }
+        boolean intact = FileUtil.HASH_64.hash(plain, 0, header.getUncompressed(), seed) == header.getHash();
+        Metrics.record(Metrics.Stage.VERIFY, System.nanoTime() - start, header.getUncompressed());
+        if (!intact)
+            throw new RuntimeException("Computed hash doesn't match sent hash! File corrupted?");
+        return plain;
+    }
+
+    /**
+     * The part of taking a chunk that has to happen in file order.
+     */
+    private void append(FileHeader header, ByteBuffer plain) {
         uncompressed_bytes += header.getUncompressed();
         compressed_bytes += header.getCompressed();
-        currentSpan.addEvent("--{Begin Read}--");
-        currentSpan.addEvent("Attribute: Read Uncompressed = " + header.getUncompressed());
-        currentSpan.addEvent("Attribute: Read Compressed = " + header.getCompressed());
-        currentSpan.addEvent("Attribute: Compression Ratio = " + ((double)header.getUncompressed() / header.getCompressed()));
-        currentSpan.addEvent("Attribute: Read Hash = " + header.getHash());
-        if (header.getUncompressed() == 0)
-            return header;
-        currentSpan.addEvent("Read Data");
-        byte[] data = readSome(header);
-        currentSpan.addEvent("Decompress Data");
-        byte[] decompressed = decompress(header, data);
-        currentSpan.addEvent("Hash");
-        hash(header, decompressed);
-        currentSpan.addEvent("Write");
-        fileOutputWriter.write(decompressed, 0, decompressed.length);
-        return header;
+        streamHash.update(plain.array(), plain.arrayOffset(), header.getUncompressed());
+    }
+
+    /**
+     * Takes a run of length zeros, see {@link ZeroRuns}. A file written through the {@link DiskWriter} or a channel
+     * that doesn't reach this far yet is left with a hole, anything else gets the zeros written. The chunk listener
+     * isn't told, a resume manifest treats the run as missing and a resume sends it again.
+     */
+    private void acceptZeroRun(int length) throws IOException {
+        ZeroRuns.hash(streamHash, length);
+        uncompressed_bytes += length;
+        long end = filePosition + length;
+        if (pendingFile != null) {
+            pendingFile.extend(end);
+        } else if (fileChannel == null) {
+            ZeroRuns.write(fileOutputWriter, length);
+        } else if (filePosition >= fileChannel.size()) {
+            fileChannel.write(ByteBuffer.allocate(1), end - 1);
+        } else {
+            // there may be old data under the run
+            long start = System.nanoTime();
+            for (long position = filePosition; position < end; )
+                position += fileChannel.write(ZeroRuns.buffer((int) Long.min(Integer.MAX_VALUE, end - position)), position);
+            Metrics.record(Metrics.Stage.DISK_WRITE, System.nanoTime() - start, length);
+        }
+        filePosition = end;
+    }
+
+    /**
+     * Appends bytes the server already trusts, like blocks of the old file during a delta transfer. They go into the
+     * stream hash like any other chunk but have no per chunk hash to check.
+     */
+    public void copyIn(ByteBuffer data, int length) throws IOException {
+        streamHash.update(data.array(), data.arrayOffset(), length);
+        write(data, length);
+    }
+
+    /**
+     * Told about every chunk once it has been verified and handed to the file.
+     */
+    public void setChunkListener(ChunkListener chunkListener) {
+        this.chunkListener = chunkListener;
     }
 
     public void close() throws IOException {
-        long streamHash = networkStreamReader.readLong();
-        if (streamHash != this.streamHash.getValue())
+        close(networkStreamReader.readLong());
+    }
+
+    public void close(long streamHash) throws IOException {
+        if (streamHash != this.streamHash.getValue()) {
+            if (pendingFile != null)
+                pendingFile.abort();
             throw new RuntimeException("Stream total hash doesn't match the client's sent hash!");
-        fileOutputWriter.flush();
-        fileOutputWriter.close();
+        }
+        if (pendingFile != null)
+            pendingFile.commit();
+        if (fileOutputWriter != null) {
+            fileOutputWriter.flush();
+            fileOutputWriter.close();
+        }
+        releaseBuffers();
         if (currentSpan != null) {
-            currentSpan.addEvent("--{End Read}--");
+            currentSpan.setStatus(StatusCode.OK);
             currentScope.close();
             currentSpan.end();
         }
     }
 
+    public void abort() {
+        if (pendingFile != null)
+            pendingFile.abort();
+        try {
+            if (fileOutputWriter != null)
+                fileOutputWriter.close();
+        } catch (IOException e) {
+            ExceptionLogger.log(e);
+        }
+        releaseBuffers();
+        if (currentSpan != null) {
+            currentSpan.setStatus(StatusCode.ERROR);
+            currentScope.close();
+            currentSpan.end();
+        }
+    }
+
+    /**
+     * The agreed chunk size, frames claiming longer chunks are refused.
+     */
+    int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    public long getStreamHash() {
+        return streamHash.getValue();
+    }
+
     public long getCompressedBytes(){
         return compressed_bytes;
     }
@@ -94,29 +318,61 @@ public class ChunkedCompressedChecksumFileReader {
         return (double) uncompressed_bytes / (double) compressed_bytes;
     }
 
-    private FileHeader readHeader() throws IOException {
-        return new FileHeader().read(networkStreamReader);
+    private void write(ByteBuffer data, int length) throws IOException {
+        if (pendingFile != null) {
+            // timed by the disk writer, the queueing here is not the disk
+            pendingFile.write(handOver(data, length), length, filePosition, true);
+            filePosition += length;
+            return;
+        }
+        if (fileChannel == null) {
+            fileOutputWriter.write(data.array(), data.arrayOffset(), length);
+            filePosition += length;
+            return;
+        }
+        long start = System.nanoTime();
+        data.clear().limit(length);
+        while (data.hasRemaining())
+            filePosition += fileChannel.write(data, filePosition);
+        data.clear();
+        Metrics.record(Metrics.Stage.DISK_WRITE, System.nanoTime() - start, length);
     }
 
-    private byte[] readSome(FileHeader header) throws IOException {
-        byte[] data = new byte[header.getCompressed()];
-        int amount = networkStreamReader.read(data, 0, header.getCompressed());
-        assert (header.getCompressed() == amount);
-        return data;
+    /**
+     * The disk writer keeps the buffer until it is written, so the decompression buffer is swapped for a fresh one and
+     * anything else, a stored payload, is copied.
+     */
+    private ByteBuffer handOver(ByteBuffer data, int length) {
+        if (data == decompressed) {
+            decompressed = FileUtil.BUFFER_POOL.acquire(data.capacity());
+            return data;
+        }
+        ByteBuffer copy = FileUtil.BUFFER_POOL.acquire(length);
+        copy.put(data.array(), data.arrayOffset(), length);
+        return copy;
     }
 
-    private byte[] decompress(FileHeader header, byte[] data) {
-        byte[] restored = new byte[header.getUncompressed()];
-        int len = FileUtil.DECOMPRESSOR.decompress(data, 0, restored, 0, header.getUncompressed());
-        assert (header.getUncompressed() == len);
-        return restored;
+    private void releaseBuffers() {
+        FileUtil.BUFFER_POOL.release(compressed);
+        FileUtil.BUFFER_POOL.release(decompressed);
+        compressed = null;
+        decompressed = null;
     }
 
-    private void hash(FileHeader header, byte[] data) {
-        long computedHash = FileUtil.HASH_64.hash(data, 0, data.length, seed);
-        streamHash.update(data, 0, data.length);
-        if (computedHash != header.getHash())
-            throw new RuntimeException("Computed hash doesn't match sent hash! File corrupted?");
+    private FileHeader readHeader() throws IOException {
+        return header.read(networkStreamReader, maxChunkSize);
+    }
+
+    private ByteBuffer readSome(FileHeader header) throws IOException {
+        compressed = FileUtil.BUFFER_POOL.ensureCapacity(compressed, header.getCompressed());
+        long start = System.nanoTime();
+        networkStreamReader.readFully(compressed.array(), compressed.arrayOffset(), header.getCompressed());
+        Metrics.record(Metrics.Stage.SOCKET_READ, System.nanoTime() - start, header.getCompressed());
+        return compressed;
+    }
+
+    public interface ChunkListener {
+        void onChunkWritten(long offset, int length, long hash) throws IOException;
     }
 
 }
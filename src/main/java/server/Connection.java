@@ -1,6 +1,5 @@
 package server;
 
-import client.Client;
 import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.api.trace.SpanBuilder;
 import io.opentelemetry.api.trace.StatusCode;
@@ -9,27 +8,42 @@ import io.opentelemetry.context.Context;
 import io.opentelemetry.context.Scope;
 import shared.ExceptionLogger;
 import shared.FileUtil;
+import shared.Handshake;
+import shared.Metrics;
 
 import java.io.*;
 import java.net.Socket;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Connection implements Runnable {
 
+    // open client connections, of either server
+    static final AtomicInteger ACTIVE = new AtomicInteger();
+
+    static {
+        Metrics.gauge("server_active_connections", "Open client connections", ACTIVE::get);
+    }
+
     private final Socket clientSocket;
     private final Server server;
     private DataOutputStream out;
     private DataInputStream in;
     private final Tracer trace;
     private final Span fileSend;
+    private Handshake session = Handshake.DEFAULT;
+    private final FairScheduler.Flow flow;
+    // files interleaved on this connection, made on the first STREAM_OPEN
+    private MultiplexedFileReceiver streams = null;
 
     public Connection(Server server, Tracer trace, Socket clientSocket) {
         this.server = server;
         this.clientSocket = clientSocket;
         this.trace = trace;
+        this.flow = FairScheduler.open(clientSocket.getInetAddress().getHostAddress());
         try {
             out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
-            in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+            in = new DataInputStream(new BufferedInputStream(new ThrottledInputStream(clientSocket.getInputStream(), flow)));
         } catch (Exception e) {
             ExceptionLogger.log(e);
         }
@@ -43,7 +57,9 @@ public class Connection implements Runnable {
 
     @Override
     public void run() {
-        try (Scope scope = fileSend.makeCurrent()) {
+        ACTIVE.incrementAndGet();
+        boolean broken = false;
+        try (Scope scope = fileSend.makeCurrent(); Scope fair = flow.makeCurrent()) {
             int filesReceived = 0;
             while (server.isRunning()) {
                 if (!clientSocket.isConnected()) {
@@ -51,30 +67,132 @@ public class Connection implements Runnable {
                     break;
                 }
                 try {
-                    if (in.available() > 0) {
-                        byte command = in.readByte();
+                    // block on the next command instead of spinning on available(), an idle client should cost nothing
+                    byte command = in.readByte();
+                    // everything but the next chunk of an open stream starts on a new file
+                    if (command != FileUtil.COMMAND.STREAM_CHUNK.type)
+                        flow.startFile();
 
-                        if (command == FileUtil.COMMAND.CLOSE.type) {
-                            System.out.println("Client sent disconnect signal!");
+                    if (command == FileUtil.COMMAND.CLOSE.type) {
+                        System.out.println("Client sent disconnect signal!");
+                        break;
+                    }
+                    if (command == FileUtil.COMMAND.HELLO.type) {
+                        session = Handshake.SERVER.accept(Handshake.read(in));
+                        session.writeAnswer(out);
+                        out.flush();
+                        if (!session.isAccepted()) {
+                            System.out.println("Refused client with an unsupported protocol version");
                             break;
                         }
-                        if (command == FileUtil.COMMAND.WRITE.type) {
-                            fileSend.addEvent("File Received");
-                            Span fileIn = trace.spanBuilder("File Received").setAttribute("Files Received", filesReceived).startSpan();
-                            try (Scope s = fileIn.makeCurrent()) {
-                                FileUtil.receive(in, trace, fileIn);
-                            } finally {
-                                fileIn.end();
-                            }
+                        fileSend.setAttribute("Protocol Version", session.getVersion());
+                        fileSend.setAttribute("Chunk Size", session.getChunkSize());
+                        fileSend.setAttribute("Codec", session.getCodec().name());
+                    }
+                    if (command == FileUtil.COMMAND.WRITE.type) {
+                        fileSend.addEvent("File Received");
+                        Span fileIn = trace.spanBuilder("File Received").setAttribute("Files Received", filesReceived).startSpan();
+                        try (Scope s = fileIn.makeCurrent()) {
+                            FileUtil.receive(in, session, trace, fileIn);
+                        } finally {
+                            fileIn.end();
+                        }
+                    }
+                    if (command == FileUtil.COMMAND.RESUME.type) {
+                        fileSend.addEvent("File Received");
+                        Span fileIn = trace.spanBuilder("Resumable File Received").setAttribute("Files Received", filesReceived).startSpan();
+                        try (Scope s = fileIn.makeCurrent()) {
+                            ResumableFileReceiver.receive(in, out, session, trace, fileIn);
+                        } finally {
+                            fileIn.end();
+                        }
+                    }
+                    if (command == FileUtil.COMMAND.VERIFIED.type) {
+                        fileSend.addEvent("File Received");
+                        Span fileIn = trace.spanBuilder("Verified File Received").setAttribute("Files Received", filesReceived).startSpan();
+                        try (Scope s = fileIn.makeCurrent()) {
+                            VerifiedFileReceiver.receive(in, out, session, trace, fileIn);
+                        } finally {
+                            fileIn.end();
+                        }
+                    }
+                    if (command == FileUtil.COMMAND.READ.type) {
+                        fileSend.addEvent("File Sent");
+                        Span fileOut = trace.spanBuilder("File Sent").startSpan();
+                        try (Scope s = fileOut.makeCurrent()) {
+                            ReadFileSender.send(in.readUTF(), out, session, fileOut);
+                        } finally {
+                            fileOut.end();
+                        }
+                    }
+                    if (command == FileUtil.COMMAND.DELTA.type) {
+                        fileSend.addEvent("File Received");
+                        Span fileIn = trace.spanBuilder("Delta File Received").setAttribute("Files Received", filesReceived).startSpan();
+                        try (Scope s = fileIn.makeCurrent()) {
+                            DeltaFileReceiver.receive(in, out, session, trace, fileIn);
+                        } finally {
+                            fileIn.end();
+                        }
+                    }
+                    if (command == FileUtil.COMMAND.BUNDLE.type) {
+                        fileSend.addEvent("Bundle Received");
+                        Span bundleIn = trace.spanBuilder("Bundle Received").setAttribute("Files Received", filesReceived).startSpan();
+                        try (Scope s = bundleIn.makeCurrent()) {
+                            BundleReceiver.receive(in, session, trace, bundleIn);
+                        } finally {
+                            bundleIn.end();
+                        }
+                    }
+                    if (command == FileUtil.COMMAND.STRIPE.type) {
+                        fileSend.addEvent("Stripe Received");
+                        Span stripeIn = trace.spanBuilder("Stripe Received").startSpan();
+                        try (Scope s = stripeIn.makeCurrent()) {
+                            StripedFileAssembler.receiveStripe(in, session, trace, stripeIn);
+                        } finally {
+                            stripeIn.end();
+                        }
+                    }
+                    if (command == FileUtil.COMMAND.STREAM_OPEN.type) {
+                        if (streams == null)
+                            streams = new MultiplexedFileReceiver(trace, fileSend);
+                        streams.open(in, session);
+                    }
+                    if (command == FileUtil.COMMAND.STREAM_CHUNK.type) {
+                        if (streams == null)
+                            throw new IOException("Stream chunk before any stream was opened");
+                        streams.chunk(in);
+                    }
+                    if (command == FileUtil.COMMAND.SYNC.type) {
+                        // commands run one after the other, whatever came before is already on disk or dropped the connection
+                        out.writeBoolean(true);
+                        out.flush();
+                    }
+                    if (command == FileUtil.COMMAND.STRIPE_COMMIT.type) {
+                        Span commit = trace.spanBuilder("Stripe Commit").startSpan();
+                        try (Scope s = commit.makeCurrent()) {
+                            StripedFileAssembler.commit(in, out, commit);
+                        } finally {
+                            commit.end();
                         }
                     }
+                } catch (EOFException e) {
+                    System.out.println("Client closed the connection");
+                    break;
                 } catch (IOException e) {
+                    // whatever is left on the stream can't be trusted to line up with a command, drop the client
                     fileSend.recordException(e);
-                    throw new RuntimeException(e);
+                    ExceptionLogger.log(e);
+                    broken = true;
+                    break;
                 }
             }
         } finally {
-            fileSend.setStatus(StatusCode.OK);
+            // whatever the client didn't finish is dropped rather than left half written
+            if (streams != null)
+                streams.abort();
+            flow.close();
+            ACTIVE.decrementAndGet();
+            fileSend.setStatus(broken ? StatusCode.ERROR : StatusCode.OK);
             fileSend.end();
         }
         try {
@@ -85,12 +203,6 @@ public class Connection implements Runnable {
             ExceptionLogger.log(e);
         }
         System.out.println("Client Disconnected");
-        Server.running = false;
-//        try {
-//            // evil hack
-//            new Client("localhost", Server.SERVER_PORT).close();
-//        } catch (IOException ignored) {
-//        }
     }
 
 }
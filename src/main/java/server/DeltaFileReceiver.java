@@ -0,0 +1,143 @@
+package server;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import shared.ExceptionLogger;
+import shared.FileUtil;
+import shared.Handshake;
+import shared.RollingChecksum;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Server side of the DELTA command. The server describes the copy of the file it already has as a list of block
+ * signatures (rolling checksum + xxHash64), the client answers with COPY instructions for blocks it also has and
+ * LITERAL chunk frames for everything else, and the new file is rebuilt next to the old one before replacing it.
+ */
+public class DeltaFileReceiver {
+
+    private static final int MIN_BLOCK_SIZE = 2048;
+
+    public static void receive(DataInputStream dataIn, DataOutputStream dataOut, Handshake session, Tracer trace, Span sp) throws IOException {
+        String path = FileUtil.createPath(dataIn.readUTF());
+        Path target = Paths.get(path);
+        // two deltas of the same path at once each rebuild into their own file, the later move wins
+        Path deltaPath = DiskWriter.tempPath(target);
+        sp.setAttribute("File", path);
+        System.out.println("Delta for file: " + path);
+
+        FileChannel existing = Files.isRegularFile(target) ? FileChannel.open(target, StandardOpenOption.READ) : null;
+        boolean ok = false;
+        try (FileChannel output = FileChannel.open(deltaPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            int blockSize = blockSize(existing == null ? 0 : existing.size());
+            int blockCount = sendSignature(existing, blockSize, session.getSeed(), dataOut);
+            sp.setAttribute("Delta Block Size", blockSize);
+            sp.setAttribute("Delta Blocks", blockCount);
+
+            ChunkedCompressedChecksumFileReader reader = new ChunkedCompressedChecksumFileReader(dataIn, output, 0, session);
+            ByteBuffer block = FileUtil.BUFFER_POOL.acquire(blockSize);
+            long copied = 0;
+            boolean verified = false;
+            try {
+                while (true) {
+                    byte op = dataIn.readByte();
+                    if (op == FileUtil.DELTA_OP.END.type)
+                        break;
+                    if (op == FileUtil.DELTA_OP.LITERAL.type) {
+                        reader.readChunk(trace);
+                    } else if (op == FileUtil.DELTA_OP.COPY.type) {
+                        int first = dataIn.readInt();
+                        int count = dataIn.readInt();
+                        if (existing == null || first < 0 || count < 1 || count > blockCount - first)
+                            throw new IOException("Delta asked for blocks " + first + "+" + count + " of " + blockCount);
+                        for (int i = first; i < first + count; i++) {
+                            readBlock(existing, (long) i * blockSize, block, blockSize);
+                            reader.copyIn(block, blockSize);
+                        }
+                        copied += (long) count * blockSize;
+                    } else {
+                        throw new IOException("Unknown delta instruction " + op);
+                    }
+                }
+                try {
+                    reader.close();
+                    verified = true;
+                } catch (RuntimeException e) {
+                    // the stream itself is still in sync, so tell the client instead of dropping the connection
+                    sp.recordException(e);
+                    ExceptionLogger.log(e);
+                }
+            } finally {
+                FileUtil.BUFFER_POOL.release(block);
+            }
+
+            sp.setAttribute("Delta Copied Bytes", copied);
+            sp.setAttribute("Data Read Uncompressed Bytes", reader.getUncompressedBytes());
+            sp.setAttribute("Data Read Compressed Bytes", reader.getCompressedBytes());
+            if (verified) {
+                output.force(true);
+                ok = true;
+            }
+        } finally {
+            if (existing != null)
+                existing.close();
+            if (ok) {
+                Files.move(deltaPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                ChunkCache.invalidate(target);
+            } else
+                Files.deleteIfExists(deltaPath);
+        }
+
+        sp.setStatus(ok ? StatusCode.OK : StatusCode.ERROR);
+        System.out.println(ok ? "Writing " + path + " complete" : "Rejected delta for " + path);
+        dataOut.writeBoolean(ok);
+        dataOut.flush();
+    }
+
+    /**
+     * rsync's rule of thumb, about the square root of the file length, kept between MIN_BLOCK_SIZE and a chunk.
+     */
+    private static int blockSize(long fileLength) {
+        long size = (long) Math.sqrt((double) fileLength) & ~1023L;
+        return (int) Long.max(MIN_BLOCK_SIZE, Long.min(FileUtil.DEFAULT_CHUNK_SIZE, size));
+    }
+
+    private static int sendSignature(FileChannel existing, int blockSize, long seed, DataOutputStream dataOut) throws IOException {
+        // only whole blocks, a short tail can never match a full window on the client anyway
+        int blockCount = existing == null ? 0 : (int) (existing.size() / blockSize);
+        dataOut.writeInt(blockSize);
+        dataOut.writeInt(blockCount);
+        ByteBuffer block = FileUtil.BUFFER_POOL.acquire(blockSize);
+        try {
+            RollingChecksum weak = new RollingChecksum(blockSize);
+            for (int i = 0; i < blockCount; i++) {
+                readBlock(existing, (long) i * blockSize, block, blockSize);
+                dataOut.writeInt(weak.reset(block.array(), block.arrayOffset()));
+                dataOut.writeLong(FileUtil.HASH_64.hash(block, 0, blockSize, seed));
+            }
+        } finally {
+            FileUtil.BUFFER_POOL.release(block);
+        }
+        dataOut.flush();
+        return blockCount;
+    }
+
+    private static void readBlock(FileChannel channel, long position, ByteBuffer block, int blockSize) throws IOException {
+        block.clear().limit(blockSize);
+        while (block.hasRemaining())
+            if (channel.read(block, position + block.position()) < 0)
+                throw new IOException("Existing file changed while building a delta");
+        block.clear();
+    }
+
+}
@@ -0,0 +1,349 @@
+package server;
+
+import shared.ExceptionLogger;
+import shared.FileUtil;
+import shared.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Write behind stage between verified chunks and the disk, so a slow disk no longer holds up the thread reading the
+ * socket. Chunks are queued with their file offset and written by a few dedicated threads with positional
+ * {@link FileChannel} writes, in the order the {@link FairScheduler} gives them rather than the order they came in. At
+ * most {@link #MAX_QUEUED_BYTES} wait at a time, past that the reading thread blocks and TCP pushes back on the client
+ * as before.
+ * <p>
+ * Files are written under a temporary name and renamed into place once complete, so a partially received file is never
+ * visible under its real name. How hard the data is pushed to the disk is up to the {@link FsyncPolicy}.
+ * <p>
+ * Files are not preallocated. The JDK has no fallocate, and growing the file ahead of the writes only moves its end
+ * over a hole without reserving anything, while filling it with zeros would write everything twice.
+ */
+public class DiskWriter {
+
+    public enum FsyncPolicy {
+        // leave it to the OS
+        NONE,
+        // force every file before it is renamed into place
+        PER_FILE,
+        // force everything written every FSYNC_INTERVAL_MS, a crash loses at most about that much
+        PERIODIC
+    }
+
+    // not .part, that is a paused resumable transfer (see ResumableFileReceiver) a WRITE of the same path mustn't touch
+    static final String TEMP_SUFFIX = ".writing";
+    // two connections writing the same path at once each get their own temporary file, so the one that gives up can't
+    // delete the other's
+    private static final AtomicLong TEMP_SEQUENCE = new AtomicLong();
+    private static final Pattern TEMP_NAME = Pattern.compile(".*\\.\\d+" + Pattern.quote(TEMP_SUFFIX));
+    private static final int WRITER_THREADS = 4;
+    private static final int MAX_QUEUED_BYTES = 32 * 1024 * 1024;
+    private static final long FSYNC_INTERVAL_MS = 1000;
+
+    private static volatile FsyncPolicy fsyncPolicy = FsyncPolicy.NONE;
+
+    private static final BlockingQueue<Write> QUEUE = new PriorityBlockingQueue<>();
+    private static final FairScheduler.FairQueue FAIR_QUEUE = new FairScheduler.FairQueue("disk");
+    private static final Semaphore QUEUED_BYTES = new Semaphore(MAX_QUEUED_BYTES);
+    private static final Set<PendingFile> OPEN = ConcurrentHashMap.newKeySet();
+    // complete files the periodic fsync hasn't got to yet
+    private static final Set<Path> UNSYNCED = ConcurrentHashMap.newKeySet();
+
+    static {
+        for (int i = 0; i < WRITER_THREADS; i++) {
+            Thread writer = new Thread(DiskWriter::drain, "Disk Writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Disk Fsync");
+            t.setDaemon(true);
+            return t;
+        });
+        syncer.scheduleWithFixedDelay(DiskWriter::syncAll, FSYNC_INTERVAL_MS, FSYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        Metrics.gauge("server_disk_queue_depth", "Chunks waiting for a disk writer thread", QUEUE::size);
+        Metrics.gauge("server_disk_queued_bytes", "Bytes waiting for a disk writer thread", () -> MAX_QUEUED_BYTES - QUEUED_BYTES.availablePermits());
+        Metrics.gauge("server_open_files", "Files being received", OPEN::size);
+    }
+
+    public static void setFsyncPolicy(FsyncPolicy policy) {
+        fsyncPolicy = policy;
+    }
+
+    public static FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     * Starts a new file at path, written as path + a sequence number + {@link #TEMP_SUFFIX} until
+     * {@link PendingFile#commit()}.
+     */
+    public static PendingFile open(String path) throws IOException {
+        return new PendingFile(Paths.get(path));
+    }
+
+    /**
+     * A temporary name for target no other transfer of it uses, swept by {@link #removeLeftovers()} if this run never
+     * gets to rename or delete it.
+     */
+    static Path tempPath(Path target) {
+        return Paths.get(target + "." + TEMP_SEQUENCE.incrementAndGet() + TEMP_SUFFIX);
+    }
+
+    /**
+     * Deletes the temporary files of transfers a previous run never finished, to be called before anything is
+     * received. Nothing else uses their names, see {@link #tempPath}.
+     */
+    public static void removeLeftovers() {
+        Path root = Paths.get(System.getProperty("user.dir"), "write");
+        if (!Files.isDirectory(root))
+            return;
+        try (Stream<Path> files = Files.walk(root)) {
+            files.filter(path -> TEMP_NAME.matcher(path.getFileName().toString()).matches() && Files.isRegularFile(path))
+                    .forEach(path -> {
+                        try {
+                            Files.delete(path);
+                            System.out.println("Removed unfinished " + path);
+                        } catch (IOException e) {
+                            ExceptionLogger.log(e);
+                        }
+                    });
+        } catch (IOException e) {
+            ExceptionLogger.log(e);
+        }
+    }
+
+    private static void drain() {
+        while (true) {
+            Write write;
+            try {
+                write = QUEUE.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            write.ticket.start();
+            write.file.run(write);
+        }
+    }
+
+    private static void syncAll() {
+        if (fsyncPolicy != FsyncPolicy.PERIODIC)
+            return;
+        for (PendingFile file : OPEN)
+            file.force();
+        for (Iterator<Path> it = UNSYNCED.iterator(); it.hasNext(); ) {
+            Path path = it.next();
+            it.remove();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                // gone or replaced since, nothing left to sync
+            }
+        }
+    }
+
+    private static class Write implements Comparable<Write> {
+        private final PendingFile file;
+        private final ByteBuffer data;
+        private final int length;
+        private final long position;
+        private final boolean pooled;
+        private final FairScheduler.Ticket ticket;
+
+        private Write(PendingFile file, ByteBuffer data, int length, long position, boolean pooled, FairScheduler.Ticket ticket) {
+            this.file = file;
+            this.data = data;
+            this.length = length;
+            this.position = position;
+            this.pooled = pooled;
+            this.ticket = ticket;
+        }
+
+        @Override
+        public int compareTo(Write other) {
+            return ticket.compareTo(other.ticket);
+        }
+    }
+
+    /**
+     * A file being written. Writes are handed in by a single thread, the one receiving the file.
+     */
+    public static class PendingFile {
+        private final Path target;
+        private final Path temp;
+        private final FileChannel channel;
+        private long length = 0;
+
+        // guarded by this
+        private int outstanding = 0;
+        private IOException failure = null;
+        private boolean finished = false;
+
+        private PendingFile(Path target) throws IOException {
+            this.target = target;
+            this.temp = tempPath(target);
+            this.channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            OPEN.add(this);
+        }
+
+        /**
+         * Queues data[0, length) to be written at position. The buffer belongs to the disk writer from now on, a pooled
+         * one goes back to {@link FileUtil#BUFFER_POOL} once written or when this throws.
+         */
+        public void write(ByteBuffer data, int length, long position, boolean pooled) throws IOException {
+            synchronized (this) {
+                if (failure != null) {
+                    if (pooled)
+                        FileUtil.BUFFER_POOL.release(data);
+                    throw failure;
+                }
+                outstanding++;
+            }
+            this.length = Long.max(this.length, position + length);
+            int permits = Integer.min(length, MAX_QUEUED_BYTES);
+            try {
+                QUEUED_BYTES.acquire(permits);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (pooled)
+                    FileUtil.BUFFER_POOL.release(data);
+                IOException interrupted = new IOException("Interrupted while queueing a disk write", e);
+                done(interrupted);
+                throw interrupted;
+            }
+            QUEUE.add(new Write(this, data, length, position, pooled, FAIR_QUEUE.ticket(length)));
+        }
+
+        /**
+         * Makes the file at least end bytes long without writing anything, the part nothing was written to stays a hole.
+         */
+        public void extend(long end) {
+            length = Long.max(length, end);
+        }
+
+        /**
+         * Waits for every queued write, extends the file over a trailing hole, forces it if the policy says so and
+         * renames it into place.
+         */
+        public void commit() throws IOException {
+            awaitWrites();
+            synchronized (this) {
+                if (failure != null) {
+                    abort();
+                    throw failure;
+                }
+            }
+            OPEN.remove(this);
+            try {
+                try {
+                    // nothing was written to a trailing hole, so the file doesn't reach that far yet
+                    if (channel.size() < length)
+                        channel.write(ByteBuffer.allocate(1), length - 1);
+                    if (fsyncPolicy == FsyncPolicy.PER_FILE)
+                        channel.force(true);
+                } finally {
+                    channel.close();
+                }
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException | RuntimeException e) {
+                // still unfinished, so this removes the temporary file
+                abort();
+                throw e;
+            }
+            synchronized (this) {
+                finished = true;
+            }
+            ChunkCache.invalidate(target);
+            if (fsyncPolicy == FsyncPolicy.PERIODIC)
+                UNSYNCED.add(target);
+        }
+
+        /**
+         * Throws away everything written so far, the real path is left as it was.
+         */
+        public void abort() {
+            synchronized (this) {
+                if (finished)
+                    return;
+                finished = true;
+            }
+            OPEN.remove(this);
+            try {
+                awaitWrites();
+            } catch (IOException ignored) {
+                // interrupted, the writes still in the queue will fail on the closed channel
+            }
+            try {
+                channel.close();
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                ExceptionLogger.log(e);
+            }
+        }
+
+        private void run(Write write) {
+            try {
+                long start = System.nanoTime();
+                ByteBuffer data = write.data;
+                data.position(0).limit(write.length);
+                long position = write.position;
+                while (data.hasRemaining())
+                    position += channel.write(data, position);
+                Metrics.record(Metrics.Stage.DISK_WRITE, System.nanoTime() - start, write.length);
+                done(null);
+            } catch (IOException e) {
+                done(e);
+            } finally {
+                QUEUED_BYTES.release(Integer.min(write.length, MAX_QUEUED_BYTES));
+                if (write.pooled)
+                    FileUtil.BUFFER_POOL.release(write.data);
+            }
+        }
+
+        private synchronized void done(IOException e) {
+            if (e != null && failure == null)
+                failure = e;
+            outstanding--;
+            notifyAll();
+        }
+
+        private synchronized void awaitWrites() throws IOException {
+            try {
+                while (outstanding > 0)
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting on disk writes", e);
+            }
+        }
+
+        private void force() {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                // closed in the meantime, commit takes it from here
+            }
+        }
+    }
+
+}
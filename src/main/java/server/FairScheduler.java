@@ -0,0 +1,389 @@
+package server;
+
+import io.opentelemetry.context.Scope;
+import shared.FileUtil;
+import shared.Metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the server between its clients, so one bulk uploader can't take every decoder and the disk while small uploads
+ * wait behind it.
+ * <p>
+ * Every connection is a {@link Flow} of the client host it comes from, its tenant, and the connections of one host share
+ * a weight and a rate limit. The decoders and the disk writers take their work from a {@link FairQueue} instead of in
+ * arrival order: self clocked weighted fair queuing, where every piece of work is stamped with a virtual finish time of
+ * its tenant's previous finish plus its bytes over the tenant's weight, and the smallest stamp goes first. On top of that
+ * the first {@link #SMALL_FILE_BYTES} of every file are in the {@link TrafficClass#SMALL} class, which is ranked
+ * {@link #SMALL_HEAD_START} bytes of virtual time earlier than its stamp, so a small file is through before a big one
+ * gets its next chunk decoded. The head start is bounded, the virtual clock moves on with every piece of work taken, so
+ * a steady stream of small files can delay bulk work but never starve it.
+ * <p>
+ * Backpressure is the socket: a rate limited client's connection stops reading until its tokens have caught up, and a
+ * connection whose work is waiting in the queues fills its window of chunks in flight and stops reading too, TCP then
+ * holds back the client.
+ */
+public class FairScheduler {
+
+    public enum TrafficClass {
+        // the start of every file, ranked ahead of bulk work
+        SMALL,
+        BULK;
+
+        private final String label = name().toLowerCase();
+    }
+
+    // wire bytes since a file started that still count as a small file
+    public static final long SMALL_FILE_BYTES = 1024 * 1024;
+    // how far ahead of bulk work small work is ranked, in bytes of virtual time
+    static final double SMALL_HEAD_START = 8 * SMALL_FILE_BYTES;
+    public static final int DEFAULT_WEIGHT = 1;
+    // how far a rate limited client may get ahead of its rate, so a limit doesn't turn into a wait after every read
+    private static final double BURST_SECONDS = 0.1;
+    private static final long MIN_BURST_BYTES = 64 * 1024;
+
+    // guarded by itself
+    private static final Map<String, Tenant> TENANTS = new HashMap<>();
+    private static final Map<String, Long> RATE_LIMITS = new ConcurrentHashMap<>();
+    private static final Map<String, Integer> WEIGHTS = new ConcurrentHashMap<>();
+    private static volatile long defaultRateLimit = 0;
+
+    private static final ThreadLocal<Flow> CURRENT = new ThreadLocal<>();
+    // for work done outside any connection, never limited
+    private static final Flow LOCAL = new Flow(new Tenant("local", DEFAULT_WEIGHT, 0));
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Fair Scheduler");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        Metrics.gauge("server_tenants", "Client hosts with a connection open", () -> {
+            synchronized (TENANTS) {
+                return TENANTS.size();
+            }
+        });
+    }
+
+    /**
+     * Rate limit in bytes per second read off the sockets of every client host, 0 for none. Applies to hosts that
+     * connect from now on.
+     */
+    public static void setRateLimit(long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new FileUtil.InvalidUsageException("Rate limit can't be negative!");
+        defaultRateLimit = bytesPerSecond;
+    }
+
+    /**
+     * Rate limit for one client host instead of the default, 0 for none.
+     */
+    public static void setRateLimit(String host, long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new FileUtil.InvalidUsageException("Rate limit can't be negative!");
+        RATE_LIMITS.put(host, bytesPerSecond);
+    }
+
+    /**
+     * A host of weight 2 gets twice the decoding and disk time of a host of weight 1 when both have work waiting.
+     */
+    public static void setWeight(String host, int weight) {
+        if (weight < 1)
+            throw new FileUtil.InvalidUsageException("Weight must be at least 1!");
+        WEIGHTS.put(host, weight);
+    }
+
+    /**
+     * A new connection from host, close the flow when the connection ends.
+     */
+    static Flow open(String host) {
+        synchronized (TENANTS) {
+            Tenant tenant = TENANTS.computeIfAbsent(host, h -> new Tenant(h, WEIGHTS.getOrDefault(h, DEFAULT_WEIGHT),
+                    RATE_LIMITS.getOrDefault(h, defaultRateLimit)));
+            tenant.connections++;
+            return new Flow(tenant);
+        }
+    }
+
+    /**
+     * The flow the calling thread works for, see {@link Flow#makeCurrent}.
+     */
+    static Flow current() {
+        Flow flow = CURRENT.get();
+        return flow == null ? LOCAL : flow;
+    }
+
+    static void schedule(Runnable task, long nanos) {
+        TIMER.schedule(task, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static class Tenant {
+        private final String host;
+        private final int weight;
+        private final long rate;
+        private final double burst;
+        // guarded by this
+        private double tokens;
+        private long refilled = System.nanoTime();
+        // guarded by TENANTS
+        private int connections = 0;
+
+        private Tenant(String host, int weight, long rate) {
+            this.host = host;
+            this.weight = weight;
+            this.rate = rate;
+            this.burst = Double.max(MIN_BURST_BYTES, rate * BURST_SECONDS);
+            this.tokens = burst;
+        }
+
+        /**
+         * @return how long to wait before reading more, to pay back what was read beyond the rate
+         */
+        private synchronized long debit(long bytes) {
+            if (rate <= 0)
+                return 0;
+            long now = System.nanoTime();
+            tokens = Double.min(burst, tokens + (now - refilled) * (rate / 1e9));
+            refilled = now;
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+        }
+    }
+
+    /**
+     * One connection's share of its tenant. Read from both the thread reading the socket and the ones doing the
+     * connection's work.
+     */
+    static class Flow {
+        private final Tenant tenant;
+        private volatile long fileBytes = 0;
+
+        private Flow(Tenant tenant) {
+            this.tenant = tenant;
+        }
+
+        /**
+         * Work queued from the calling thread is on behalf of this flow until the scope is closed.
+         */
+        Scope makeCurrent() {
+            Flow previous = CURRENT.get();
+            CURRENT.set(this);
+            return () -> CURRENT.set(previous);
+        }
+
+        /**
+         * A new file starts on the connection, it is small again.
+         */
+        void startFile() {
+            fileBytes = 0;
+        }
+
+        TrafficClass getTrafficClass() {
+            return fileBytes < SMALL_FILE_BYTES ? TrafficClass.SMALL : TrafficClass.BULK;
+        }
+
+        /**
+         * Counts bytes just read off the socket.
+         *
+         * @return nanoseconds to wait before reading again, 0 unless the client is over its rate limit
+         */
+        long onRead(long bytes) {
+            TrafficClass trafficClass = getTrafficClass();
+            fileBytes += bytes;
+            long wait = tenant.debit(bytes);
+            if (wait > 0)
+                Metrics.recordQueueWait("rate_limit", trafficClass.label, wait, bytes);
+            return wait;
+        }
+
+        void close() {
+            synchronized (TENANTS) {
+                if (--tenant.connections == 0)
+                    TENANTS.remove(tenant.host);
+            }
+        }
+    }
+
+    /**
+     * Orders the work of one shared resource, see the class comment. Work has to be taken with {@link #ticket} on the
+     * thread of the flow it is for, and reported with {@link Ticket#start} when it leaves the queue.
+     */
+    static class FairQueue {
+        private final String name;
+        // a tenant that is gone has nothing queued, its entry can go with it. The finish time is kept in a one element
+        // array so stamping a ticket doesn't box a new Double every time
+        private final Map<Tenant, double[]> finish = new WeakHashMap<>();
+        private double virtualTime = 0;
+        private long sequence = 0;
+
+        FairQueue(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param cost bytes the work is about, a tenant's share is counted in them
+         */
+        Ticket ticket(long cost) {
+            return stamp(new Ticket(this), cost);
+        }
+
+        /**
+         * Same as {@link #ticket} into a ticket of this queue whose work has already left it, for work that is queued
+         * over and over.
+         */
+        synchronized Ticket stamp(Ticket ticket, long cost) {
+            Flow flow = current();
+            double[] tenantFinish = finish.get(flow.tenant);
+            if (tenantFinish == null)
+                finish.put(flow.tenant, tenantFinish = new double[1]);
+            double start = Double.max(virtualTime, tenantFinish[0]);
+            double end = start + (double) cost / flow.tenant.weight;
+            tenantFinish[0] = end;
+            ticket.trafficClass = flow.getTrafficClass();
+            ticket.finish = end;
+            ticket.sequence = sequence++;
+            ticket.cost = cost;
+            ticket.queued = System.nanoTime();
+            return ticket;
+        }
+
+        // self clocked, virtual time is the finish of whatever was taken last
+        private synchronized void advance(double finish) {
+            virtualTime = Double.max(virtualTime, finish);
+        }
+    }
+
+    static class Ticket implements Comparable<Ticket> {
+        private final FairQueue queue;
+        // set by FairQueue.stamp, a ticket is only stamped again once its work has left the queue
+        private TrafficClass trafficClass;
+        private double finish;
+        private long sequence;
+        private long cost;
+        private long queued;
+
+        private Ticket(FairQueue queue) {
+            this.queue = queue;
+        }
+
+        void start() {
+            queue.advance(finish);
+            Metrics.recordQueueWait(queue.name, trafficClass.label, System.nanoTime() - queued, cost);
+        }
+
+        private double rank() {
+            return trafficClass == TrafficClass.SMALL ? finish - SMALL_HEAD_START : finish;
+        }
+
+        @Override
+        public int compareTo(Ticket other) {
+            int byRank = Double.compare(rank(), other.rank());
+            return byRank != 0 ? byRank : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Thread pool that runs its work in {@link FairQueue} order instead of first come first served.
+     */
+    static class FairExecutor extends ThreadPoolExecutor {
+        private final FairQueue queue;
+
+        FairExecutor(String queueName, int threads, String threadName) {
+            super(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                return t;
+            });
+            this.queue = new FairQueue(queueName);
+        }
+
+        /**
+         * @param cost see {@link FairQueue#ticket}
+         */
+        <T> Future<T> submit(Callable<T> task, long cost) {
+            Scheduled<T> scheduled = new Scheduled<>(task, queue.ticket(cost));
+            execute(scheduled);
+            return scheduled;
+        }
+
+        /**
+         * Queues a task that is run again and again without allocating anything, it must not be submitted again before
+         * it has run.
+         *
+         * @param cost see {@link FairQueue#ticket}
+         */
+        void execute(FairTask task, long cost) {
+            task.ticket = task.ticket == null ? queue.ticket(cost) : queue.stamp(task.ticket, cost);
+            execute(task);
+        }
+
+        // whatever comes in through the plain submit methods is queued at no cost
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> task) {
+            return new Scheduled<>(task, queue.ticket(0));
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Runnable task, T value) {
+            return new Scheduled<>(Executors.callable(task, value), queue.ticket(0));
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            if (r instanceof Queued)
+                ((Queued) r).getTicket().start();
+        }
+    }
+
+    /**
+     * What a {@link FairExecutor} queues, in the order of its ticket.
+     */
+    private interface Queued extends Runnable, Comparable<Queued> {
+        Ticket getTicket();
+
+        @Override
+        default int compareTo(Queued other) {
+            return getTicket().compareTo(other.getTicket());
+        }
+    }
+
+    /**
+     * Work a {@link FairExecutor} runs over and over, see {@link FairExecutor#execute(FairTask, long)}.
+     */
+    abstract static class FairTask implements Queued {
+        private Ticket ticket;
+
+        @Override
+        public Ticket getTicket() {
+            return ticket;
+        }
+    }
+
+    private static class Scheduled<T> extends FutureTask<T> implements Queued {
+        private final Ticket ticket;
+
+        private Scheduled(Callable<T> task, Ticket ticket) {
+            super(task);
+            this.ticket = ticket;
+        }
+
+        @Override
+        public Ticket getTicket() {
+            return ticket;
+        }
+    }
+
+}
@@ -1,25 +1,78 @@
 package server;
 
+import shared.ChunkCodec;
 import shared.ExceptionLogger;
+import shared.Handshake;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class FileHeader {
 
+    // uncompressed, compressed, codec, hash; the end of file marker is just the zero uncompressed length
+    public static final int SIZE = Integer.BYTES + Integer.BYTES + Byte.BYTES + Long.BYTES;
+    // a zero run is just its negated length, see ZeroRuns
+    public static final int ZERO_RUN_SIZE = Integer.BYTES;
+
     private int uncompressed;
     private int compressed;
+    private ChunkCodec codec;
     private long hash;
+    private boolean zeroRun;
 
     public FileHeader() {
     }
 
-    public FileHeader read(DataInputStream reader) throws IOException {
+    /**
+     * @param maxChunkSize the chunk size the connection agreed on, no chunk may be longer
+     */
+    public FileHeader read(DataInputStream reader, int maxChunkSize) throws IOException {
         uncompressed = reader.readInt();
-        if (uncompressed == 0)
-            return this;
+        if (uncompressed <= 0)
+            return zeroRun();
+        zeroRun = false;
         compressed = reader.readInt();
+        codec = ChunkCodec.of(reader.readByte());
         hash = reader.readLong();
+        return validate(maxChunkSize);
+    }
+
+    public FileHeader read(ByteBuffer buffer, int maxChunkSize) {
+        uncompressed = buffer.getInt();
+        if (uncompressed <= 0)
+            return zeroRun();
+        zeroRun = false;
+        compressed = buffer.getInt();
+        codec = ChunkCodec.of(buffer.get());
+        hash = buffer.getLong();
+        return validate(maxChunkSize);
+    }
+
+    /**
+     * A negative length is a run of that many zeros with nothing following it, which reads as a chunk of the run's length
+     * that compressed to nothing. The end of file marker goes through here too and stays a zero length.
+     */
+    private FileHeader zeroRun() {
+        if (uncompressed == Integer.MIN_VALUE)
+            throw new RuntimeException("Zero run of " + uncompressed + " bytes!");
+        zeroRun = uncompressed != 0;
+        uncompressed = -uncompressed;
+        compressed = 0;
+        codec = null;
+        hash = 0;
+        return this;
+    }
+
+    /**
+     * Chunks can be any size up to the one agreed in the {@link Handshake}, the lengths decide how much gets buffered so
+     * a frame claiming more than that is refused before anything is allocated for it.
+     */
+    private FileHeader validate(int maxChunkSize) {
+        if (uncompressed < 0 || uncompressed > maxChunkSize)
+            throw new RuntimeException("Chunk of " + uncompressed + " bytes is more than the agreed chunk size of " + maxChunkSize + "!");
+        if (compressed <= 0 || compressed > ChunkCodec.maxCompressedLength(uncompressed))
+            throw new RuntimeException("Chunk compressed to " + compressed + " bytes can't hold " + uncompressed + " bytes!");
         return this;
     }
 
@@ -31,7 +84,18 @@ public class FileHeader {
         return compressed;
     }
 
+    public ChunkCodec getCodec() {
+        return codec;
+    }
+
     public long getHash() {
         return hash;
     }
+
+    /**
+     * Whether this is a run of {@link #getUncompressed} zeros rather than a chunk, there is no payload to read.
+     */
+    public boolean isZeroRun() {
+        return zeroRun;
+    }
 }
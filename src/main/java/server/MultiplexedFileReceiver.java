@@ -0,0 +1,171 @@
+package server;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import shared.FileUtil;
+import shared.Handshake;
+import shared.Metrics;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Server side of the STREAM_OPEN and STREAM_CHUNK commands of one connection, see {@link client.MultiplexedFileSender}
+ * for the layout. Every open stream has a reader of its own writing through the {@link DiskWriter}.
+ * <p>
+ * Chunks are decoded on the shared decoders like {@link PipelinedChunkedCompressedChecksumFileReader} does, but with one
+ * window for the whole connection: decoded chunks are handed to their readers in the order they arrived, which keeps
+ * every stream in order whatever the interleaving.
+ */
+public class MultiplexedFileReceiver {
+
+    private static final int WINDOW = PipelinedChunkedCompressedChecksumFileReader.PARALLELISM * 2;
+    // a client could otherwise have the server hold a reader and its buffers for as many files as it likes
+    public static final int MAX_OPEN_STREAMS = 256;
+
+    private final Tracer trace;
+    private final Span connectionSpan;
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    private final ArrayDeque<DecodedChunk> inFlight = new ArrayDeque<>(WINDOW);
+    private int filesReceived = 0;
+
+    public MultiplexedFileReceiver(Tracer trace, Span connectionSpan) {
+        this.trace = trace;
+        this.connectionSpan = connectionSpan;
+    }
+
+    /**
+     * Reads a STREAM_OPEN command after its command byte.
+     */
+    public void open(DataInputStream in, Handshake session) throws IOException {
+        int id = in.readInt();
+        String userPath = in.readUTF();
+        if (streams.containsKey(id))
+            throw new RuntimeException("Stream " + id + " is already open!");
+        if (streams.size() >= MAX_OPEN_STREAMS)
+            throw new RuntimeException("More than " + MAX_OPEN_STREAMS + " streams open at once!");
+        String path = FileUtil.createPath(userPath);
+        System.out.println("Writing to file: " + path + " from stream " + id);
+        connectionSpan.addEvent("File Received");
+        Span span = trace.spanBuilder("Stream Received")
+                .setAttribute("Files Received", filesReceived++)
+                .setAttribute("File", path)
+                .setAttribute("Stream", id)
+                .startSpan();
+        streams.put(id, new Stream(path, new ChunkedCompressedChecksumFileReader(path, session), session.getSeed(), span));
+    }
+
+    /**
+     * Reads a STREAM_CHUNK command after its command byte, the last one of a stream finishes its file.
+     */
+    public void chunk(DataInputStream in) throws IOException {
+        int id = in.readInt();
+        Stream stream = streams.get(id);
+        if (stream == null)
+            throw new RuntimeException("Chunk for stream " + id + " which isn't open!");
+        FileHeader header = new FileHeader().read(in, stream.reader.getMaxChunkSize());
+        if (header.getUncompressed() == 0) {
+            finish(stream, id, in.readLong());
+            return;
+        }
+        ByteBuffer payload = header.isZeroRun() ? null : readPayload(in, header);
+        if (inFlight.size() >= WINDOW)
+            emit(inFlight.poll());
+        inFlight.add(new DecodedChunk(stream, header, PipelinedChunkedCompressedChecksumFileReader.submit(header, payload, stream.seed)));
+        // hand over whatever is done already rather than letting it wait for the window to fill
+        while (!inFlight.isEmpty() && inFlight.peek().plain.isDone())
+            emit(inFlight.poll());
+    }
+
+    private static ByteBuffer readPayload(DataInputStream in, FileHeader header) throws IOException {
+        ByteBuffer payload = FileUtil.BUFFER_POOL.acquire(header.getCompressed());
+        long start = System.nanoTime();
+        try {
+            in.readFully(payload.array(), payload.arrayOffset(), header.getCompressed());
+        } catch (IOException e) {
+            FileUtil.BUFFER_POOL.release(payload);
+            throw e;
+        }
+        Metrics.record(Metrics.Stage.SOCKET_READ, System.nanoTime() - start, header.getCompressed());
+        return payload;
+    }
+
+    private void finish(Stream stream, int id, long streamHash) throws IOException {
+        // the window is shared, chunks of other streams ahead of this one's last go out first
+        while (!inFlight.isEmpty())
+            emit(inFlight.poll());
+        streams.remove(id);
+        try {
+            stream.reader.close(streamHash);
+        } catch (IOException | RuntimeException e) {
+            stream.span.recordException(e);
+            stream.span.setStatus(StatusCode.ERROR);
+            stream.span.end();
+            throw e;
+        }
+        stream.span.setAttribute("Data Read Uncompressed Bytes", stream.reader.getUncompressedBytes());
+        stream.span.setAttribute("Data Read Compressed Bytes", stream.reader.getCompressedBytes());
+        stream.span.setAttribute("Data Compression Ratio", stream.reader.getRatio());
+        stream.span.setStatus(StatusCode.OK);
+        stream.span.end();
+        System.out.println("Writing " + stream.path + " complete");
+    }
+
+    private void emit(DecodedChunk chunk) throws IOException {
+        chunk.stream.reader.acceptDecoded(chunk.header, PipelinedChunkedCompressedChecksumFileReader.await(chunk.plain));
+    }
+
+    /**
+     * Drops every stream that is still open along with its half written file, for when the connection ends or breaks
+     * in the middle of them.
+     */
+    public void abort() {
+        for (DecodedChunk chunk : inFlight) {
+            try {
+                FileUtil.BUFFER_POOL.release(PipelinedChunkedCompressedChecksumFileReader.await(chunk.plain));
+            } catch (IOException | RuntimeException ignored) {
+                // its buffers were released when it failed
+            }
+        }
+        inFlight.clear();
+        for (Stream stream : streams.values()) {
+            stream.reader.abort();
+            stream.span.setStatus(StatusCode.ERROR, "Connection ended with the stream open");
+            stream.span.end();
+        }
+        streams.clear();
+    }
+
+    private static class Stream {
+        private final String path;
+        private final ChunkedCompressedChecksumFileReader reader;
+        private final long seed;
+        private final Span span;
+
+        private Stream(String path, ChunkedCompressedChecksumFileReader reader, long seed, Span span) {
+            this.path = path;
+            this.reader = reader;
+            this.seed = seed;
+            this.span = span;
+        }
+    }
+
+    private static class DecodedChunk {
+        private final Stream stream;
+        private final FileHeader header;
+        private final Future<ByteBuffer> plain;
+
+        private DecodedChunk(Stream stream, FileHeader header, Future<ByteBuffer> plain) {
+            this.stream = stream;
+            this.header = header;
+            this.plain = plain;
+        }
+    }
+
+}
@@ -0,0 +1,464 @@
+package server;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanBuilder;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+import shared.ExceptionLogger;
+import shared.FileUtil;
+import shared.Handshake;
+import shared.Metrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per client state for {@link NioServer}. The selector thread feeds socket bytes through a small state machine that
+ * understands the HELLO handshake, the COMMAND / path / {@link FileHeader} framing, BUNDLE indexes and SYNC; every complete
+ * unit of work is queued and run in order on the worker pool so one client never has two tasks running at once. Chunks
+ * are decoded and verified in parallel ahead of their task, see {@link PipelinedChunkedCompressedChecksumFileReader}.
+ */
+class NioConnection {
+
+    private static final int READ_BUFFER_SIZE = 128 * 1024;
+    // stop reading from the socket once this many frames are waiting on the workers, TCP will push back on the client
+    private static final int MAX_PENDING_TASKS = 16;
+    private static final int RESUME_PENDING_TASKS = MAX_PENDING_TASKS / 2;
+    // the fixed part of a HELLO offer: version, chunk size, seed and the codec count
+    private static final int HELLO_SIZE = Short.BYTES + Integer.BYTES + Long.BYTES + Byte.BYTES;
+    // everything else has the server answer mid transfer, which the state machine doesn't do; clients learn it at HELLO
+    private static final Handshake NIO_SERVER = Handshake.SERVER.taking(FileUtil.COMMAND.HELLO, FileUtil.COMMAND.CLOSE,
+            FileUtil.COMMAND.WRITE, FileUtil.COMMAND.BUNDLE, FileUtil.COMMAND.SYNC);
+
+    private enum State {
+        COMMAND, HELLO, HELLO_CODECS, PATH_LENGTH, PATH, BUNDLE_COUNT, BUNDLE_ENTRY, HEADER, PAYLOAD
+    }
+
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    private final NioServer server;
+    private final Tracer trace;
+    private final SelectionKey key;
+    private final SocketChannel channel;
+    private final Span connectionSpan;
+
+    // selector thread only
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private State state = State.COMMAND;
+    private int pathLength;
+    private int codecCount;
+    private int bundleEntries;
+    private ByteArrayOutputStream bundleIndex;
+    private Handshake session = Handshake.DEFAULT;
+    private FileHeader header;
+    private ByteBuffer payload;
+    private final FairScheduler.Flow flow;
+
+    // worker side, only ever touched by the single drain running for this connection
+    private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private ChunkedCompressedChecksumFileReader reader;
+    private BundleReceiver bundle;
+    private Span fileSpan;
+    private int filesReceived = 0;
+
+    private final Task closeTask = this::close;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean paused = false;
+    // over the client's rate limit, reads stay off until then whatever the workers say
+    private volatile long throttledUntil = 0;
+    private volatile boolean closing = false;
+    private volatile boolean failed = false;
+
+    NioConnection(NioServer server, Tracer trace, SelectionKey key, SocketChannel channel) {
+        this.server = server;
+        this.trace = trace;
+        this.key = key;
+        this.channel = channel;
+        Socket socket = channel.socket();
+        this.flow = FairScheduler.open(socket.getInetAddress().getHostAddress());
+        SpanBuilder sb = trace.spanBuilder("New Client Connection");
+        sb.setAttribute("INetAddress", socket.getInetAddress().toString());
+        sb.setAttribute("Port", socket.getPort());
+        sb.setAttribute("LocalPort", socket.getLocalPort());
+        connectionSpan = sb.startSpan();
+        connectionSpan.addEvent("Connection Established");
+    }
+
+    void onReadable() {
+        int read;
+        long start = System.nanoTime();
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        if (read < 0) {
+            closeWhenDrained();
+            return;
+        }
+        // per read rather than per frame, the selector hands over whatever arrived
+        Metrics.record(Metrics.Stage.SOCKET_READ, System.nanoTime() - start, read);
+        long wait = flow.onRead(read);
+        readBuffer.flip();
+        // chunks get their place in the decoders' fair queue as they are submitted here
+        try (Scope fair = flow.makeCurrent()) {
+            parse();
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            return;
+        }
+        readBuffer.compact();
+        if (!closing && wait > 0)
+            throttle(wait);
+        else if (!closing && pending.get() >= MAX_PENDING_TASKS)
+            pause();
+    }
+
+    private void parse() throws IOException {
+        while (!closing) {
+            switch (state) {
+                case COMMAND: {
+                    if (readBuffer.remaining() < 1)
+                        return;
+                    byte command = readBuffer.get();
+                    flow.startFile();
+                    if (command == FileUtil.COMMAND.CLOSE.type) {
+                        System.out.println("Client sent disconnect signal!");
+                        closeWhenDrained();
+                        return;
+                    }
+                    if (command == FileUtil.COMMAND.HELLO.type) {
+                        state = State.HELLO;
+                        break;
+                    }
+                    if (command == FileUtil.COMMAND.BUNDLE.type) {
+                        state = State.BUNDLE_COUNT;
+                        break;
+                    }
+                    if (command == FileUtil.COMMAND.SYNC.type) {
+                        // queued behind the work before it, a failure there closes the connection instead
+                        submit(this::acknowledge);
+                        break;
+                    }
+                    if (command != FileUtil.COMMAND.WRITE.type)
+                        throw new IOException("Unsupported command " + command + " for the NIO server, it didn't offer it at HELLO");
+                    state = State.PATH_LENGTH;
+                    break;
+                }
+                case HELLO:
+                    if (readBuffer.remaining() < HELLO_SIZE)
+                        return;
+                    codecCount = readBuffer.get(readBuffer.position() + HELLO_SIZE - 1) & 0xFF;
+                    state = State.HELLO_CODECS;
+                    break;
+                case HELLO_CODECS: {
+                    if (readBuffer.remaining() < HELLO_SIZE + codecCount)
+                        return;
+                    byte[] offer = new byte[HELLO_SIZE + codecCount];
+                    readBuffer.get(offer);
+                    session = NIO_SERVER.accept(Handshake.read(new DataInputStream(new ByteArrayInputStream(offer))));
+                    reply(session);
+                    if (!session.isAccepted()) {
+                        System.out.println("Refused client with an unsupported protocol version");
+                        closeWhenDrained();
+                        return;
+                    }
+                    connectionSpan.setAttribute("Protocol Version", session.getVersion());
+                    connectionSpan.setAttribute("Chunk Size", session.getChunkSize());
+                    connectionSpan.setAttribute("Codec", session.getCodec().name());
+                    state = State.COMMAND;
+                    break;
+                }
+                case PATH_LENGTH:
+                    if (readBuffer.remaining() < 2)
+                        return;
+                    pathLength = readBuffer.getShort() & 0xFFFF;
+                    state = State.PATH;
+                    break;
+                case PATH: {
+                    if (readBuffer.remaining() < pathLength)
+                        return;
+                    // writeUTF uses modified UTF-8, let DataInputStream decode it rather than doing it by hand
+                    byte[] utf = new byte[pathLength + 2];
+                    utf[0] = (byte) (pathLength >>> 8);
+                    utf[1] = (byte) pathLength;
+                    readBuffer.get(utf, 2, pathLength);
+                    String path = new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+                    Handshake agreed = session;
+                    submit(() -> open(path, agreed));
+                    state = State.HEADER;
+                    break;
+                }
+                case BUNDLE_COUNT:
+                    if (readBuffer.remaining() < 4)
+                        return;
+                    bundleEntries = readBuffer.getInt(readBuffer.position());
+                    // checked here as well as in BundleReceiver so a bogus count can't make the index buffer grow forever
+                    if (bundleEntries < 1 || bundleEntries > FileUtil.BUNDLE_MAX_FILES)
+                        throw new IOException("Bundle of " + bundleEntries + " files is more than the " + FileUtil.BUNDLE_MAX_FILES + " allowed");
+                    bundleIndex = new ByteArrayOutputStream();
+                    bundleIndex.write(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), 4);
+                    readBuffer.position(readBuffer.position() + 4);
+                    state = State.BUNDLE_ENTRY;
+                    break;
+                case BUNDLE_ENTRY: {
+                    // shared prefix length, path length, path, size
+                    if (readBuffer.remaining() < 4)
+                        return;
+                    int entryLength = 8 + (readBuffer.getShort(readBuffer.position() + 2) & 0xFFFF);
+                    if (readBuffer.remaining() < entryLength)
+                        return;
+                    bundleIndex.write(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), entryLength);
+                    readBuffer.position(readBuffer.position() + entryLength);
+                    if (--bundleEntries > 0)
+                        break;
+                    byte[] index = bundleIndex.toByteArray();
+                    bundleIndex = null;
+                    Handshake agreed = session;
+                    submit(() -> openBundle(index, agreed));
+                    state = State.HEADER;
+                    break;
+                }
+                case HEADER: {
+                    if (readBuffer.remaining() < 4)
+                        return;
+                    if (readBuffer.getInt(readBuffer.position()) == 0) {
+                        if (readBuffer.remaining() < 12)
+                            return;
+                        readBuffer.getInt();
+                        long streamHash = readBuffer.getLong();
+                        submit(() -> finish(streamHash));
+                        state = State.COMMAND;
+                        break;
+                    }
+                    if (readBuffer.getInt(readBuffer.position()) < 0) {
+                        FileHeader run = new FileHeader().read(readBuffer, session.getChunkSize());
+                        submit(() -> reader.acceptDecoded(run, null));
+                        break;
+                    }
+                    if (readBuffer.remaining() < FileHeader.SIZE)
+                        return;
+                    header = new FileHeader().read(readBuffer, session.getChunkSize());
+                    payload = FileUtil.BUFFER_POOL.acquire(header.getCompressed());
+                    payload.limit(header.getCompressed());
+                    state = State.PAYLOAD;
+                    break;
+                }
+                case PAYLOAD: {
+                    int amount = Integer.min(readBuffer.remaining(), payload.remaining());
+                    int limit = readBuffer.limit();
+                    readBuffer.limit(readBuffer.position() + amount);
+                    payload.put(readBuffer);
+                    readBuffer.limit(limit);
+                    if (payload.hasRemaining())
+                        return;
+                    // decoding starts right away on the shared decoders, only handing the result over waits its turn
+                    FileHeader chunkHeader = header;
+                    Future<ByteBuffer> decoded = PipelinedChunkedCompressedChecksumFileReader.submit(header, payload, session.getSeed());
+                    submit(() -> reader.acceptDecoded(chunkHeader, PipelinedChunkedCompressedChecksumFileReader.await(decoded)));
+                    header = null;
+                    payload = null;
+                    state = State.HEADER;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * The answer is a couple dozen bytes going out on a connection that hasn't sent anything yet, so the socket buffer
+     * always has room and the non blocking write completes in one go.
+     */
+    private void reply(Handshake agreed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        agreed.writeAnswer(out);
+        out.flush();
+        ByteBuffer answer = ByteBuffer.wrap(bytes.toByteArray());
+        channel.write(answer);
+        if (answer.hasRemaining())
+            throw new IOException("Couldn't send the handshake answer in one write");
+    }
+
+    /**
+     * Answers a SYNC. The client waits for it before sending anything else, so like {@link #reply} it goes out in one
+     * non blocking write.
+     */
+    private void acknowledge() throws IOException {
+        ByteBuffer answer = ByteBuffer.wrap(new byte[]{1});
+        channel.write(answer);
+        if (answer.hasRemaining())
+            throw new IOException("Couldn't send the sync answer in one write");
+    }
+
+    private void open(String userPath, Handshake agreed) throws IOException {
+        String path = FileUtil.createPath(userPath);
+        System.out.println("Writing to file: " + path);
+        connectionSpan.addEvent("File Received");
+        fileSpan = trace.spanBuilder("File Received")
+                .setParent(Context.current().with(connectionSpan))
+                .setAttribute("Files Received", filesReceived++)
+                .setAttribute("File", path)
+                .startSpan();
+        reader = new ChunkedCompressedChecksumFileReader(path, agreed);
+    }
+
+    private void openBundle(byte[] index, Handshake agreed) throws IOException {
+        bundle = BundleReceiver.readIndex(new DataInputStream(new ByteArrayInputStream(index)), null, agreed);
+        connectionSpan.addEvent("Bundle Received");
+        fileSpan = trace.spanBuilder("Bundle Received")
+                .setParent(Context.current().with(connectionSpan))
+                .setAttribute("Files Received", filesReceived)
+                .startSpan();
+        filesReceived += bundle.getFileCount();
+        reader = bundle.getReader();
+    }
+
+    private void finish(long streamHash) throws IOException {
+        if (bundle != null) {
+            bundle.finish(streamHash, fileSpan);
+            fileSpan.end();
+            bundle = null;
+            reader = null;
+            fileSpan = null;
+            return;
+        }
+        reader.close(streamHash);
+        fileSpan.setAttribute("Data Read Uncompressed Bytes", reader.getUncompressedBytes());
+        fileSpan.setAttribute("Data Read Compressed Bytes", reader.getCompressedBytes());
+        fileSpan.setAttribute("Data Compression Ratio", reader.getRatio());
+        fileSpan.setStatus(StatusCode.OK);
+        fileSpan.end();
+        System.out.println("Writing complete");
+        reader = null;
+        fileSpan = null;
+    }
+
+    private void submit(Task task) {
+        pending.incrementAndGet();
+        tasks.add(task);
+        if (draining.compareAndSet(false, true))
+            server.getWorkers().execute(this::drain);
+    }
+
+    private void drain() {
+        try (Scope fair = flow.makeCurrent()) {
+            drainSome();
+        }
+        draining.set(false);
+        if (!tasks.isEmpty() && draining.compareAndSet(false, true))
+            server.getWorkers().execute(this::drain);
+    }
+
+    private void drainSome() {
+        // bounded so that a busy connection gives the other connections a turn on the pool
+        for (int ran = 0; ran < MAX_PENDING_TASKS; ran++) {
+            Task task = tasks.poll();
+            if (task == null)
+                break;
+            if (failed && task != closeTask) {
+                abortFile();
+            } else {
+                try {
+                    task.run();
+                } catch (IOException | RuntimeException e) {
+                    fail(e);
+                    abortFile();
+                }
+            }
+            if (pending.decrementAndGet() <= RESUME_PENDING_TASKS && paused)
+                server.requestResume(this);
+        }
+    }
+
+    private void abortFile() {
+        if (reader == null)
+            return;
+        reader.abort();
+        reader = null;
+        bundle = null;
+        if (fileSpan != null) {
+            fileSpan.setStatus(StatusCode.ERROR);
+            fileSpan.end();
+            fileSpan = null;
+        }
+    }
+
+    private void pause() {
+        paused = true;
+        key.interestOps(0);
+        // a worker may have drained everything between our check and the flag going up
+        if (pending.get() <= RESUME_PENDING_TASKS)
+            resumeReads();
+    }
+
+    /**
+     * Stops reading until the client is back within its rate limit, a timer resumes it.
+     */
+    private void throttle(long nanos) {
+        throttledUntil = System.nanoTime() + nanos;
+        paused = true;
+        key.interestOps(0);
+        FairScheduler.schedule(() -> server.requestResume(this), nanos);
+    }
+
+    void resumeReads() {
+        if (!paused || closing || !key.isValid() || System.nanoTime() < throttledUntil)
+            return;
+        paused = false;
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void closeWhenDrained() {
+        closing = true;
+        if (key.isValid())
+            key.interestOps(0);
+        submit(closeTask);
+    }
+
+    private void fail(Exception e) {
+        if (failed)
+            return;
+        failed = true;
+        closing = true;
+        connectionSpan.recordException(e);
+        ExceptionLogger.log(e);
+        submit(closeTask);
+    }
+
+    void close() {
+        if (!closed.compareAndSet(false, true))
+            return;
+        server.getActiveConnections().decrementAndGet();
+        flow.close();
+        try {
+            key.cancel();
+            channel.close();
+        } catch (IOException e) {
+            ExceptionLogger.log(e);
+        }
+        connectionSpan.setStatus(failed ? StatusCode.ERROR : StatusCode.OK);
+        connectionSpan.end();
+        System.out.println("Client Disconnected");
+    }
+
+}
@@ -0,0 +1,158 @@
+package server;
+
+import io.opentelemetry.api.trace.Tracer;
+import shared.ExceptionLogger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event loop server. A single selector thread owns every socket and only parses framing, chunks are decoded and verified
+ * in parallel on the shared decoders and everything that has to happen in order is queued per connection onto a fixed
+ * worker pool. Idle clients cost a registered key and nothing else.
+ */
+public class NioServer implements Runnable {
+
+    public static final int WORKER_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private final int port;
+    private final Tracer trace;
+    private final ExecutorService workers;
+    private final Queue<NioConnection> resumeQueue = new ConcurrentLinkedQueue<>();
+    // shared with the thread per connection server so both report through the same gauge
+    private final AtomicInteger activeConnections = Connection.ACTIVE;
+    private final CountDownLatch listening = new CountDownLatch(1);
+    private Selector selector;
+
+    private volatile boolean running = true;
+    private volatile boolean bound = false;
+
+    public NioServer(Tracer trace, int port) {
+        this(trace, port, WORKER_THREADS);
+    }
+
+    public NioServer(Tracer trace, int port, int workerThreads) {
+        this.trace = trace;
+        this.port = port;
+        AtomicInteger id = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread t = new Thread(r, "NIO Worker " + id.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void run() {
+        try (Selector selector = Selector.open(); ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.selector = selector;
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            bound = true;
+            listening.countDown();
+            System.out.println("NIO Server Started");
+
+            while (running) {
+                selector.select();
+                resumeReads();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept(serverChannel);
+                    else if (key.isReadable())
+                        ((NioConnection) key.attachment()).onReadable();
+                }
+            }
+            for (SelectionKey key : selector.keys())
+                if (key.attachment() instanceof NioConnection)
+                    ((NioConnection) key.attachment()).close();
+        } catch (IOException e) {
+            ExceptionLogger.log(e);
+        } finally {
+            // wakes whoever waits for a server that never got to listen
+            listening.countDown();
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(1, TimeUnit.SECONDS))
+                workers.shutdownNow();
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("NIO Server exited!");
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel client = serverChannel.accept();
+        if (client == null)
+            return;
+        client.configureBlocking(false);
+        client.socket().setTcpNoDelay(true);
+        SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+        key.attach(new NioConnection(this, trace, key, client));
+        activeConnections.incrementAndGet();
+    }
+
+    private void resumeReads() {
+        NioConnection connection;
+        while ((connection = resumeQueue.poll()) != null)
+            connection.resumeReads();
+    }
+
+    /**
+     * Called from worker threads once a connection that was paused for backpressure has drained its queue.
+     */
+    void requestResume(NioConnection connection) {
+        resumeQueue.add(connection);
+        Selector s = selector;
+        if (s != null)
+            s.wakeup();
+    }
+
+    ExecutorService getWorkers() {
+        return workers;
+    }
+
+    AtomicInteger getActiveConnections() {
+        return activeConnections;
+    }
+
+    /**
+     * Connections accepted and not closed yet, a closed one has also finished writing everything it received.
+     */
+    public int getOpenConnections() {
+        return activeConnections.get();
+    }
+
+    /**
+     * Waits for {@link #run()} to bind its port.
+     *
+     * @return whether the server is accepting clients, false when it couldn't bind or the timeout passed first
+     */
+    public boolean awaitListening(long timeout, TimeUnit unit) throws InterruptedException {
+        return listening.await(timeout, unit) && bound;
+    }
+
+    public void stop() {
+        running = false;
+        Selector s = selector;
+        if (s != null)
+            s.wakeup();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+}
@@ -0,0 +1,272 @@
+package server;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Scope;
+import shared.ChunkCodec;
+import shared.FileUtil;
+import shared.Metrics;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Multi-core counterpart of {@link ChunkedCompressedChecksumFileReader#readChunk} for a single connection.
+ * <p>
+ * The connection thread only reads frames off the socket and hands each one to a shared pool of decoders, which
+ * decompress it and check it against its own hash. Every frame carries its uncompressed length and hash, so they don't
+ * depend on each other. The decoded chunks are then handed to the reader strictly in the order they arrived, which keeps
+ * the stream hash and the file identical to the serial path. At most {@link #WINDOW} frames per connection are in flight
+ * while the next one is read.
+ * <p>
+ * Every frame goes through one of a fixed ring of {@link Slot}s holding its header, its buffers and the decode task, so
+ * like the serial path nothing is allocated per chunk.
+ */
+public class PipelinedChunkedCompressedChecksumFileReader {
+
+    public static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    // twice the decoders keeps them busy while the connection thread waits on the socket
+    private static final int WINDOW = PARALLELISM * 2;
+    // a zero run has nothing to decode but still takes its turn in the window
+    private static final Future<ByteBuffer> ZERO_RUN = CompletableFuture.completedFuture(null);
+
+    // shared by every connection, decoding is pure CPU so more threads than cores buys nothing. Connections take turns
+    // on it by their FairScheduler share rather than by who queued first
+    static final FairScheduler.FairExecutor DECODERS = new FairScheduler.FairExecutor("decode", PARALLELISM, "Chunk Decoder");
+
+    static {
+        Metrics.gauge("server_decoder_queue_depth", "Chunks waiting for a decoder thread", () -> DECODERS.getQueue().size());
+    }
+
+    private final DataInputStream networkStreamReader;
+    private final ChunkedCompressedChecksumFileReader reader;
+    // one more than the window, the next frame is read into it while the window is full
+    private final Slot[] ring = new Slot[WINDOW + 1];
+    // oldest slot in flight and how many are
+    private int head = 0;
+    private int inFlight = 0;
+
+    public PipelinedChunkedCompressedChecksumFileReader(DataInputStream networkStreamReader, ChunkedCompressedChecksumFileReader reader, long seed) {
+        this.networkStreamReader = networkStreamReader;
+        this.reader = reader;
+        for (int i = 0; i < ring.length; i++)
+            ring[i] = new Slot(seed);
+    }
+
+    /**
+     * Reads frames up to and including the end of file header, the stream hash after it is left for
+     * {@link ChunkedCompressedChecksumFileReader#close()}.
+     */
+    public void readAll(Tracer trace) throws IOException {
+        Span span = trace.spanBuilder("Pipelined Chunk Read").setAttribute("Parallelism", PARALLELISM).startSpan();
+        long chunks = 0;
+        try (Scope scope = span.makeCurrent()) {
+            while (true) {
+                Slot slot = ring[(head + inFlight) % ring.length];
+                FileHeader header = slot.header.read(networkStreamReader, reader.getMaxChunkSize());
+                if (header.getUncompressed() == 0)
+                    break;
+                slot.decode(header.isZeroRun() ? null : readPayload(networkStreamReader, header));
+                inFlight++;
+                if (inFlight > WINDOW)
+                    emit();
+                // hand over whatever is done already rather than letting it wait for the window to fill
+                while (inFlight > 0 && ring[head].isDone())
+                    emit();
+                chunks++;
+            }
+            while (inFlight > 0)
+                emit();
+            span.setAttribute("Chunks", chunks);
+            span.setStatus(StatusCode.OK);
+        } catch (IOException | RuntimeException e) {
+            span.recordException(e);
+            span.setStatus(StatusCode.ERROR);
+            discard();
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Decodes payload on the shared decoders, payload is a pooled buffer and is released or passed on as the result. A
+     * zero run has no payload and decodes to null.
+     */
+    static Future<ByteBuffer> submit(FileHeader header, ByteBuffer payload, long seed) {
+        if (header.isZeroRun())
+            return ZERO_RUN;
+        return DECODERS.submit(() -> {
+            if (header.getCodec() == ChunkCodec.STORED)
+                return releaseOnFailure(header, payload, null, seed);
+            ByteBuffer output = FileUtil.BUFFER_POOL.acquire(header.getUncompressed());
+            ByteBuffer plain = releaseOnFailure(header, payload, output, seed);
+            FileUtil.BUFFER_POOL.release(payload);
+            return plain;
+        }, header.getCompressed());
+    }
+
+    /**
+     * Waits for a decoded chunk, a failed decode is rethrown as what the serial path would have thrown.
+     */
+    static ByteBuffer await(Future<ByteBuffer> plain) throws IOException {
+        try {
+            return plain.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting on a decoded chunk", e);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable failure) {
+        if (failure instanceof RuntimeException)
+            return (RuntimeException) failure;
+        return new RuntimeException(failure);
+    }
+
+    /**
+     * Reads the payload of header into a pooled buffer, which is given back if the read fails.
+     */
+    static ByteBuffer readPayload(DataInputStream in, FileHeader header) throws IOException {
+        ByteBuffer payload = FileUtil.BUFFER_POOL.acquire(header.getCompressed());
+        long start = System.nanoTime();
+        try {
+            in.readFully(payload.array(), payload.arrayOffset(), header.getCompressed());
+        } catch (IOException e) {
+            FileUtil.BUFFER_POOL.release(payload);
+            throw e;
+        }
+        Metrics.record(Metrics.Stage.SOCKET_READ, System.nanoTime() - start, header.getCompressed());
+        return payload;
+    }
+
+    private static ByteBuffer releaseOnFailure(FileHeader header, ByteBuffer payload, ByteBuffer output, long seed) {
+        try {
+            return ChunkedCompressedChecksumFileReader.decode(header, payload, output, seed);
+        } catch (RuntimeException e) {
+            FileUtil.BUFFER_POOL.release(payload);
+            FileUtil.BUFFER_POOL.release(output);
+            throw e;
+        }
+    }
+
+    /**
+     * Hands the oldest slot in flight to the reader, which frees it for the next frame.
+     */
+    private void emit() throws IOException {
+        Slot slot = ring[head];
+        head = (head + 1) % ring.length;
+        inFlight--;
+        reader.acceptDecoded(slot.header, slot.await());
+    }
+
+    private void discard() {
+        for (; inFlight > 0; inFlight--, head = (head + 1) % ring.length) {
+            try {
+                FileUtil.BUFFER_POOL.release(ring[head].await());
+            } catch (IOException e) {
+                // interrupted, whatever is still decoding is left to the garbage collector
+                break;
+            } catch (RuntimeException ignored) {
+                // its buffers were released when it failed
+            }
+        }
+        inFlight = 0;
+    }
+
+    /**
+     * One frame in flight: its header, read straight into the slot, and its decode on the shared decoders.
+     */
+    private static class Slot extends FairScheduler.FairTask {
+        private final FileHeader header = new FileHeader();
+        private final long seed;
+        private ByteBuffer payload;
+        // guarded by this
+        private ByteBuffer plain;
+        private Throwable failure;
+        private boolean done;
+
+        private Slot(long seed) {
+            this.seed = seed;
+        }
+
+        /**
+         * Starts decoding payload, a pooled buffer that is released or passed on as the result. A zero run has no
+         * payload and is done straight away.
+         */
+        private void decode(ByteBuffer payload) {
+            boolean zeroRun = header.isZeroRun();
+            synchronized (this) {
+                this.plain = null;
+                this.failure = null;
+                this.done = zeroRun;
+            }
+            if (zeroRun)
+                return;
+            this.payload = payload;
+            try {
+                DECODERS.execute(this, header.getCompressed());
+            } catch (RuntimeException e) {
+                FileUtil.BUFFER_POOL.release(payload);
+                finish(null, e);
+            }
+        }
+
+        @Override
+        public void run() {
+            // the slot can be reused as soon as it is finished, nothing of this use may be touched after that
+            ByteBuffer payload = this.payload;
+            this.payload = null;
+            ByteBuffer output = null;
+            try {
+                if (header.getCodec() == ChunkCodec.STORED) {
+                    finish(ChunkedCompressedChecksumFileReader.decode(header, payload, null, seed), null);
+                } else {
+                    output = FileUtil.BUFFER_POOL.acquire(header.getUncompressed());
+                    ByteBuffer decoded = ChunkedCompressedChecksumFileReader.decode(header, payload, output, seed);
+                    FileUtil.BUFFER_POOL.release(payload);
+                    finish(decoded, null);
+                }
+            } catch (RuntimeException | Error e) {
+                FileUtil.BUFFER_POOL.release(payload);
+                FileUtil.BUFFER_POOL.release(output);
+                finish(null, e);
+            }
+        }
+
+        private synchronized void finish(ByteBuffer plain, Throwable failure) {
+            this.plain = plain;
+            this.failure = failure;
+            this.done = true;
+            notifyAll();
+        }
+
+        private synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Waits for the decoded chunk, null for a zero run, a failed decode is rethrown like {@link #await(Future)}.
+         */
+        private synchronized ByteBuffer await() throws IOException {
+            try {
+                while (!done)
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting on a decoded chunk", e);
+            }
+            if (failure != null)
+                throw rethrow(failure);
+            return plain;
+        }
+    }
+
+}
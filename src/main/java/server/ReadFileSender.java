@@ -0,0 +1,167 @@
+package server;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import net.jpountz.xxhash.StreamingXXHash64;
+import shared.ChunkCodec;
+import shared.FileUtil;
+import shared.Handshake;
+import shared.Metrics;
+import shared.ZeroRuns;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Server side of the READ command, a WRITE the other way around. The client sends the path it wants as writeUTF, the
+ * same relative path it would have written it under. The server answers with the file's length as a long, -1 when there
+ * is no such file, followed by the file in the chunk frames of a WRITE, zero runs included when the session allows them,
+ * and the zero header with the stream hash. The client can take it with the same readers the server uses for a WRITE.
+ * <p>
+ * Chunks are cut at fixed offsets of the session's chunk size so the frames can be kept in the {@link ChunkCache}. A
+ * download of a file whose frames and stream hash are all cached doesn't touch the disk at all.
+ */
+public class ReadFileSender {
+
+    // a frame of nothing but zeros, sent as part of a zero run
+    private static final byte[] ZERO_CHUNK = new byte[0];
+
+    public static void send(String userPath, DataOutputStream out, Handshake session, Span sp) throws IOException {
+        Path path = resolve(userPath);
+        sp.setAttribute("File", userPath);
+        if (path == null || !Files.isRegularFile(path)) {
+            out.writeLong(-1);
+            out.flush();
+            sp.setStatus(StatusCode.ERROR, "No such file");
+            System.out.println("Asked for " + userPath + " which doesn't exist");
+            return;
+        }
+        System.out.println("Reading from file: " + path);
+
+        long seed = session.getSeed();
+        int chunkSize = session.getChunkSize();
+        ChunkCodec codec = session.getCodec();
+        boolean zeroRuns = session.supportsZeroRuns();
+        long hits = 0;
+        long sent = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ChunkCache.FileKey file = ChunkCache.key(path);
+            long length = file.getSize();
+            out.writeLong(length);
+
+            Long cachedHash = ChunkCache.getStreamHash(file, seed);
+            // without the stream hash every chunk has to be read for it, cached frames still save the compression
+            StreamingXXHash64 streamHash = cachedHash == null ? FileUtil.XX_HASH_FACTORY.newStreamingHash64(seed) : null;
+            ByteBuffer plain = FileUtil.BUFFER_POOL.acquire(chunkSize);
+            ByteBuffer compressed = FileUtil.BUFFER_POOL.acquire(ChunkCodec.maxCompressedLength(chunkSize));
+            long pendingZeros = 0;
+            try {
+                for (long offset = 0; offset < length; offset += chunkSize) {
+                    int size = (int) Long.min(chunkSize, length - offset);
+                    ChunkCache.ChunkKey key = new ChunkCache.ChunkKey(file, offset, chunkSize, codec, seed, zeroRuns);
+                    byte[] frame = ChunkCache.get(key);
+                    if (frame == null || streamHash != null) {
+                        read(channel, plain, offset, size);
+                        if (streamHash != null)
+                            streamHash.update(plain.array(), plain.arrayOffset(), size);
+                    }
+                    if (frame == null) {
+                        frame = encode(plain, size, compressed, codec, seed, zeroRuns);
+                        ChunkCache.put(key, frame);
+                    } else {
+                        hits++;
+                    }
+
+                    if (frame.length == 0) {
+                        if (pendingZeros + size > ZeroRuns.MAX_RUN) {
+                            out.writeInt((int) -pendingZeros);
+                            pendingZeros = 0;
+                        }
+                        pendingZeros += size;
+                        continue;
+                    }
+                    if (pendingZeros > 0) {
+                        out.writeInt((int) -pendingZeros);
+                        pendingZeros = 0;
+                    }
+                    long start = System.nanoTime();
+                    out.write(frame);
+                    Metrics.record(Metrics.Stage.SOCKET_WRITE, System.nanoTime() - start, frame.length);
+                    sent += frame.length;
+                }
+            } finally {
+                FileUtil.BUFFER_POOL.release(plain);
+                FileUtil.BUFFER_POOL.release(compressed);
+            }
+            if (pendingZeros > 0)
+                out.writeInt((int) -pendingZeros);
+            long hash = cachedHash != null ? cachedHash : streamHash.getValue();
+            out.writeInt(0);
+            out.writeLong(hash);
+            out.flush();
+            if (cachedHash == null)
+                ChunkCache.putStreamHash(file, seed, hash);
+
+            long chunks = (length + chunkSize - 1) / chunkSize;
+            sp.setAttribute("Data Sent Uncompressed Bytes", length);
+            sp.setAttribute("Data Sent Compressed Bytes", sent);
+            sp.setAttribute("Cache Hits", hits);
+            sp.setAttribute("Cache Misses", chunks - hits);
+            sp.setStatus(StatusCode.OK);
+        }
+        System.out.println("Reading " + path + " complete");
+    }
+
+    /**
+     * Where a READ for userPath looks, the same place a WRITE of it went.
+     *
+     * @return null for a path that tries to leave the write directory, nothing outside it is handed out
+     */
+    private static Path resolve(String userPath) {
+        Path root = Paths.get(System.getProperty("user.dir"), "write").toAbsolutePath().normalize();
+        Path path = Paths.get(root.toString(), userPath).normalize();
+        return path.startsWith(root) ? path : null;
+    }
+
+    private static void read(FileChannel channel, ByteBuffer plain, long offset, int size) throws IOException {
+        long start = System.nanoTime();
+        plain.clear().limit(size);
+        while (plain.hasRemaining())
+            if (channel.read(plain, offset + plain.position()) < 0)
+                throw new EOFException("File shrank while sending it");
+        plain.clear();
+        Metrics.record(Metrics.Stage.READ, System.nanoTime() - start, size);
+    }
+
+    /**
+     * @return the whole frame, header and payload, or {@link #ZERO_CHUNK} for a chunk to send as part of a zero run
+     */
+    private static byte[] encode(ByteBuffer plain, int size, ByteBuffer compressed, ChunkCodec codec, long seed, boolean zeroRuns) {
+        if (zeroRuns && ZeroRuns.isZero(plain.array(), plain.arrayOffset(), size))
+            return ZERO_CHUNK;
+        long start = System.nanoTime();
+        long hash = FileUtil.HASH_64.hash(plain, 0, size, seed);
+        long hashed = System.nanoTime();
+        Metrics.record(Metrics.Stage.HASH, hashed - start, size);
+        int compressedLength = codec.compress(plain, 0, size, compressed);
+        Metrics.record(Metrics.Stage.COMPRESS, System.nanoTime() - hashed, size);
+        ByteBuffer payload = compressed;
+        if (compressedLength < 0 || compressedLength >= size) {
+            codec = ChunkCodec.STORED;
+            compressedLength = size;
+            payload = plain;
+        }
+        byte[] frame = new byte[FileHeader.SIZE + compressedLength];
+        ByteBuffer.wrap(frame).putInt(size).putInt(compressedLength).put(codec.type).putLong(hash)
+                .put(payload.array(), payload.arrayOffset(), compressedLength);
+        return frame;
+    }
+
+}
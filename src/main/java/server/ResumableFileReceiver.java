@@ -0,0 +1,90 @@
+package server;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import net.jpountz.xxhash.StreamingXXHash64;
+import shared.ExceptionLogger;
+import shared.FileUtil;
+import shared.Handshake;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Server side of the RESUME command. The file is received into a .part file next to a {@link ChunkManifest}; if the
+ * connection drops the two are left behind, and the next RESUME for the same path picks up after the last chunk the
+ * manifest vouches for instead of starting over.
+ */
+public class ResumableFileReceiver {
+
+    public static void receive(DataInputStream dataIn, DataOutputStream dataOut, Handshake session, Tracer trace, Span sp) throws IOException {
+        String path = FileUtil.createPath(dataIn.readUTF());
+        long fileLength = dataIn.readLong();
+        Path partPath = Paths.get(path + ".part");
+        Path manifestPath = Paths.get(path + ".manifest");
+        sp.setAttribute("File", path);
+
+        FileChannel channel = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ChunkManifest manifest = ChunkManifest.open(manifestPath, channel, fileLength, session.getSeed());
+        StreamingXXHash64 streamHash = FileUtil.XX_HASH_FACTORY.newStreamingHash64(session.getSeed());
+        long resumeOffset = manifest.verifyPrefix(streamHash::update);
+        channel.truncate(resumeOffset);
+        sp.setAttribute("Resume Offset", resumeOffset);
+        System.out.println("Resuming file: " + path + " from byte " + resumeOffset);
+
+        dataOut.writeLong(resumeOffset);
+        dataOut.flush();
+
+        ChunkedCompressedChecksumFileReader reader = new ChunkedCompressedChecksumFileReader(dataIn, channel, resumeOffset, streamHash, session);
+        reader.setChunkListener(manifest::append);
+        try {
+            while (true) {
+                if (reader.readChunk(trace).getUncompressed() == 0)
+                    break;
+            }
+            reader.close();
+        } catch (IOException e) {
+            // most likely the client went away, keep what we have so it can resume
+            manifest.sync();
+            manifest.close();
+            channel.close();
+            reader.abort();
+            sp.recordException(e);
+            sp.setStatus(StatusCode.ERROR);
+            ExceptionLogger.log(e);
+            throw e;
+        } catch (RuntimeException e) {
+            // the data itself is bad, nothing in the part file can be trusted to resume from
+            manifest.delete();
+            channel.close();
+            reader.abort();
+            Files.deleteIfExists(partPath);
+            sp.recordException(e);
+            sp.setStatus(StatusCode.ERROR);
+            ExceptionLogger.log(e);
+            return;
+        }
+
+        channel.force(true);
+        channel.close();
+        Files.move(partPath, Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        ChunkCache.invalidate(Paths.get(path));
+        manifest.delete();
+
+        sp.setAttribute("Data Read Uncompressed Bytes", reader.getUncompressedBytes());
+        sp.setAttribute("Data Read Compressed Bytes", reader.getCompressedBytes());
+        sp.setAttribute("Data Compression Ratio", reader.getRatio());
+        sp.setStatus(StatusCode.OK);
+        System.out.println("Writing " + path + " complete");
+        sp.addEvent("File Written");
+    }
+
+}
@@ -7,6 +7,8 @@ import io.opentelemetry.api.trace.SpanKind;
 import io.opentelemetry.api.trace.Tracer;
 import io.opentelemetry.context.Scope;
 import shared.ExceptionLogger;
+import shared.Metrics;
+import shared.MetricsEndpoint;
 import shared.OTelUtils;
 
 import java.io.IOException;
@@ -15,10 +17,12 @@ import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class Server {
 
-    private static final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    // every connection holds its thread for its whole life, and a striped transfer needs all of its connections served at once
+    private static final ExecutorService executor = Executors.newCachedThreadPool();
 
     public static final int SERVER_PORT = 42069;
 
@@ -26,19 +30,38 @@ public class Server {
 
     private static final OTelUtils.SexyContainer ot = OTelUtils.create("Server");
 
+    private volatile ServerSocket serverSocket;
+
     public Server() {
+        this(SERVER_PORT);
+    }
+
+    public Server(int port) {
+        this(port, server -> {
+        });
+    }
+
+    /**
+     * Serves port until the server socket fails or {@link #stop()} is called, on the calling thread.
+     *
+     * @param listening called with this server once port is bound, before the first client is accepted
+     */
+    public Server(int port, Consumer<Server> listening) {
         Tracer main = ot.ot.getTracer("Main Server", "0.69");
         try {
             System.out.println("Starting server");
-            ServerSocket serverSocket = new ServerSocket(SERVER_PORT);
+            serverSocket = new ServerSocket(port);
             System.out.println("Server Started");
+            listening.accept(this);
 
             while (running)
                 executor.execute(new Connection(this, main, serverSocket.accept()));
 
             serverSocket.close();
         } catch (IOException e) {
-            ExceptionLogger.log(e);
+            // stop() closing the socket under accept is how the loop ends
+            if (running)
+                ExceptionLogger.log(e);
         }
         System.out.println("Closing thread pool");
         executor.shutdown();
@@ -61,12 +84,85 @@ public class Server {
         return running;
     }
 
+    /**
+     * Connections accepted and not closed yet, a closed one has also finished writing everything it received.
+     */
+    public int getOpenConnections() {
+        return Connection.ACTIVE.get();
+    }
+
+    /**
+     * Stops accepting, connections already open are served until their clients close them.
+     */
+    public void stop() {
+        running = false;
+        ServerSocket socket = serverSocket;
+        if (socket == null)
+            return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            ExceptionLogger.log(e);
+        }
+    }
+
     private static Server srv;
 
+    /**
+     * Arguments, in any order: nio to run the {@link NioServer}, which only takes WRITE, BUNDLE and SYNC and tells clients so
+     * at HELLO (STREAM, RESUME, DELTA, STRIPE, VERIFIED and READ need the default server), fsync=none|per-file|periodic for the
+     * {@link DiskWriter.FsyncPolicy}, metrics[=port] to serve the {@link shared.Metrics} on a local Prometheus endpoint,
+     * rate=bytes per second to limit every client host or rate=host:bytes per second for one, weight=host:weight for its
+     * share of the {@link FairScheduler}, cache=bytes for the size of the {@link ChunkCache} downloads are sent from.
+     */
     public static void main(String[] args) {
+        boolean nio = false;
+        for (String arg : args) {
+            if (arg.equalsIgnoreCase("nio"))
+                nio = true;
+            else if (arg.toLowerCase().startsWith("fsync="))
+                DiskWriter.setFsyncPolicy(DiskWriter.FsyncPolicy.valueOf(arg.substring(6).toUpperCase().replace('-', '_')));
+            else if (arg.equalsIgnoreCase("metrics"))
+                startMetrics(MetricsEndpoint.DEFAULT_PORT);
+            else if (arg.toLowerCase().startsWith("metrics="))
+                startMetrics(Integer.parseInt(arg.substring(8)));
+            else if (arg.toLowerCase().startsWith("rate="))
+                setRateLimit(arg.substring(5));
+            else if (arg.toLowerCase().startsWith("weight=") && arg.lastIndexOf(':') > 7)
+                FairScheduler.setWeight(arg.substring(7, arg.lastIndexOf(':')), Integer.parseInt(arg.substring(arg.lastIndexOf(':') + 1)));
+            else if (arg.toLowerCase().startsWith("cache="))
+                ChunkCache.setCapacity(Long.parseLong(arg.substring(6)));
+            else
+                throw new IllegalArgumentException("Unknown argument " + arg);
+        }
+        DiskWriter.removeLeftovers();
+        if (nio) {
+            new NioServer(ot.ot.getTracer("Main Server", "0.69"), SERVER_PORT).run();
+            return;
+        }
         srv = new Server();
     }
 
+    private static void setRateLimit(String value) {
+        // hosts may be IPv6 addresses, the rate is whatever follows the last colon
+        int split = value.lastIndexOf(':');
+        if (split < 0)
+            FairScheduler.setRateLimit(Long.parseLong(value));
+        else
+            FairScheduler.setRateLimit(value.substring(0, split), Long.parseLong(value.substring(split + 1)));
+    }
+
+    private static void startMetrics(int port) {
+        try {
+            MetricsEndpoint.start(port);
+            if (!Metrics.RECORDING)
+                System.out.println("Stage and queue timings are off (-Dmetrics=off or -Dtelemetry=off), only gauges and counters will move");
+        } catch (IOException e) {
+            // the server is still useful without it
+            ExceptionLogger.log(e);
+        }
+    }
+
     public static void close(){
         if (srv != null)
             srv.notifyAll();
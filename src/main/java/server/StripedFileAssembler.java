@@ -0,0 +1,263 @@
+package server;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import net.jpountz.xxhash.StreamingXXHash64;
+import shared.ExceptionLogger;
+import shared.FileUtil;
+import shared.Handshake;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server side of a striped transfer. Every connection taking part sends a STRIPE command for its byte range and the
+ * ranges are written with positional writes into one preallocated part file. The STRIPE_COMMIT command waits for all
+ * ranges, re-reads the file from disk to check the whole file hash and only then renames it into place.
+ * <p>
+ * A stripe that fails fails its whole transfer, and a transfer nothing has arrived for in {@link #IDLE_TIMEOUT_SECONDS}
+ * is dropped along with its part file, so a client that goes away can't leave either behind or hold up a commit.
+ */
+public class StripedFileAssembler {
+
+    private static final Map<Long, StripedFileAssembler> transfers = new ConcurrentHashMap<>();
+    // a transfer that goes this long without a chunk arriving has lost its client or a stripe that never came
+    private static final long IDLE_TIMEOUT_SECONDS = 60;
+    private static final ScheduledExecutorService EXPIRY = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Stripe Expiry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        EXPIRY.scheduleWithFixedDelay(StripedFileAssembler::expireIdle, IDLE_TIMEOUT_SECONDS / 4, IDLE_TIMEOUT_SECONDS / 4, TimeUnit.SECONDS);
+    }
+
+    private final String path;
+    private final Path partPath;
+    private final FileChannel channel;
+    private final long fileLength;
+    private final int stripeCount;
+    private final long seed;
+    private final long[] rangeOffsets;
+    private final long[] rangeLengths;
+    private final long[] rangeHashes;
+    private final CountDownLatch stripesDone;
+
+    private volatile boolean failed = false;
+    private volatile boolean verifying = false;
+    private volatile long lastActivity = System.nanoTime();
+
+    private StripedFileAssembler(String path, long fileLength, int stripeCount, Handshake session) throws IOException {
+        this.path = path;
+        this.partPath = Paths.get(path + ".striped");
+        this.fileLength = fileLength;
+        this.stripeCount = stripeCount;
+        this.seed = session.getSeed();
+        this.rangeOffsets = new long[stripeCount];
+        this.rangeLengths = new long[stripeCount];
+        this.rangeHashes = new long[stripeCount];
+        this.stripesDone = new CountDownLatch(stripeCount);
+        try (RandomAccessFile file = new RandomAccessFile(partPath.toFile(), "rw")) {
+            file.setLength(fileLength);
+        }
+        this.channel = FileChannel.open(partPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Receives one stripe into its transfer. Any failure fails the whole transfer and is thrown on, since the rest of
+     * the stripe's frames are still on the connection and can't be told apart from commands.
+     *
+     * @param session what this connection agreed on, every connection of a transfer has to use the same seed
+     */
+    public static void receiveStripe(DataInputStream dataIn, Handshake session, Tracer trace, Span sp) throws IOException {
+        Long transferId = null;
+        StripedFileAssembler assembler = null;
+        try {
+            String path = FileUtil.createPath(dataIn.readUTF());
+            transferId = dataIn.readLong();
+            long fileLength = dataIn.readLong();
+            int stripeCount = dataIn.readInt();
+            int index = dataIn.readInt();
+            long offset = dataIn.readLong();
+            long length = dataIn.readLong();
+            sp.setAttribute("File", path);
+            sp.setAttribute("Stripe", index);
+            sp.setAttribute("Stripe Count", stripeCount);
+            sp.setAttribute("Stripe Offset", offset);
+            sp.setAttribute("Stripe Length", length);
+            // checked before anything is sized from them
+            if (stripeCount < 1 || stripeCount > FileUtil.STRIPE_MAX_COUNT || index < 0 || index >= stripeCount)
+                throw new IOException("Stripe " + index + " of " + stripeCount + " is outside of the " + FileUtil.STRIPE_MAX_COUNT + " allowed");
+            if (fileLength < 0 || offset < 0 || length < 0 || offset > fileLength || length > fileLength - offset)
+                throw new IOException("Stripe " + index + " falls outside of the file");
+
+            assembler = transfers.computeIfAbsent(transferId, id -> {
+                try {
+                    return new StripedFileAssembler(path, fileLength, stripeCount, session);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            if (assembler.fileLength != fileLength || assembler.stripeCount != stripeCount || assembler.seed != session.getSeed())
+                throw new IOException("Stripe " + index + " doesn't agree with the rest of transfer " + transferId);
+
+            ChunkedCompressedChecksumFileReader reader = new ChunkedCompressedChecksumFileReader(dataIn, assembler.channel, offset, session);
+            while (true) {
+                assembler.lastActivity = System.nanoTime();
+                if (reader.readChunk(trace).getUncompressed() == 0)
+                    break;
+            }
+            reader.close();
+            if (reader.getUncompressedBytes() != length)
+                throw new IOException("Stripe " + index + " sent " + reader.getUncompressedBytes() + " bytes, expected " + length);
+
+            assembler.rangeOffsets[index] = offset;
+            assembler.rangeLengths[index] = length;
+            assembler.rangeHashes[index] = reader.getStreamHash();
+            sp.setAttribute("Data Read Uncompressed Bytes", reader.getUncompressedBytes());
+            sp.setAttribute("Data Read Compressed Bytes", reader.getCompressedBytes());
+            sp.setAttribute("Data Compression Ratio", reader.getRatio());
+            sp.setStatus(StatusCode.OK);
+        } catch (IOException | RuntimeException e) {
+            sp.recordException(e);
+            sp.setStatus(StatusCode.ERROR);
+            if (assembler == null && transferId != null)
+                assembler = transfers.get(transferId);
+            if (assembler != null)
+                assembler.fail();
+            if (e instanceof UncheckedIOException)
+                throw ((UncheckedIOException) e).getCause();
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        } finally {
+            if (assembler != null)
+                assembler.stripesDone.countDown();
+        }
+    }
+
+    public static void commit(DataInputStream dataIn, DataOutputStream dataOut, Span sp) throws IOException {
+        long transferId = dataIn.readLong();
+        long wholeFileHash = dataIn.readLong();
+        StripedFileAssembler assembler = transfers.get(transferId);
+        boolean ok = false;
+        if (assembler == null) {
+            IOException e = new IOException("Commit for unknown or expired striped transfer " + transferId);
+            sp.recordException(e);
+            ExceptionLogger.log(e);
+        } else {
+            try {
+                ok = assembler.finish(wholeFileHash, sp);
+            } catch (Exception e) {
+                sp.recordException(e);
+                ExceptionLogger.log(e);
+            } finally {
+                transfers.remove(transferId);
+            }
+        }
+        sp.setStatus(ok ? StatusCode.OK : StatusCode.ERROR);
+        dataOut.writeBoolean(ok);
+        dataOut.flush();
+    }
+
+    private boolean finish(long wholeFileHash, Span sp) throws IOException, InterruptedException {
+        try {
+            // no timeout needed, a stripe that never comes leaves the transfer idle until it expires and fails
+            stripesDone.await();
+            if (failed)
+                return false;
+            verifying = true;
+            sp.addEvent("Verify");
+            long[] diskHashes = new long[stripeCount];
+            for (int i = 0; i < stripeCount; i++) {
+                diskHashes[i] = hashRange(rangeOffsets[i], rangeLengths[i]);
+                if (diskHashes[i] != rangeHashes[i])
+                    throw new IOException("Range " + i + " of " + path + " doesn't match what was received");
+            }
+            if (FileUtil.combineRangeHashes(diskHashes) != wholeFileHash)
+                throw new IOException("Whole file hash of " + path + " doesn't match the client's");
+            channel.force(true);
+            channel.close();
+            Files.move(partPath, Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            ChunkCache.invalidate(Paths.get(path));
+            System.out.println("Writing " + path + " complete");
+            sp.addEvent("File Written");
+            return true;
+        } finally {
+            discard();
+        }
+    }
+
+    /**
+     * Fails the transfer, drops its part file and releases a commit waiting on it. The transfer stays known until it
+     * expires so its commit is still answered and late stripes fail rather than starting it over.
+     */
+    private void fail() {
+        failed = true;
+        while (stripesDone.getCount() > 0)
+            stripesDone.countDown();
+        try {
+            discard();
+        } catch (IOException e) {
+            ExceptionLogger.log(e);
+        }
+    }
+
+    // a no-op once the part file has been renamed into place
+    private synchronized void discard() throws IOException {
+        if (channel.isOpen()) {
+            channel.close();
+            Files.deleteIfExists(partPath);
+        }
+    }
+
+    private static void expireIdle() {
+        long idleSince = System.nanoTime() - TimeUnit.SECONDS.toNanos(IDLE_TIMEOUT_SECONDS);
+        for (Map.Entry<Long, StripedFileAssembler> entry : transfers.entrySet()) {
+            StripedFileAssembler assembler = entry.getValue();
+            if (assembler.verifying || assembler.lastActivity - idleSince > 0 || !transfers.remove(entry.getKey(), assembler))
+                continue;
+            if (!assembler.failed)
+                System.out.println("Dropping striped transfer of " + assembler.path + ", nothing arrived for " + IDLE_TIMEOUT_SECONDS + "s");
+            assembler.fail();
+        }
+    }
+
+    private long hashRange(long offset, long length) throws IOException {
+        StreamingXXHash64 hash = FileUtil.XX_HASH_FACTORY.newStreamingHash64(seed);
+        ByteBuffer buffer = FileUtil.BUFFER_POOL.acquire(FileUtil.DEFAULT_CHUNK_SIZE);
+        try {
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Long.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0)
+                    throw new IOException("File ended early while verifying " + path);
+                hash.update(buffer.array(), buffer.arrayOffset(), read);
+                position += read;
+            }
+            return hash.getValue();
+        } finally {
+            FileUtil.BUFFER_POOL.release(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+package server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The socket side of a {@link Connection}, counts what is read for its {@link FairScheduler.Flow} and holds the
+ * connection thread back while its client is over its rate limit.
+ */
+class ThrottledInputStream extends FilterInputStream {
+
+    private final FairScheduler.Flow flow;
+
+    ThrottledInputStream(InputStream in, FairScheduler.Flow flow) {
+        super(in);
+        this.flow = flow;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0)
+            pause(flow.onRead(1));
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0)
+            pause(flow.onRead(read));
+        return read;
+    }
+
+    private static void pause(long nanos) throws IOException {
+        if (nanos <= 0)
+            return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while rate limited");
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+package server;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import shared.FileUtil;
+import shared.Handshake;
+import shared.Metrics;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Server side of the VERIFIED command, see {@link client.VerifiedFileSender} for the layout. A chunk that fails its
+ * hash check doesn't end the transfer: its slot in the file is left empty and once the whole file is through, the
+ * server asks for just the failed chunks again, up to {@link #MAX_REPAIR_ROUNDS} times.
+ * <p>
+ * The chunk headers double as the manifest, the client follows them with the hash of every chunk hash in order, so a
+ * manifest that itself got damaged on the way is noticed before anything is repaired against it.
+ */
+public class VerifiedFileReceiver {
+
+    public static final int MAX_REPAIR_ROUNDS = 3;
+    // answers after the manifest, otherwise the count of chunks to send again followed by their indexes
+    public static final int COMPLETE = 0;
+    public static final int FAILED = -1;
+
+    private static final int WINDOW = PipelinedChunkedCompressedChecksumFileReader.PARALLELISM * 2;
+
+    private final DataInputStream dataIn;
+    private final long seed;
+    private final int maxChunkSize;
+    private final DiskWriter.PendingFile file;
+    private final ArrayDeque<DecodedChunk> inFlight = new ArrayDeque<>(WINDOW);
+    private final List<Integer> failed = new ArrayList<>();
+
+    // the manifest, chunk i covers [offsets[i], offsets[i + 1])
+    private long[] offsets = new long[64];
+    private long[] hashes = new long[64];
+    private int chunks = 0;
+    private long compressed_bytes = 0;
+
+    private VerifiedFileReceiver(DataInputStream dataIn, Handshake session, DiskWriter.PendingFile file) {
+        this.dataIn = dataIn;
+        this.seed = session.getSeed();
+        this.maxChunkSize = session.getChunkSize();
+        this.file = file;
+    }
+
+    public static void receive(DataInputStream dataIn, DataOutputStream dataOut, Handshake session, Tracer trace, Span sp) throws IOException {
+        String path = FileUtil.createPath(dataIn.readUTF());
+        long length = dataIn.readLong();
+        if (length < 0)
+            throw new IOException("File of " + length + " bytes");
+        sp.setAttribute("File", path);
+        System.out.println("Writing to file: " + path);
+
+        VerifiedFileReceiver receiver = new VerifiedFileReceiver(dataIn, session, DiskWriter.open(path));
+        try {
+            boolean complete = receiver.receiveAll(length, dataOut, sp);
+            sp.setAttribute("Data Read Uncompressed Bytes", length);
+            sp.setAttribute("Data Read Compressed Bytes", receiver.compressed_bytes);
+            sp.setAttribute("Chunks", receiver.chunks);
+            if (!complete) {
+                receiver.file.abort();
+                sp.setStatus(StatusCode.ERROR, "Chunks still corrupt after " + MAX_REPAIR_ROUNDS + " repair rounds");
+                System.out.println("Gave up on " + path + ", " + receiver.failed.size() + " chunks still corrupt");
+                return;
+            }
+            receiver.file.commit();
+            sp.setStatus(StatusCode.OK);
+        } catch (IOException | RuntimeException e) {
+            receiver.discard();
+            receiver.file.abort();
+            throw e;
+        }
+        System.out.println("Writing " + path + " complete");
+        sp.addEvent("File Written");
+    }
+
+    /**
+     * @return whether every chunk made it, the client has been told either way
+     */
+    private boolean receiveAll(long length, DataOutputStream dataOut, Span sp) throws IOException {
+        long position = 0;
+        while (true) {
+            FileHeader header = new FileHeader().read(dataIn, maxChunkSize);
+            if (header.getUncompressed() == 0)
+                break;
+            // every chunk needs a hash in the manifest, which a zero run doesn't have
+            if (header.isZeroRun())
+                throw new RuntimeException("Zero runs aren't part of a verified transfer!");
+            if (chunks == offsets.length) {
+                offsets = Arrays.copyOf(offsets, chunks * 2);
+                hashes = Arrays.copyOf(hashes, chunks * 2);
+            }
+            offsets[chunks] = position;
+            hashes[chunks] = header.getHash();
+            if (inFlight.size() >= WINDOW)
+                emit(inFlight.poll());
+            inFlight.add(new DecodedChunk(chunks, header, PipelinedChunkedCompressedChecksumFileReader.submit(header, readPayload(header), seed)));
+            position += header.getUncompressed();
+            chunks++;
+        }
+        while (!inFlight.isEmpty())
+            emit(inFlight.poll());
+        long manifestHash = dataIn.readLong();
+
+        // lengths or hashes damaged in a header can't be repaired from, there is nothing to check the chunks against
+        if (position != length || manifestHash != FileUtil.combineRangeHashes(Arrays.copyOf(hashes, chunks))) {
+            failed.clear();
+            answer(dataOut, FAILED);
+            sp.addEvent("Manifest Mismatch");
+            return false;
+        }
+
+        int rounds = 0;
+        long repaired = 0;
+        while (!failed.isEmpty() && rounds < MAX_REPAIR_ROUNDS) {
+            rounds++;
+            List<Integer> requested = new ArrayList<>(failed);
+            failed.clear();
+            dataOut.writeInt(requested.size());
+            for (int chunk : requested)
+                dataOut.writeInt(chunk);
+            dataOut.flush();
+            System.out.println("Asking for " + requested.size() + " corrupt chunks again");
+            for (int chunk : requested) {
+                FileHeader header = new FileHeader().read(dataIn, maxChunkSize);
+                if (header.isZeroRun())
+                    throw new RuntimeException("Zero runs aren't part of a verified transfer!");
+                ByteBuffer payload = readPayload(header);
+                if (header.getUncompressed() != chunkLength(chunk, length) || header.getHash() != hashes[chunk]) {
+                    FileUtil.BUFFER_POOL.release(payload);
+                    throw new IOException("Chunk " + chunk + " came back as a different chunk than the manifest lists");
+                }
+                emit(new DecodedChunk(chunk, header, PipelinedChunkedCompressedChecksumFileReader.submit(header, payload, seed)));
+            }
+            repaired += requested.size() - failed.size();
+        }
+        sp.setAttribute("Repair Rounds", rounds);
+        sp.setAttribute("Repaired Chunks", repaired);
+        if (!failed.isEmpty()) {
+            answer(dataOut, FAILED);
+            return false;
+        }
+        answer(dataOut, COMPLETE);
+        return true;
+    }
+
+    private ByteBuffer readPayload(FileHeader header) throws IOException {
+        ByteBuffer payload = FileUtil.BUFFER_POOL.acquire(header.getCompressed());
+        long start = System.nanoTime();
+        try {
+            dataIn.readFully(payload.array(), payload.arrayOffset(), header.getCompressed());
+        } catch (IOException e) {
+            FileUtil.BUFFER_POOL.release(payload);
+            throw e;
+        }
+        Metrics.record(Metrics.Stage.SOCKET_READ, System.nanoTime() - start, header.getCompressed());
+        compressed_bytes += header.getCompressed();
+        return payload;
+    }
+
+    /**
+     * Writes a decoded chunk where it belongs, or notes it down to be asked for again when it didn't decode.
+     */
+    private void emit(DecodedChunk chunk) throws IOException {
+        ByteBuffer plain;
+        try {
+            plain = PipelinedChunkedCompressedChecksumFileReader.await(chunk.plain);
+        } catch (RuntimeException e) {
+            // the frame was read in full, so the stream is still in step and only this chunk is lost
+            failed.add(chunk.index);
+            return;
+        }
+        file.write(plain, chunk.header.getUncompressed(), offsets[chunk.index], true);
+    }
+
+    private long chunkLength(int chunk, long length) {
+        return (chunk + 1 < chunks ? offsets[chunk + 1] : length) - offsets[chunk];
+    }
+
+    private static void answer(DataOutputStream dataOut, int answer) throws IOException {
+        dataOut.writeInt(answer);
+        dataOut.flush();
+    }
+
+    private void discard() {
+        for (DecodedChunk chunk : inFlight) {
+            try {
+                FileUtil.BUFFER_POOL.release(PipelinedChunkedCompressedChecksumFileReader.await(chunk.plain));
+            } catch (IOException | RuntimeException ignored) {
+                // its buffers were released when it failed
+            }
+        }
+        inFlight.clear();
+    }
+
+    private static class DecodedChunk {
+        private final int index;
+        private final FileHeader header;
+        private final Future<ByteBuffer> plain;
+
+        private DecodedChunk(int index, FileHeader header, Future<ByteBuffer> plain) {
+            this.index = index;
+            this.header = header;
+            this.plain = plain;
+        }
+    }
+
+}
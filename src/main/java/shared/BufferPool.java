@@ -0,0 +1,84 @@
+package shared;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Recycles chunk sized buffers so the transfer hot paths don't feed the garbage collector one 64 KB array per chunk.
+ * <p>
+ * Buffers are bucketed by power of two capacity. Each bucket is a fixed size {@link ArrayBlockingQueue}, which unlike
+ * the linked queues doesn't allocate a node on every offer, so acquiring and releasing a buffer allocates nothing once
+ * the pool is warm. Requests bigger than the largest bucket are served with a one off buffer that is simply dropped on
+ * release.
+ */
+public class BufferPool {
+
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 26;
+
+    private final List<ArrayBlockingQueue<ByteBuffer>> buckets;
+    private final boolean direct;
+
+    public BufferPool(boolean direct, int buffersPerBucket) {
+        this.direct = direct;
+        List<ArrayBlockingQueue<ByteBuffer>> buckets = new ArrayList<>();
+        for (int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++)
+            buckets.add(new ArrayBlockingQueue<>(buffersPerBucket));
+        this.buckets = List.copyOf(buckets);
+    }
+
+    /**
+     * @return a cleared buffer with at least the requested capacity. Heap buffers are always array backed.
+     */
+    public ByteBuffer acquire(int capacity) {
+        int bucket = bucketFor(capacity);
+        if (bucket >= buckets.size())
+            return allocate(capacity);
+        ByteBuffer buffer = buckets.get(bucket).poll();
+        if (buffer == null)
+            return allocate(1 << (bucket + MIN_SHIFT));
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != direct)
+            return;
+        int capacity = buffer.capacity();
+        // only exact power of two buffers came from us
+        if (Integer.bitCount(capacity) != 1)
+            return;
+        int bucket = bucketFor(capacity);
+        if (bucket >= buckets.size())
+            return;
+        buffer.clear();
+        buckets.get(bucket).offer(buffer);
+    }
+
+    /**
+     * Swaps a buffer that turned out to be too small for one that fits, used when a frame is bigger than expected.
+     */
+    public ByteBuffer ensureCapacity(ByteBuffer buffer, int capacity) {
+        if (buffer != null && buffer.capacity() >= capacity)
+            return buffer;
+        release(buffer);
+        return acquire(capacity);
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int bucketFor(int capacity) {
+        if (capacity <= 1 << MIN_SHIFT)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+
+}
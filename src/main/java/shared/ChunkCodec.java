@@ -0,0 +1,114 @@
+package shared;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * How the payload of a single chunk frame is encoded, sent as one byte in the chunk header. Every LZ4 level produces the
+ * same block format, so they all share {@link FileUtil#DECOMPRESSOR} and only differ in how hard the sender tries.
+ * DEFLATE is the JDK's zlib, slower than any LZ4 level but it squeezes text noticeably harder.
+ */
+public enum ChunkCodec {
+    STORED((byte) 0, null),
+    LZ4_FAST((byte) 1, LZ4Factory.fastestInstance().fastCompressor()),
+    LZ4_HC_LOW((byte) 2, LZ4Factory.fastestInstance().highCompressor(4)),
+    LZ4_HC((byte) 3, LZ4Factory.fastestInstance().highCompressor()),
+    LZ4_HC_MAX((byte) 4, LZ4Factory.fastestInstance().highCompressor(17)),
+    DEFLATE((byte) 5, null) {
+        // Deflater and Inflater hold native state and aren't thread safe, so one of each per thread
+        private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(Deflater::new);
+        private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+        @Override
+        public int compress(ByteBuffer input, int offset, int length, ByteBuffer output) {
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            if (input.hasArray())
+                deflater.setInput(input.array(), input.arrayOffset() + offset, length);
+            else
+                deflater.setInput(input.duplicate().limit(offset + length).position(offset));
+            deflater.finish();
+            int compressedLength = 0;
+            while (!deflater.finished() && compressedLength < output.capacity())
+                compressedLength += deflater.deflate(output.array(), output.arrayOffset() + compressedLength, output.capacity() - compressedLength);
+            // didn't fit, it would not have been worth sending compressed anyway
+            return deflater.finished() ? compressedLength : -1;
+        }
+
+        @Override
+        public ByteBuffer decompress(ByteBuffer input, int compressedLength, ByteBuffer output, int uncompressedLength) {
+            Inflater inflater = inflaters.get();
+            inflater.reset();
+            inflater.setInput(input.array(), input.arrayOffset(), compressedLength);
+            try {
+                int length = 0;
+                while (!inflater.finished() && length < uncompressedLength) {
+                    int inflated = inflater.inflate(output.array(), output.arrayOffset() + length, uncompressedLength - length);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    length += inflated;
+                }
+                if (length != uncompressedLength || !inflater.finished())
+                    throw new RuntimeException("Deflate chunk decoded to " + length + " bytes instead of " + uncompressedLength + "!");
+            } catch (DataFormatException e) {
+                throw new RuntimeException("Deflate chunk is corrupt!", e);
+            }
+            return output;
+        }
+    };
+
+    private static final ChunkCodec[] BY_TYPE = values();
+
+    public final byte type;
+    private final LZ4Compressor compressor;
+
+    ChunkCodec(byte type, LZ4Compressor compressor) {
+        this.type = type;
+        this.compressor = compressor;
+    }
+
+    public static ChunkCodec of(byte type) {
+        if (type < 0 || type >= BY_TYPE.length)
+            throw new RuntimeException("Unknown chunk codec " + type + "!");
+        return BY_TYPE[type];
+    }
+
+    /**
+     * Big enough for the output of any codec, stored included.
+     */
+    public static int maxCompressedLength(int length) {
+        return FileUtil.COMPRESSOR.maxCompressedLength(length);
+    }
+
+    public int compress(ByteBuffer input, int length, ByteBuffer output) {
+        return compress(input, 0, length, output);
+    }
+
+    /**
+     * Compresses input[offset, offset + length) into output from position 0. Input may be direct, a mapped file for
+     * instance, output has to be array backed.
+     *
+     * @return the compressed length, or -1 when the caller should just send the input, always the case for STORED
+     */
+    public int compress(ByteBuffer input, int offset, int length, ByteBuffer output) {
+        if (compressor == null)
+            return -1;
+        return compressor.compress(input, offset, length, output, 0, output.capacity());
+    }
+
+    /**
+     * @return input itself for STORED, otherwise output with uncompressedLength bytes decoded into it
+     */
+    public ByteBuffer decompress(ByteBuffer input, int compressedLength, ByteBuffer output, int uncompressedLength) {
+        if (compressor == null)
+            return input;
+        FileUtil.DECOMPRESSOR.decompress(input, 0, output, 0, uncompressedLength);
+        return output;
+    }
+
+}
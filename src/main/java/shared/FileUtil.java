@@ -1,6 +1,11 @@
 package shared;
 
+import client.ChunkSizer;
 import client.ChunkedCompressedChecksumFileWriter;
+import client.CodecSelector;
+import client.MappedChunkedCompressedChecksumFileWriter;
+import client.PipelinedChunkedCompressedChecksumFileWriter;
+import client.TransferStats;
 import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.api.trace.StatusCode;
 import io.opentelemetry.api.trace.Tracer;
@@ -8,21 +13,38 @@ import io.opentelemetry.context.Scope;
 import net.jpountz.lz4.LZ4Compressor;
 import net.jpountz.lz4.LZ4Factory;
 import net.jpountz.lz4.LZ4FastDecompressor;
+import net.jpountz.xxhash.StreamingXXHash64;
 import net.jpountz.xxhash.XXHash64;
 import net.jpountz.xxhash.XXHashFactory;
 import server.ChunkedCompressedChecksumFileReader;
+import server.PipelinedChunkedCompressedChecksumFileReader;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class FileUtil {
 
-    // do not change it breaks stuff
-    protected static final int READER_SIZE = 65000;
+    // chunk size of connections that don't negotiate one, see Handshake. Frames carry their own lengths, so any size the
+    // handshake allows works, and a writer may send chunks of any size up to the agreed one, see client.ChunkSizer
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
     public static final long SEED = 691;
     public static final long MAX_COUNT = 128;
+    // files smaller than this many chunks are not worth handing to the compression pool
+    public static final int PIPELINE_MIN_CHUNKS = 4;
+    // files up to this size are packed into BUNDLE commands by sendDir instead of each getting its own WRITE
+    public static final int BUNDLE_FILE_MAX_BYTES = DEFAULT_CHUNK_SIZE;
+    // limits of a single bundle, the server holds a whole bundle in memory before writing it out
+    public static final int BUNDLE_MAX_BYTES = 4 * 1024 * 1024;
+    public static final int BUNDLE_MAX_FILES = 4096;
+    // connections a single file can be striped over, the server keeps per stripe state for every open transfer
+    public static final int STRIPE_MAX_COUNT = 64;
 
     private static final LZ4Factory LZ_FACTORY = LZ4Factory.fastestInstance();
     public static final LZ4Compressor COMPRESSOR = LZ_FACTORY.highCompressor();
@@ -31,9 +53,27 @@ public class FileUtil {
     public static final XXHashFactory XX_HASH_FACTORY = XXHashFactory.fastestInstance();
     public static final XXHash64 HASH_64 = XX_HASH_FACTORY.hash64();
 
+    // heap buffers since StreamingXXHash64 only takes arrays
+    public static final BufferPool BUFFER_POOL = new BufferPool(false, 64);
+
     public enum COMMAND {
         CLOSE((byte) 1),
-        WRITE((byte) 2);
+        WRITE((byte) 2),
+        STRIPE((byte) 3),
+        STRIPE_COMMIT((byte) 4),
+        RESUME((byte) 5),
+        DELTA((byte) 6),
+        HELLO((byte) 7),
+        BUNDLE((byte) 8),
+        // multiplexed files, see client.MultiplexedFileSender
+        STREAM_OPEN((byte) 9),
+        STREAM_CHUNK((byte) 10),
+        // a WRITE that repairs corrupt chunks, see client.VerifiedFileSender
+        VERIFIED((byte) 11),
+        // download of a file the server has, see server.ReadFileSender
+        READ((byte) 12),
+        // answered once everything sent before it on the connection is done, see client.AsyncClient
+        SYNC((byte) 13);
         public final byte type;
 
         COMMAND(byte type) {
@@ -41,16 +81,90 @@ public class FileUtil {
         }
     }
 
+    // instructions inside a DELTA command, see client.DeltaFileSender
+    public enum DELTA_OP {
+        END((byte) 0),
+        COPY((byte) 1),
+        LITERAL((byte) 2);
+        public final byte type;
+
+        DELTA_OP(byte type) {
+            this.type = type;
+        }
+    }
+
     public static void write(String path, DataOutputStream dataOut, Tracer trace, Span sp) {
+        write(path, dataOut, trace, sp, null, 1);
+    }
+
+    public static void write(String path, DataOutputStream dataOut, Tracer trace, Span sp, ExecutorService workers, int parallelism) {
+        write(path, dataOut, trace, sp, workers, parallelism, Handshake.DEFAULT, false);
+    }
+
+    /**
+     * @param session  chunk size, seed and codecs agreed with the server, see {@link Handshake}
+     * @param adaptive pick the codec of every chunk from measured compression speed and socket drain rate instead of
+     *                 always using the agreed codec, see {@link CodecSelector}
+     */
+    public static void write(String path, DataOutputStream dataOut, Tracer trace, Span sp, ExecutorService workers, int parallelism, Handshake session, boolean adaptive) {
+        write(path, dataOut, trace, sp, workers, parallelism, session, adaptive, session.getChunkSize(), false);
+    }
+
+    /**
+     * @param chunkSize     length of the chunks, at most the agreed chunk size; where tuning starts from when autoChunkSize
+     *                      is on
+     * @param autoChunkSize grow or shrink the chunks during the transfer from measured compression time and socket
+     *                      throughput, see {@link ChunkSizer}
+     */
+    public static void write(String path, DataOutputStream dataOut, Tracer trace, Span sp, ExecutorService workers, int parallelism, Handshake session,
+                             boolean adaptive, int chunkSize, boolean autoChunkSize) {
         validatePath(path);
-        String relative_path = path.replace(System.getProperty("user.dir"), "");
         try {
-            DataInputStream fileReader = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(path))));
+            transfer(path, dataOut, trace, sp, workers, parallelism, session, adaptive, chunkSize, autoChunkSize);
+        } catch (Exception e) {
+            ExceptionLogger.log(e);
+        }
+    }
 
+    /**
+     * {@link #write} for callers that need to know whether it worked, see {@link client.AsyncClient}. Anything that went
+     * wrong is thrown, after which the connection is out of step with the server and can't be used any further.
+     */
+    public static TransferStats transfer(String path, DataOutputStream dataOut, Tracer trace, Span sp, ExecutorService workers, int parallelism, Handshake session,
+                                         boolean adaptive, int chunkSize, boolean autoChunkSize) throws IOException {
+        validatePath(path);
+        String relative_path = path.replace(System.getProperty("user.dir"), "");
+        long start = System.nanoTime();
+        long size = Files.size(Paths.get(path));
+        try (DataInputStream fileReader = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(path))))) {
             dataOut.writeByte(COMMAND.WRITE.type);
             dataOut.writeUTF(relative_path);
 
-            ChunkedCompressedChecksumFileWriter writer = new ChunkedCompressedChecksumFileWriter(dataOut, fileReader, FileUtil.READER_SIZE, FileUtil.SEED);
+            if (workers != null && parallelism > 1 && size >= (long) chunkSize * PIPELINE_MIN_CHUNKS) {
+                CodecSelector codecs = CodecSelector.of(session, adaptive, parallelism);
+                ChunkSizer sizer = ChunkSizer.of(session, chunkSize, autoChunkSize, parallelism);
+                PipelinedChunkedCompressedChecksumFileWriter writer = new PipelinedChunkedCompressedChecksumFileWriter(dataOut, fileReader, workers, parallelism, sizer, session.getSeed(), codecs);
+                writer.setZeroRuns(session.supportsZeroRuns());
+
+                writer.writeAll(trace);
+
+                sp.setAttribute("Data Read Uncompressed Bytes", writer.getUncompressedBytes());
+                sp.setAttribute("Data Read Compressed Bytes", writer.getCompressedBytes());
+                sp.setAttribute("Data Compression Ratio", writer.getRatio());
+                sp.setAttribute("Zero Bytes Elided", writer.getZeroBytes());
+                sp.setAttribute("Codec", codecs.getBest().name());
+                setChunkSizeAttributes(sp, sizer);
+                sp.setStatus(StatusCode.OK);
+
+                writer.close();
+                return new TransferStats(path, writer.getUncompressedBytes(), writer.getCompressedBytes(), System.nanoTime() - start, 1);
+            }
+
+            CodecSelector codecs = CodecSelector.of(session, adaptive, 1);
+            ChunkSizer sizer = ChunkSizer.of(session, chunkSize, autoChunkSize, 1);
+            ChunkedCompressedChecksumFileWriter writer = new ChunkedCompressedChecksumFileWriter(dataOut, fileReader, sizer, session.getSeed(),
+                    XX_HASH_FACTORY.newStreamingHash64(session.getSeed()), codecs);
+            writer.setZeroRuns(session.supportsZeroRuns());
 
             while (fileReader.available() > 0)
                 writer.processChunk(trace);
@@ -58,16 +172,143 @@ public class FileUtil {
             sp.setAttribute("Data Read Uncompressed Bytes", writer.getUncompressedBytes());
             sp.setAttribute("Data Read Compressed Bytes", writer.getCompressedBytes());
             sp.setAttribute("Data Compression Ratio", writer.getRatio());
+            sp.setAttribute("Zero Bytes Elided", writer.getZeroBytes());
+            sp.setAttribute("Codec", codecs.getBest().name());
+            setChunkSizeAttributes(sp, sizer);
             sp.setStatus(StatusCode.OK);
 
             writer.close();
-            fileReader.close();
+            return new TransferStats(path, writer.getUncompressedBytes(), writer.getCompressedBytes(), System.nanoTime() - start, 1);
+        }
+    }
+
+    /**
+     * Like {@link #write} but reads the file through memory mapped windows, see
+     * {@link MappedChunkedCompressedChecksumFileWriter}. The server side is the same WRITE command.
+     */
+    public static void writeMapped(String path, DataOutputStream dataOut, Tracer trace, Span sp, Handshake session, boolean adaptive) {
+        writeMapped(path, dataOut, trace, sp, session, adaptive, session.getChunkSize(), false);
+    }
+
+    public static void writeMapped(String path, DataOutputStream dataOut, Tracer trace, Span sp, Handshake session, boolean adaptive, int chunkSize, boolean autoChunkSize) {
+        validatePath(path);
+        try {
+            transferMapped(path, dataOut, trace, sp, session, adaptive, chunkSize, autoChunkSize);
         } catch (Exception e) {
             ExceptionLogger.log(e);
         }
     }
 
-    public static void receive(DataInputStream dataIn, Tracer trace, Span sp) {
+    /**
+     * {@link #writeMapped} that throws, like {@link #transfer}.
+     */
+    public static TransferStats transferMapped(String path, DataOutputStream dataOut, Tracer trace, Span sp, Handshake session, boolean adaptive,
+                                               int chunkSize, boolean autoChunkSize) throws IOException {
+        validatePath(path);
+        String relative_path = path.replace(System.getProperty("user.dir"), "");
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            dataOut.writeByte(COMMAND.WRITE.type);
+            dataOut.writeUTF(relative_path);
+
+            CodecSelector codecs = CodecSelector.of(session, adaptive, 1);
+            ChunkSizer sizer = ChunkSizer.of(session, chunkSize, autoChunkSize, 1);
+            MappedChunkedCompressedChecksumFileWriter writer = new MappedChunkedCompressedChecksumFileWriter(dataOut, channel, sizer, session.getSeed(), codecs);
+            writer.setZeroRuns(session.supportsZeroRuns());
+
+            while (writer.hasRemaining())
+                writer.processChunk(trace);
+
+            sp.setAttribute("Data Read Uncompressed Bytes", writer.getUncompressedBytes());
+            sp.setAttribute("Data Read Compressed Bytes", writer.getCompressedBytes());
+            sp.setAttribute("Data Compression Ratio", writer.getRatio());
+            sp.setAttribute("Zero Bytes Elided", writer.getZeroBytes());
+            sp.setAttribute("Codec", codecs.getBest().name());
+            setChunkSizeAttributes(sp, sizer);
+            sp.setStatus(StatusCode.OK);
+
+            writer.close();
+            return new TransferStats(path, writer.getUncompressedBytes(), writer.getCompressedBytes(), System.nanoTime() - start, 1);
+        }
+    }
+
+    /**
+     * Like {@link #write} but first asks the server how much of the file it already has, and only sends the rest. The
+     * skipped part is still hashed locally so the stream hash covers the whole file.
+     */
+    public static void writeResumable(String path, DataOutputStream dataOut, DataInputStream dataIn, Tracer trace, Span sp) throws IOException {
+        writeResumable(path, dataOut, dataIn, trace, sp, Handshake.DEFAULT, false);
+    }
+
+    public static void writeResumable(String path, DataOutputStream dataOut, DataInputStream dataIn, Tracer trace, Span sp, Handshake session, boolean adaptive) throws IOException {
+        validatePath(path);
+        String relative_path = path.replace(System.getProperty("user.dir"), "");
+        long size = Files.size(Paths.get(path));
+
+        dataOut.writeByte(COMMAND.RESUME.type);
+        dataOut.writeUTF(relative_path);
+        dataOut.writeLong(size);
+        dataOut.flush();
+        long resumeOffset = dataIn.readLong();
+        if (resumeOffset < 0 || resumeOffset > size)
+            throw new IOException("Server asked to resume " + path + " from " + resumeOffset + " but the file is " + size + " bytes");
+        sp.setAttribute("Resume Offset", resumeOffset);
+
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            StreamingXXHash64 streamHash = XX_HASH_FACTORY.newStreamingHash64(session.getSeed());
+            hashRange(channel, 0, resumeOffset, streamHash);
+            channel.position(resumeOffset);
+            DataInputStream fileReader = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+
+            CodecSelector codecs = CodecSelector.of(session, adaptive, 1);
+            ChunkedCompressedChecksumFileWriter writer = new ChunkedCompressedChecksumFileWriter(dataOut, fileReader, session.getChunkSize(), session.getSeed(), streamHash, codecs);
+
+            while (fileReader.available() > 0)
+                writer.processChunk(trace);
+
+            sp.setAttribute("Data Read Uncompressed Bytes", writer.getUncompressedBytes());
+            sp.setAttribute("Data Read Compressed Bytes", writer.getCompressedBytes());
+            sp.setAttribute("Data Compression Ratio", writer.getRatio());
+            sp.setStatus(StatusCode.OK);
+
+            writer.close();
+        }
+    }
+
+    private static void setChunkSizeAttributes(Span sp, ChunkSizer sizer) {
+        sp.setAttribute("Chunk Size", sizer.getSize());
+        if (sizer.isAuto())
+            sp.setAttribute("Chunk Resizes", sizer.getResizes());
+    }
+
+    private static void hashRange(FileChannel channel, long offset, long length, StreamingXXHash64 streamHash) throws IOException {
+        ByteBuffer buffer = BUFFER_POOL.acquire(DEFAULT_CHUNK_SIZE);
+        try {
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Long.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0)
+                    throw new EOFException("File shrank while hashing it");
+                streamHash.update(buffer.array(), buffer.arrayOffset(), read);
+                position += read;
+            }
+        } finally {
+            BUFFER_POOL.release(buffer);
+        }
+    }
+
+    public static void receive(DataInputStream dataIn, Tracer trace, Span sp) throws IOException {
+        receive(dataIn, Handshake.DEFAULT, trace, sp);
+    }
+
+    /**
+     * Anything that goes wrong is thrown on as an IOException, the rest of the file's frames are still on the stream and
+     * can't be told apart from commands so the connection has to be dropped.
+     */
+    public static void receive(DataInputStream dataIn, Handshake session, Tracer trace, Span sp) throws IOException {
         try {
             String path = createPath(dataIn.readUTF());
             sp.addEvent("Sending file " + path);
@@ -75,27 +316,39 @@ public class FileUtil {
             sp.setAttribute("File", path);
             sp.addEvent("File Received");
 
-            ChunkedCompressedChecksumFileReader reader = new ChunkedCompressedChecksumFileReader(dataIn, path, FileUtil.SEED);
-
-            // ugh I want while(reader.readChunk().getUncompressed()); but it makes warnings!!!
-            while (true) {
-                if (reader.readChunk(trace).getUncompressed() == 0) {
-                    sp.addEvent("Chunk Read");
-                    break;
-                }
+            ChunkedCompressedChecksumFileReader reader = new ChunkedCompressedChecksumFileReader(dataIn, path, session);
+            try {
+                new PipelinedChunkedCompressedChecksumFileReader(dataIn, reader, session.getSeed()).readAll(trace);
+                sp.addEvent("Chunk Read");
+                sp.setAttribute("Data Read Uncompressed Bytes", reader.getUncompressedBytes());
+                sp.setAttribute("Data Read Compressed Bytes", reader.getCompressedBytes());
+                sp.setAttribute("Data Compression Ratio", reader.getRatio());
+                sp.setStatus(StatusCode.OK);
+                reader.close();
+            } catch (IOException | RuntimeException e) {
+                // leaves nothing half written behind, the stream is out of step with the client either way
+                reader.abort();
+                throw e;
             }
-            sp.setAttribute("Data Read Uncompressed Bytes", reader.getUncompressedBytes());
-            sp.setAttribute("Data Read Compressed Bytes", reader.getCompressedBytes());
-            sp.setAttribute("Data Compression Ratio", reader.getRatio());
-            sp.setStatus(StatusCode.OK);
-            reader.close();
             System.out.println("Writing " + path + " complete");
             sp.addEvent("File Written");
-        } catch (Exception e) {
-            ExceptionLogger.log(e);
+        } catch (RuntimeException e) {
+            sp.recordException(e);
+            sp.setStatus(StatusCode.ERROR);
+            throw new IOException(e);
         }
     }
 
+    /**
+     * Whole file hash of a striped transfer: the xxHash64 of every range's stream hash, in range order. Both ends can
+     * build it without an extra sequential pass over the file.
+     */
+    public static long combineRangeHashes(long[] rangeHashes) {
+        byte[] packed = new byte[rangeHashes.length * Long.BYTES];
+        ByteBuffer.wrap(packed).asLongBuffer().put(rangeHashes);
+        return HASH_64.hash(packed, 0, packed.length, SEED);
+    }
+
     public static class InvalidUsageException extends RuntimeException {
         public InvalidUsageException(String str) {
             super(str);
@@ -110,7 +363,7 @@ public class FileUtil {
             throw new InvalidUsageException("Path is a directory unable to send! Did you mean sendDir()?");
     }
 
-    private static String createPath(String userFile) {
+    public static String createPath(String userFile) {
         String[] pathParts = userFile.split("/");
         String userDirectory = userFile.replace(pathParts[pathParts.length - 1], "");
 
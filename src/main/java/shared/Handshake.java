@@ -0,0 +1,198 @@
+package shared;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Settings a connection runs with, agreed on by the HELLO command before anything else is sent.
+ * <p>
+ * The client sends HELLO followed by its offer: the protocol version it speaks, the chunk size and hash seed it wants
+ * and the codecs it can produce, most preferred first. The server answers in the same encoding with what it accepted:
+ * the lower of the two versions, the chunk size clamped to what it is willing to buffer, the client's seed and the
+ * client's codecs it can decode, still in the client's order. The agreed chunk size is the largest chunk the client
+ * will send, a transfer is free to use smaller ones or to vary them as it goes. From version 3 on the answer ends with
+ * the commands the server takes, one bit per {@link FileUtil.COMMAND} type, so a client learns up front that e.g. a
+ * server running in nio mode won't READ instead of finding out by the connection dropping; older answers take all but
+ * SYNC, which came with version 3.
+ * A version of 0 in the answer means the server won't talk to this client at all. Connections that never send HELLO run
+ * with {@link #DEFAULT}.
+ */
+public class Handshake {
+
+    public static final short PROTOCOL_VERSION = 3;
+    // the oldest version this build still understands
+    public static final short MIN_PROTOCOL_VERSION = 1;
+    // the first version whose readers take zero runs, see ZeroRuns
+    public static final short ZERO_RUN_VERSION = 2;
+    // the first version whose answer lists the commands the server takes
+    public static final short COMMANDS_VERSION = 3;
+    public static final int MIN_CHUNK_SIZE = 4096;
+    public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final long ALL_COMMANDS = mask(FileUtil.COMMAND.values());
+    // what a server took before its answer said so
+    private static final long LEGACY_COMMANDS = ALL_COMMANDS & ~mask(FileUtil.COMMAND.SYNC);
+
+    // everything that was hard coded before the handshake existed
+    public static final Handshake DEFAULT = new Handshake(PROTOCOL_VERSION, FileUtil.DEFAULT_CHUNK_SIZE, FileUtil.SEED, Arrays.asList(
+            ChunkCodec.LZ4_HC, ChunkCodec.LZ4_HC_LOW, ChunkCodec.LZ4_HC_MAX, ChunkCodec.LZ4_FAST, ChunkCodec.DEFLATE, ChunkCodec.STORED), ALL_COMMANDS);
+    // what a server accepts, its chunk size is the largest it agrees to
+    public static final Handshake SERVER = new Handshake(PROTOCOL_VERSION, MAX_CHUNK_SIZE, FileUtil.SEED, Arrays.asList(ChunkCodec.values()), ALL_COMMANDS);
+
+    private final short version;
+    private final int chunkSize;
+    private final long seed;
+    private final List<ChunkCodec> codecs;
+    private final long commands;
+
+    private Handshake(short version, int chunkSize, long seed, List<ChunkCodec> codecs, long commands) {
+        this.version = version;
+        this.chunkSize = chunkSize;
+        this.seed = seed;
+        this.codecs = Collections.unmodifiableList(codecs);
+        this.commands = commands;
+    }
+
+    /**
+     * @param codecs most preferred first, the first one the server also knows becomes the codec of the connection
+     */
+    public static Handshake offer(int chunkSize, long seed, ChunkCodec... codecs) {
+        if (chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE)
+            throw new FileUtil.InvalidUsageException("Chunk size must be between " + MIN_CHUNK_SIZE + " and " + MAX_CHUNK_SIZE + "!");
+        if (codecs.length == 0)
+            throw new FileUtil.InvalidUsageException("Need at least one codec!");
+        return new Handshake(PROTOCOL_VERSION, chunkSize, seed, Arrays.asList(codecs), ALL_COMMANDS);
+    }
+
+    /**
+     * These server settings, taking only the given commands.
+     */
+    public Handshake taking(FileUtil.COMMAND... commands) {
+        return new Handshake(version, chunkSize, seed, codecs, mask(commands));
+    }
+
+    /**
+     * Reads the client's offer.
+     */
+    public static Handshake read(DataInputStream in) throws IOException {
+        short version = in.readShort();
+        int chunkSize = in.readInt();
+        long seed = in.readLong();
+        int count = in.readUnsignedByte();
+        List<ChunkCodec> codecs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            // a newer peer may know codecs we don't, they just can't be used
+            if (type >= 0 && type < ChunkCodec.values().length)
+                codecs.add(ChunkCodec.of(type));
+        }
+        return new Handshake(version, chunkSize, seed, codecs, ALL_COMMANDS);
+    }
+
+    /**
+     * Reads the server's answer to an offer.
+     */
+    public static Handshake readAnswer(DataInputStream in) throws IOException {
+        Handshake answer = read(in);
+        if (answer.version < COMMANDS_VERSION)
+            return new Handshake(answer.version, answer.chunkSize, answer.seed, answer.codecs, LEGACY_COMMANDS);
+        // bits of commands this build doesn't know are of no use to it
+        return new Handshake(answer.version, answer.chunkSize, answer.seed, answer.codecs, in.readLong() & ALL_COMMANDS);
+    }
+
+    /**
+     * Writes this as an offer. The offer never carries commands, a server older than {@link #COMMANDS_VERSION} would
+     * take them for the next command.
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeShort(version);
+        out.writeInt(chunkSize);
+        out.writeLong(seed);
+        out.writeByte(codecs.size());
+        for (ChunkCodec codec : codecs)
+            out.writeByte(codec.type);
+    }
+
+    /**
+     * Writes this as the server's answer, see {@link #accept(Handshake)}.
+     */
+    public void writeAnswer(DataOutputStream out) throws IOException {
+        write(out);
+        if (version >= COMMANDS_VERSION)
+            out.writeLong(commands);
+    }
+
+    /**
+     * Server side of the negotiation, this being the server's own settings.
+     */
+    public Handshake accept(Handshake offer) {
+        short agreed = (short) Integer.min(version, offer.version);
+        if (agreed < MIN_PROTOCOL_VERSION)
+            return new Handshake((short) 0, 0, 0, Collections.emptyList(), 0);
+        List<ChunkCodec> common = new ArrayList<>();
+        for (ChunkCodec codec : offer.codecs)
+            if (codecs.contains(codec) && !common.contains(codec))
+                common.add(codec);
+        // whatever else was agreed, a chunk that doesn't compress is always sent stored
+        if (!common.contains(ChunkCodec.STORED))
+            common.add(ChunkCodec.STORED);
+        int agreedChunkSize = Integer.max(MIN_CHUNK_SIZE, Integer.min(chunkSize, offer.chunkSize));
+        return new Handshake(agreed, agreedChunkSize, offer.seed, common, commands);
+    }
+
+    public boolean isAccepted() {
+        return version >= MIN_PROTOCOL_VERSION;
+    }
+
+    public short getVersion() {
+        return version;
+    }
+
+    /**
+     * Whether WRITE transfers may fold all zero chunks into zero runs, the peer's reader has to know them.
+     */
+    public boolean supportsZeroRuns() {
+        return version >= ZERO_RUN_VERSION;
+    }
+
+    /**
+     * Whether the server takes command on this connection.
+     */
+    public boolean supports(FileUtil.COMMAND command) {
+        return (commands & 1L << command.type) != 0;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public List<ChunkCodec> getCodecs() {
+        return codecs;
+    }
+
+    public ChunkCodec getCodec() {
+        return codecs.get(0);
+    }
+
+    @Override
+    public String toString() {
+        return "v" + version + " chunk " + chunkSize + " seed " + seed + " codecs " + codecs;
+    }
+
+    private static long mask(FileUtil.COMMAND... commands) {
+        long mask = 0;
+        for (FileUtil.COMMAND command : commands)
+            mask |= 1L << command.type;
+        return mask;
+    }
+
+}
@@ -0,0 +1,174 @@
+package shared;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.metrics.Aggregation;
+import io.opentelemetry.sdk.metrics.InstrumentSelector;
+import io.opentelemetry.sdk.metrics.InstrumentType;
+import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.metrics.View;
+import io.opentelemetry.sdk.metrics.data.AggregationTemporality;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.metrics.export.CollectionRegistration;
+import io.opentelemetry.sdk.metrics.export.MetricReader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Instruments for every stage a chunk goes through, on both ends: a latency histogram and a byte counter per
+ * {@link Stage}, plus whatever gauges the server registers for its connections and queues. They live on a meter provider
+ * of their own, independent of the tracing {@link OTelUtils.Mode}, and are read on demand by {@link MetricsEndpoint}
+ * rather than pushed anywhere.
+ * <p>
+ * Recording is a histogram and a counter update against attributes built once per stage, cheap enough for every chunk,
+ * and nothing at all with -Dmetrics=off, which is the default under -Dtelemetry=off. Gauges and counters cost nothing
+ * until scraped so they stay registered either way.
+ */
+public class Metrics {
+
+    public enum Stage {
+        // client: file to chunk buffer, chunk hash, compression, frame onto the socket
+        READ,
+        HASH,
+        COMPRESS,
+        SOCKET_WRITE,
+        // server: frame off the socket, decompression, hash check, chunk to disk
+        SOCKET_READ,
+        DECOMPRESS,
+        VERIFY,
+        DISK_WRITE;
+
+        private final Attributes attributes = Attributes.of(STAGE, name().toLowerCase());
+    }
+
+    // a static final the JIT treats as a constant, when false recording compiles away at every call site
+    public static final boolean RECORDING = !System.getProperty("metrics", OTelUtils.MODE == OTelUtils.Mode.OFF ? "off" : "on")
+            .equalsIgnoreCase("off");
+
+    private static final AttributeKey<String> STAGE = AttributeKey.stringKey("stage");
+    private static final AttributeKey<String> QUEUE = AttributeKey.stringKey("queue");
+    private static final AttributeKey<String> TRAFFIC_CLASS = AttributeKey.stringKey("class");
+    // by queue, then by class, looked up without building a key so recording a wait allocates nothing
+    private static final Map<String, Map<String, Attributes>> QUEUE_ATTRIBUTES = new ConcurrentHashMap<>();
+
+    // 1 us to 10 s in 1 / 2.5 / 5 steps, a chunk stage rarely leaves the microsecond to millisecond range
+    private static final List<Double> LATENCY_BUCKETS = latencyBuckets();
+
+    private static final PullReader READER = new PullReader();
+    private static final SdkMeterProvider PROVIDER = SdkMeterProvider.builder()
+            .registerView(InstrumentSelector.builder().setType(InstrumentType.HISTOGRAM).build(),
+                    View.builder().setAggregation(Aggregation.explicitBucketHistogram(LATENCY_BUCKETS)).build())
+            .registerMetricReader(READER)
+            .build();
+    private static final Meter METER = PROVIDER.get("transfer");
+
+    private static final DoubleHistogram STAGE_SECONDS = METER.histogramBuilder("transfer_stage_seconds")
+            .setDescription("Time spent on one chunk in each stage").setUnit("s").build();
+    private static final LongCounter STAGE_BYTES = METER.counterBuilder("transfer_stage_bytes")
+            .setDescription("Bytes that went through each stage").setUnit("By").build();
+    private static final DoubleHistogram QUEUE_WAIT_SECONDS = METER.histogramBuilder("scheduler_queue_wait_seconds")
+            .setDescription("Time work waited for its turn, per queue and traffic class").setUnit("s").build();
+    private static final LongCounter QUEUE_BYTES = METER.counterBuilder("scheduler_bytes")
+            .setDescription("Bytes that went through each queue, per traffic class").setUnit("By").build();
+
+    /**
+     * @param bytes what the stage handled, compressed or not depending on which side of the codec it is on
+     */
+    public static void record(Stage stage, long nanos, long bytes) {
+        if (!RECORDING)
+            return;
+        STAGE_SECONDS.record(nanos / 1e9, stage.attributes);
+        STAGE_BYTES.add(bytes, stage.attributes);
+    }
+
+    /**
+     * Work that waited its turn in one of the server's fair queues, see server.FairScheduler. The byte counter divided by
+     * time is the throughput of each class.
+     */
+    public static void recordQueueWait(String queue, String trafficClass, long nanos, long bytes) {
+        if (!RECORDING)
+            return;
+        Map<String, Attributes> classes = QUEUE_ATTRIBUTES.get(queue);
+        if (classes == null)
+            classes = QUEUE_ATTRIBUTES.computeIfAbsent(queue, key -> new ConcurrentHashMap<>());
+        Attributes attributes = classes.get(trafficClass);
+        if (attributes == null)
+            attributes = classes.computeIfAbsent(trafficClass, key -> Attributes.of(QUEUE, queue, TRAFFIC_CLASS, trafficClass));
+        QUEUE_WAIT_SECONDS.record(nanos / 1e9, attributes);
+        QUEUE_BYTES.add(bytes, attributes);
+    }
+
+    /**
+     * A value read whenever the metrics are scraped, like the number of open connections or the depth of a queue.
+     */
+    public static void gauge(String name, String description, LongSupplier value) {
+        METER.gaugeBuilder(name).setDescription(description).ofLongs().buildWithCallback(m -> m.record(value.getAsLong()));
+    }
+
+    /**
+     * A running total read whenever the metrics are scraped, for counts kept elsewhere that only ever go up.
+     */
+    public static void counter(String name, String description, LongSupplier value) {
+        METER.counterBuilder(name).setDescription(description).buildWithCallback(m -> m.record(value.getAsLong()));
+    }
+
+    public static SdkMeterProvider getMeterProvider() {
+        return PROVIDER;
+    }
+
+    static Collection<MetricData> collect() {
+        return READER.collect();
+    }
+
+    private static List<Double> latencyBuckets() {
+        List<Double> buckets = new ArrayList<>();
+        // parsed rather than multiplied so the bounds scrape as 2.5E-6 instead of 2.4999999999999998E-6
+        for (int exponent = -6; exponent < 1; exponent++)
+            for (String mantissa : new String[]{"1", "2.5", "5"})
+                buckets.add(Double.parseDouble(mantissa + "e" + exponent));
+        buckets.add(10d);
+        return buckets;
+    }
+
+    /**
+     * Hands the SDK's aggregated state to whoever asks, cumulative so every scrape sees totals since start up.
+     */
+    private static class PullReader implements MetricReader {
+        private volatile CollectionRegistration registration = CollectionRegistration.noop();
+
+        @Override
+        public void register(CollectionRegistration registration) {
+            this.registration = registration;
+        }
+
+        Collection<MetricData> collect() {
+            return registration.collectAllMetrics();
+        }
+
+        @Override
+        public AggregationTemporality getAggregationTemporality(InstrumentType instrumentType) {
+            return AggregationTemporality.CUMULATIVE;
+        }
+
+        @Override
+        public CompletableResultCode forceFlush() {
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode shutdown() {
+            registration = CollectionRegistration.noop();
+            return CompletableResultCode.ofSuccess();
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package shared;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.sdk.metrics.data.DoublePointData;
+import io.opentelemetry.sdk.metrics.data.HistogramPointData;
+import io.opentelemetry.sdk.metrics.data.LongPointData;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves {@link Metrics} at /metrics in the Prometheus text format, from the JDK's own HTTP server so there's nothing
+ * extra to deploy. Bound to loopback only, a scraper on the same host or a tunnel is expected in front of it.
+ */
+public class MetricsEndpoint {
+
+    public static final int DEFAULT_PORT = 9464;
+
+    private final HttpServer server;
+
+    private MetricsEndpoint(HttpServer server) {
+        this.server = server;
+    }
+
+    public static MetricsEndpoint start(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", MetricsEndpoint::scrape);
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "Metrics Endpoint");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+        System.out.println("Serving metrics on http://localhost:" + port + "/metrics");
+        return new MetricsEndpoint(server);
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private static void scrape(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    static String render() {
+        StringBuilder text = new StringBuilder();
+        for (MetricData metric : Metrics.collect()) {
+            String name = sanitize(metric.getName());
+            switch (metric.getType()) {
+                case HISTOGRAM:
+                    header(text, name, metric.getDescription(), "histogram");
+                    for (HistogramPointData point : metric.getHistogramData().getPoints())
+                        histogram(text, name, point);
+                    break;
+                case LONG_SUM:
+                    header(text, name + "_total", metric.getDescription(), "counter");
+                    for (LongPointData point : metric.getLongSumData().getPoints())
+                        sample(text, name + "_total", point.getAttributes(), null, Long.toString(point.getValue()));
+                    break;
+                case LONG_GAUGE:
+                    header(text, name, metric.getDescription(), "gauge");
+                    for (LongPointData point : metric.getLongGaugeData().getPoints())
+                        sample(text, name, point.getAttributes(), null, Long.toString(point.getValue()));
+                    break;
+                case DOUBLE_GAUGE:
+                    header(text, name, metric.getDescription(), "gauge");
+                    for (DoublePointData point : metric.getDoubleGaugeData().getPoints())
+                        sample(text, name, point.getAttributes(), null, number(point.getValue()));
+                    break;
+                default:
+                    // nothing records any other kind
+                    break;
+            }
+        }
+        return text.toString();
+    }
+
+    private static void histogram(StringBuilder text, String name, HistogramPointData point) {
+        // OTel counts each bucket on its own, Prometheus wants every bucket to include the ones below it
+        List<Double> bounds = point.getBoundaries();
+        List<Long> counts = point.getCounts();
+        long cumulative = 0;
+        for (int i = 0; i < bounds.size(); i++) {
+            cumulative += counts.get(i);
+            sample(text, name + "_bucket", point.getAttributes(), number(bounds.get(i)), Long.toString(cumulative));
+        }
+        sample(text, name + "_bucket", point.getAttributes(), "+Inf", Long.toString(point.getCount()));
+        sample(text, name + "_sum", point.getAttributes(), null, number(point.getSum()));
+        sample(text, name + "_count", point.getAttributes(), null, Long.toString(point.getCount()));
+    }
+
+    private static void header(StringBuilder text, String name, String description, String type) {
+        text.append("# HELP ").append(name).append(' ').append(description.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, Attributes attributes, String le, String value) {
+        text.append(name);
+        if (!attributes.isEmpty() || le != null) {
+            text.append('{');
+            boolean[] first = {true};
+            attributes.forEach((key, v) -> {
+                if (!first[0])
+                    text.append(',');
+                first[0] = false;
+                text.append(sanitize(key.getKey())).append("=\"").append(escape(String.valueOf(v))).append('"');
+            });
+            if (le != null)
+                text.append(first[0] ? "" : ",").append("le=\"").append(le).append('"');
+            text.append('}');
+        }
+        text.append(' ').append(value).append('\n');
+    }
+
+    private static String number(double value) {
+        if (Double.isInfinite(value))
+            return value > 0 ? "+Inf" : "-Inf";
+        return Double.toString(value);
+    }
+
+    private static String sanitize(String name) {
+        return name.replaceAll("[^a-zA-Z0-9_:]", "_");
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+}
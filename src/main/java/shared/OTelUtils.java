@@ -1,6 +1,9 @@
 package shared;
 
+import io.opentelemetry.api.GlobalOpenTelemetry;
 import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
 import io.opentelemetry.api.baggage.propagation.W3CBaggagePropagator;
 import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
 import io.opentelemetry.context.propagation.ContextPropagators;
@@ -19,10 +22,53 @@ import io.opentelemetry.sdk.trace.SdkTracerProvider;
 import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
 import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
 import io.opentelemetry.sdk.trace.export.SpanExporter;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
 import io.opentelemetry.semconv.ResourceAttributes;
 
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 public class OTelUtils {
 
+    /**
+     * How much telemetry a process produces, picked with -Dtelemetry=full|sampled|off.
+     */
+    public enum Mode {
+        // every trace, with an event per chunk on the chunk spans
+        FULL,
+        // SAMPLE_RATIO of the traces (-Dtelemetry.ratio), the per file spans carry the totals and there are no chunk
+        // spans or events
+        SAMPLED,
+        // no SDK at all, every span is a no-op
+        OFF
+    }
+
+    public static final Mode MODE = mode(System.getProperty("telemetry", "full"));
+    public static final double SAMPLE_RATIO = Double.parseDouble(System.getProperty("telemetry.ratio", "0.01"));
+    // a static final the JIT treats as a constant, when false the per chunk telemetry compiles away entirely
+    public static final boolean CHUNK_EVENTS = MODE == Mode.FULL;
+
+    /**
+     * A typo in -Dtelemetry shouldn't keep the process from starting, it gets the default instead.
+     */
+    private static Mode mode(String value) {
+        try {
+            return Mode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown telemetry mode " + value + ", expected full, sampled or off. Using full");
+            return Mode.FULL;
+        }
+    }
+
+    private static final Map<String, SexyContainer> CONTAINERS = new HashMap<>();
+
+    private static final AttributeKey<Long> CHUNK_UNCOMPRESSED = AttributeKey.longKey("chunk.uncompressed");
+    private static final AttributeKey<Long> CHUNK_COMPRESSED = AttributeKey.longKey("chunk.compressed");
+    private static final AttributeKey<String> CHUNK_CODEC = AttributeKey.stringKey("chunk.codec");
+    private static final AttributeKey<Long> CHUNK_HASH = AttributeKey.longKey("chunk.hash");
+
     public static class SexyContainer {
         public OpenTelemetry ot;
         public SdkTracerProvider tp;
@@ -34,6 +80,30 @@ public class OTelUtils {
             this.bp = bp;
             this.ox = ox;
         }
+
+        /**
+         * Starts exporting whatever is queued without waiting for it.
+         */
+        public void flush() {
+            if (tp != null)
+                tp.forceFlush();
+        }
+
+        /**
+         * Exports what is left, waiting at most a few seconds, and stops the exporter.
+         */
+        public void shutdown() {
+            if (tp != null)
+                tp.shutdown().join(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * The one event a chunk gets in {@link Mode#FULL}, typed attributes rather than strings built per chunk.
+     */
+    public static Attributes chunkAttributes(int uncompressed, int compressed, ChunkCodec codec, long hash) {
+        return Attributes.of(CHUNK_UNCOMPRESSED, (long) uncompressed, CHUNK_COMPRESSED, (long) compressed,
+                CHUNK_CODEC, codec.name(), CHUNK_HASH, hash);
     }
 
     public static OpenTelemetry createLogger(){
@@ -52,7 +122,17 @@ public class OTelUtils {
                 .buildAndRegisterGlobal();
     }
 
-    public static SexyContainer create(String name){
+    /**
+     * One SDK per service name and process, every Client in a process shares the same exporter and batch thread rather
+     * than each starting its own. Only the first one becomes the global instance, setting it twice throws.
+     */
+    public static synchronized SexyContainer create(String name){
+        return CONTAINERS.computeIfAbsent(name, OTelUtils::build);
+    }
+
+    private static SexyContainer build(String name){
+        if (MODE == Mode.OFF)
+            return new SexyContainer(OpenTelemetry.noop(), null, null, null);
         Resource resource = Resource.getDefault().toBuilder().put(ResourceAttributes.SERVICE_NAME.getKey(), name).put(ResourceAttributes.SERVICE_VERSION.getKey(), "1.3.37").build();
 
         SpanExporter otlpExporter = OtlpGrpcSpanExporter.builder()
@@ -65,17 +145,23 @@ public class OTelUtils {
                 .setMaxExportBatchSize(512)
                 .build();
 
+        // head sampling, the decision is made once per trace so a file's spans are kept or dropped together
         SdkTracerProvider sdkTracerProvider = SdkTracerProvider.builder()
                 .addSpanProcessor(batchSpanProcessor)
+                .setSampler(MODE == Mode.SAMPLED ? Sampler.parentBased(Sampler.traceIdRatioBased(SAMPLE_RATIO)) : Sampler.alwaysOn())
                 .setResource(resource)
                 .build();
 
-        return new SexyContainer(OpenTelemetrySdk.builder()
+        // metrics go to the pull endpoint, see MetricsEndpoint, rather than being logged
+        OpenTelemetrySdk sdk = OpenTelemetrySdk.builder()
                 .setTracerProvider(sdkTracerProvider)
-                .setMeterProvider(createLoggingMeter(resource))
+                .setMeterProvider(Metrics.getMeterProvider())
                 .setLoggerProvider(createLoggerProvider(resource))
                 .setPropagators(ContextPropagators.create(TextMapPropagator.composite(W3CTraceContextPropagator.getInstance(), W3CBaggagePropagator.getInstance())))
-                .buildAndRegisterGlobal(), sdkTracerProvider, batchSpanProcessor, otlpExporter);
+                .build();
+        if (CONTAINERS.isEmpty())
+            GlobalOpenTelemetry.set(sdk);
+        return new SexyContainer(sdk, sdkTracerProvider, batchSpanProcessor, otlpExporter);
     }
 
     private static SdkMeterProvider createLoggingMeter(Resource resource){
@@ -0,0 +1,45 @@
+package shared;
+
+/**
+ * rsync's weak checksum. Two 16 bit sums over a fixed size window: a is the plain byte sum and b weights every byte by
+ * its distance from the end of the window. Sliding the window one byte is O(1), which is what makes searching every
+ * offset of a file for known blocks affordable; matches still have to be confirmed with the xxHash64 of the block.
+ */
+public class RollingChecksum {
+
+    private final int windowSize;
+    private int a;
+    private int b;
+
+    public RollingChecksum(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    public int reset(byte[] data, int offset) {
+        a = 0;
+        b = 0;
+        for (int i = 0; i < windowSize; i++) {
+            int x = data[offset + i] & 0xFF;
+            a += x;
+            b += (windowSize - i) * x;
+        }
+        a &= 0xFFFF;
+        b &= 0xFFFF;
+        return getValue();
+    }
+
+    /**
+     * Moves the window forward by one byte, dropping out and taking in.
+     */
+    public int roll(byte out, byte in) {
+        int o = out & 0xFF;
+        a = (a - o + (in & 0xFF)) & 0xFFFF;
+        b = (b - windowSize * o + a) & 0xFFFF;
+        return getValue();
+    }
+
+    public int getValue() {
+        return a | (b << 16);
+    }
+
+}
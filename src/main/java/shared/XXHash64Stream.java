@@ -0,0 +1,125 @@
+package shared;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming XXH64 that, unlike {@link net.jpountz.xxhash.StreamingXXHash64}, also takes {@link ByteBuffer}s without a
+ * backing array, so memory mapped files can be hashed where they lie. Produces exactly the same values as the lz4-java
+ * implementation for the same seed and input.
+ */
+public class XXHash64Stream {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+    private static final int STRIPE = 32;
+
+    private final long seed;
+    private long v1, v2, v3, v4;
+    private long totalLength;
+    // the tail of the input that didn't fill a stripe yet
+    private final ByteBuffer memory = ByteBuffer.allocate(STRIPE).order(ByteOrder.LITTLE_ENDIAN);
+
+    public XXHash64Stream(long seed) {
+        this.seed = seed;
+        reset();
+    }
+
+    public void reset() {
+        v1 = seed + PRIME1 + PRIME2;
+        v2 = seed + PRIME2;
+        v3 = seed;
+        v4 = seed - PRIME1;
+        totalLength = 0;
+        memory.clear();
+    }
+
+    public void update(byte[] data, int offset, int length) {
+        update(ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN), offset, length);
+    }
+
+    /**
+     * Hashes data[offset, offset + length) without moving its position. Little endian buffers are read as they are,
+     * anything else is viewed through a little endian duplicate first.
+     */
+    public void update(ByteBuffer data, int offset, int length) {
+        if (data.order() != ByteOrder.LITTLE_ENDIAN)
+            data = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        totalLength += length;
+        int end = offset + length;
+
+        if (memory.position() > 0) {
+            while (memory.hasRemaining() && offset < end)
+                memory.put(data.get(offset++));
+            if (memory.hasRemaining())
+                return;
+            v1 = round(v1, memory.getLong(0));
+            v2 = round(v2, memory.getLong(8));
+            v3 = round(v3, memory.getLong(16));
+            v4 = round(v4, memory.getLong(24));
+            memory.clear();
+        }
+
+        for (; offset + STRIPE <= end; offset += STRIPE) {
+            v1 = round(v1, data.getLong(offset));
+            v2 = round(v2, data.getLong(offset + 8));
+            v3 = round(v3, data.getLong(offset + 16));
+            v4 = round(v4, data.getLong(offset + 24));
+        }
+
+        while (offset < end)
+            memory.put(data.get(offset++));
+    }
+
+    public long getValue() {
+        long h;
+        if (totalLength >= STRIPE) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = seed + PRIME5;
+        }
+        h += totalLength;
+
+        int offset = 0;
+        int remaining = memory.position();
+        for (; offset + 8 <= remaining; offset += 8) {
+            h ^= round(0, memory.getLong(offset));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+        }
+        if (offset + 4 <= remaining) {
+            h ^= (memory.getInt(offset) & 0xFFFFFFFFL) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+            offset += 4;
+        }
+        for (; offset < remaining; offset++) {
+            h ^= (memory.get(offset) & 0xFF) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long mergeRound(long acc, long value) {
+        acc ^= round(0, value);
+        return acc * PRIME1 + PRIME4;
+    }
+
+}
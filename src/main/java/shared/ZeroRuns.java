@@ -0,0 +1,82 @@
+package shared;
+
+import net.jpountz.xxhash.StreamingXXHash64;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Chunks that are nothing but zeros, the holes of sparse files and the padding of disk images and databases, don't go
+ * out as a frame with a payload. A writer folds a row of them into one zero run frame, just the negated length of the
+ * run, and the reader skips that far ahead in the file instead of writing it, so the copy stays sparse. Both ends still
+ * feed the zeros to the stream hash, it is the same as if the chunks had been sent.
+ * <p>
+ * The JDK can't ask the file system where its holes are, so the writer finds them by looking at the data. The checks
+ * here are {@link Arrays#mismatch} and {@link ByteBuffer#mismatch} against a block of zeros, both compare a word or a
+ * vector at a time and give up at the first byte that isn't zero, which for most chunks is the first one.
+ */
+public class ZeroRuns {
+
+    // the longest run one frame can carry, a longer one goes out as several
+    public static final int MAX_RUN = Integer.MAX_VALUE;
+
+    private static final byte[] ZEROS = new byte[64 * 1024];
+    private static final ByteBuffer ZERO_BUFFER = ByteBuffer.wrap(ZEROS).asReadOnlyBuffer();
+
+    public static boolean isZero(byte[] data, int offset, int length) {
+        int end = offset + length;
+        for (; offset < end; offset += ZEROS.length) {
+            int step = Integer.min(ZEROS.length, end - offset);
+            if (Arrays.mismatch(data, offset, offset + step, ZEROS, 0, step) >= 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Same as the array version for buffers that may not have one, like a memory mapped window. Doesn't move data's
+     * position.
+     */
+    public static boolean isZero(ByteBuffer data, int offset, int length) {
+        int end = offset + length;
+        for (; offset < end; offset += ZEROS.length) {
+            int step = Integer.min(ZEROS.length, end - offset);
+            ByteBuffer slice = data.duplicate().limit(offset + step).position(offset);
+            if (slice.mismatch(ZERO_BUFFER.duplicate().limit(step)) >= 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Feeds length zeros to hash, for the side that never had them in a buffer.
+     */
+    public static void hash(StreamingXXHash64 hash, long length) {
+        while (length > 0) {
+            int step = (int) Long.min(ZEROS.length, length);
+            hash.update(ZEROS, 0, step);
+            length -= step;
+        }
+    }
+
+    /**
+     * Writes length zeros out for the readers that can't leave a hole, like one decoding into memory.
+     */
+    public static void write(OutputStream out, long length) throws IOException {
+        while (length > 0) {
+            int step = (int) Long.min(ZEROS.length, length);
+            out.write(ZEROS, 0, step);
+            length -= step;
+        }
+    }
+
+    /**
+     * A block of zeros to write from, never to be written to.
+     */
+    public static ByteBuffer buffer(int length) {
+        return ZERO_BUFFER.duplicate().limit(Integer.min(length, ZEROS.length));
+    }
+
+}
@@ -0,0 +1,180 @@
+package client;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import server.Server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A file whose connection breaks part way is sent again on a fresh connection to the same thread per connection
+ * {@link Server}, which has to keep accepting after the broken one is gone.
+ */
+public class AsyncClientTest {
+
+    private static final int FILE_BYTES = 4 * 1024 * 1024;
+    // well short of the file, and of what the socket buffers could hide
+    private static final int CUT_AFTER_BYTES = 64 * 1024;
+    private static final Path WRITE_ROOT = Paths.get(System.getProperty("user.dir"), "write");
+
+    private Path directory;
+    private Path file;
+    private Path received;
+
+    @Test
+    public void retriesOnAFreshConnectionAfterTheFirstBreaks() throws Exception {
+        int serverPort = freePort();
+        Thread server = new Thread(() -> new Server(serverPort), "Test Server");
+        server.setDaemon(true);
+        server.start();
+        awaitListening(serverPort);
+
+        directory = Files.createTempDirectory("async-client-test");
+        file = directory.resolve("file.bin");
+        byte[] data = new byte[FILE_BYTES];
+        new Random(42).nextBytes(data);
+        Files.write(file, data);
+        received = Paths.get(WRITE_ROOT.toString(), file.toString().replace(System.getProperty("user.dir"), ""));
+
+        try (CuttingProxy proxy = new CuttingProxy(serverPort)) {
+            TransferStats stats;
+            try (AsyncClient client = new AsyncClient("localhost", proxy.getPort(), 1, 1).setMaxRetries(2)) {
+                stats = client.sendFile(file.toString()).get(60, TimeUnit.SECONDS);
+                // the future completes on the server's answer, so the file is already in place
+                assertTrue(Files.exists(received), "Server should have the file once the send completed");
+            }
+            assertEquals(2, stats.getAttempts(), "The first attempt should have broken and the second gone through");
+            assertEquals(2, proxy.getConnections(), "The retry should have opened a new connection");
+            assertArrayEquals(data, Files.readAllBytes(received), "Server should have the whole file from the retry");
+        }
+    }
+
+    /**
+     * Removes the sent file and what the server wrote for it, along with the directories under write that only
+     * existed for it.
+     */
+    @AfterEach
+    public void removeFiles() throws IOException {
+        if (received != null) {
+            Files.deleteIfExists(received);
+            for (Path parent = received.getParent(); parent != null && parent.startsWith(WRITE_ROOT); parent = parent.getParent())
+                if (!deleteIfEmpty(parent))
+                    break;
+        }
+        if (file != null)
+            Files.deleteIfExists(file);
+        if (directory != null)
+            Files.deleteIfExists(directory);
+    }
+
+    private static boolean deleteIfEmpty(Path directory) throws IOException {
+        try (Stream<Path> entries = Files.list(directory)) {
+            if (entries.findAny().isPresent())
+                return false;
+        }
+        return Files.deleteIfExists(directory);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try (Socket ignored = new Socket("localhost", port)) {
+                // a connection that closes straight away is just a client that disconnected
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new AssertionError("Server never started listening on " + port);
+    }
+
+    /**
+     * Forwards connections to the server, except that the first one is cut after {@link #CUT_AFTER_BYTES} from the
+     * client.
+     */
+    private static class CuttingProxy implements AutoCloseable {
+        private final ServerSocket listener = new ServerSocket(0);
+        private final int serverPort;
+        private final AtomicInteger connections = new AtomicInteger();
+
+        private CuttingProxy(int serverPort) throws IOException {
+            this.serverPort = serverPort;
+            Thread accept = new Thread(this::accept, "Proxy Accept");
+            accept.setDaemon(true);
+            accept.start();
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket client = listener.accept();
+                    Socket server = new Socket("localhost", serverPort);
+                    long limit = connections.incrementAndGet() == 1 ? CUT_AFTER_BYTES : Long.MAX_VALUE;
+                    pump(client, server, limit);
+                    pump(server, client, Long.MAX_VALUE);
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        private static void pump(Socket from, Socket to, long limit) {
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                long forwarded = 0;
+                try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+                    for (int read; forwarded < limit && (read = in.read(buffer)) >= 0; forwarded += read)
+                        out.write(buffer, 0, (int) Math.min(read, limit - forwarded));
+                } catch (IOException e) {
+                    // the other direction closed the sockets
+                } finally {
+                    close(from);
+                    close(to);
+                }
+            }, "Proxy Pump");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private static void close(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        int getPort() {
+            return listener.getLocalPort();
+        }
+
+        int getConnections() {
+            return connections.get();
+        }
+
+        @Override
+        public void close() throws IOException {
+            listener.close();
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+package server;
+
+import io.opentelemetry.context.Scope;
+import org.junit.jupiter.api.Test;
+
+import java.util.PriorityQueue;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Small files go ahead of bulk work, but only by a bounded head start, see {@link FairScheduler}.
+ */
+public class FairSchedulerTest {
+
+    private static final int CHUNK = 64 * 1024;
+
+    @Test
+    public void aSteadyStreamOfSmallWorkDoesNotStarveBulkWork() {
+        FairScheduler.FairQueue queue = new FairScheduler.FairQueue("test");
+        FairScheduler.Flow bulk = FairScheduler.open("bulk.test");
+        FairScheduler.Flow small = FairScheduler.open("small.test");
+        try {
+            bulk.onRead(FairScheduler.SMALL_FILE_BYTES);
+            PriorityQueue<FairScheduler.Ticket> waiting = new PriorityQueue<>();
+            FairScheduler.Ticket bulkTicket;
+            try (Scope ignored = bulk.makeCurrent()) {
+                bulkTicket = queue.ticket(CHUNK);
+            }
+            waiting.add(bulkTicket);
+
+            // every time a small chunk is taken another small file has started
+            int taken = 0;
+            while (true) {
+                try (Scope ignored = small.makeCurrent()) {
+                    small.startFile();
+                    waiting.add(queue.ticket(CHUNK));
+                }
+                FairScheduler.Ticket next = waiting.poll();
+                next.start();
+                if (next == bulkTicket)
+                    break;
+                taken++;
+                assertTrue(taken < 10_000, "Bulk work was starved by " + taken + " small chunks");
+            }
+            assertTrue(taken > 0, "Small work should have gone first");
+            assertTrue(taken <= FairScheduler.SMALL_HEAD_START / CHUNK + 1,
+                    "Bulk work waited for " + taken + " small chunks, more than the head start");
+        } finally {
+            bulk.close();
+            small.close();
+        }
+    }
+
+}
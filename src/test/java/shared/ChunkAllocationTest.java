@@ -0,0 +1,132 @@
+package shared;
+
+import client.ChunkedCompressedChecksumFileWriter;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.Tracer;
+import org.junit.jupiter.api.Test;
+import server.ChunkedCompressedChecksumFileReader;
+import server.PipelinedChunkedCompressedChecksumFileReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The writer and the readers must not allocate per chunk once their buffers are pooled and the JIT has settled, see
+ * {@link BufferPool}. Chunks go through in-memory streams sized up front so the streams don't allocate either.
+ */
+public class ChunkAllocationTest {
+
+    private static final int CHUNK_SIZE = FileUtil.DEFAULT_CHUNK_SIZE;
+    private static final int WARM_UP_CHUNKS = 500;
+    private static final int MEASURED_CHUNKS = 500;
+    // room for the odd allocation the JVM makes on its own, even one small object per chunk would go over it
+    private static final long ALLOWED_BYTES = 4 * 1024;
+    // what the writers here agree to, the readers refuse anything else
+    private static final Handshake SESSION = Handshake.offer(CHUNK_SIZE, 0, ChunkCodec.values());
+
+    private static final Tracer TRACER = OpenTelemetry.noop().getTracer("test");
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    public void writerAllocatesNothingPerChunk() throws IOException {
+        byte[] file = file(WARM_UP_CHUNKS + MEASURED_CHUNKS);
+        ByteArrayOutputStream network = new ByteArrayOutputStream(file.length + file.length / 8);
+        ChunkedCompressedChecksumFileWriter writer = new ChunkedCompressedChecksumFileWriter(new DataOutputStream(network),
+                new DataInputStream(new ByteArrayInputStream(file)), CHUNK_SIZE, 0);
+
+        for (int i = 0; i < WARM_UP_CHUNKS; i++)
+            writer.processChunk(TRACER);
+        long before = allocatedBytes();
+        for (int i = 0; i < MEASURED_CHUNKS; i++)
+            writer.processChunk(TRACER);
+        long allocated = allocatedBytes() - before;
+
+        assertEquals((long) file.length, writer.getUncompressedBytes(), "Every chunk should have been written");
+        assertTrue(allocated < ALLOWED_BYTES, "Writer allocated " + allocated + " bytes over " + MEASURED_CHUNKS + " chunks");
+    }
+
+    @Test
+    public void readerAllocatesNothingPerChunk() throws IOException {
+        byte[] file = file(WARM_UP_CHUNKS + MEASURED_CHUNKS);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frames(file)));
+        ChunkedCompressedChecksumFileReader reader = new ChunkedCompressedChecksumFileReader(in, OutputStream.nullOutputStream(), SESSION);
+        for (int i = 0; i < WARM_UP_CHUNKS; i++)
+            reader.readChunk(TRACER);
+        long before = allocatedBytes();
+        for (int i = 0; i < MEASURED_CHUNKS; i++)
+            reader.readChunk(TRACER);
+        long allocated = allocatedBytes() - before;
+
+        assertEquals(0L, (long) reader.readChunk(TRACER).getUncompressed(), "Stream should end after the last chunk");
+        reader.close();
+        assertEquals((long) file.length, reader.getUncompressedBytes(), "Every chunk should have been read");
+        assertTrue(allocated < ALLOWED_BYTES, "Reader allocated " + allocated + " bytes over " + MEASURED_CHUNKS + " chunks");
+    }
+
+    /**
+     * The pipelined reader decodes on other threads, the connection thread reading the frames must stay as flat as the
+     * serial reader no matter how many chunks a file has.
+     */
+    @Test
+    public void pipelinedReaderAllocatesNothingPerChunkOnTheConnectionThread() throws IOException {
+        byte[] file = file(MEASURED_CHUNKS);
+        byte[] frames = frames(file);
+        for (int i = 0; i < WARM_UP_CHUNKS / MEASURED_CHUNKS + 1; i++)
+            readPipelined(frames);
+
+        long before = allocatedBytes();
+        ChunkedCompressedChecksumFileReader reader = readPipelined(frames);
+        long allocated = allocatedBytes() - before;
+
+        assertEquals((long) file.length, reader.getUncompressedBytes(), "Every chunk should have been read");
+        assertTrue(allocated < ALLOWED_BYTES, "Pipelined reader allocated " + allocated + " bytes over " + MEASURED_CHUNKS + " chunks");
+    }
+
+    private static ChunkedCompressedChecksumFileReader readPipelined(byte[] frames) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frames));
+        ChunkedCompressedChecksumFileReader reader = new ChunkedCompressedChecksumFileReader(in, OutputStream.nullOutputStream(), SESSION);
+        new PipelinedChunkedCompressedChecksumFileReader(in, reader, 0).readAll(TRACER);
+        reader.close();
+        return reader;
+    }
+
+    private static byte[] frames(byte[] file) throws IOException {
+        ByteArrayOutputStream network = new ByteArrayOutputStream(file.length + file.length / 8);
+        ChunkedCompressedChecksumFileWriter writer = new ChunkedCompressedChecksumFileWriter(new DataOutputStream(network),
+                new DataInputStream(new ByteArrayInputStream(file)), CHUNK_SIZE, 0);
+        for (int i = 0; i < file.length / CHUNK_SIZE; i++)
+            writer.processChunk(TRACER);
+        writer.close();
+        return network.toByteArray();
+    }
+
+    // half random, half runs of one byte, so the chunks really go through the compressor
+    private static byte[] file(int chunks) {
+        byte[] file = new byte[chunks * CHUNK_SIZE];
+        Random random = new Random(42);
+        for (int offset = 0; offset < file.length; offset += 256) {
+            if (random.nextBoolean())
+                for (int i = offset; i < offset + 256; i++)
+                    file[i] = (byte) random.nextInt();
+            else
+                Arrays.fill(file, offset, offset + 256, (byte) random.nextInt());
+        }
+        return file;
+    }
+
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+}
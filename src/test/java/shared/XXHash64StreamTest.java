@@ -0,0 +1,100 @@
+package shared;
+
+import net.jpountz.xxhash.StreamingXXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * {@link XXHash64Stream} has to agree with lz4-java's {@link StreamingXXHash64} bit for bit, the server checks the
+ * stream hash of a mapped send with the latter. Inputs are fed in random pieces so the carry of a partial stripe from
+ * one update to the next gets exercised, and from direct buffers of both byte orders as a mapped window would be.
+ */
+public class XXHash64StreamTest {
+
+    private static final XXHashFactory FACTORY = XXHashFactory.fastestJavaInstance();
+    private static final int ROUNDS = 200;
+    // long enough for many stripes, short enough that lengths around one stripe come up often
+    private static final int MAX_LENGTH = 4096;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void matchesStreamingXXHash64OverRandomSplits() {
+        for (int round = 0; round < ROUNDS; round++) {
+            long seed = random.nextLong();
+            byte[] data = data(random.nextInt(MAX_LENGTH + 1));
+            StreamingXXHash64 expected = FACTORY.newStreamingHash64(seed);
+            XXHash64Stream actual = new XXHash64Stream(seed);
+            for (int[] piece : pieces(data.length)) {
+                expected.update(data, piece[0], piece[1]);
+                actual.update(data, piece[0], piece[1]);
+            }
+            assertEquals(expected.getValue(), actual.getValue(), "Length " + data.length + " seed " + seed);
+        }
+    }
+
+    @Test
+    public void matchesStreamingXXHash64OverDirectBuffers() {
+        for (int round = 0; round < ROUNDS; round++) {
+            long seed = random.nextLong();
+            byte[] data = data(random.nextInt(MAX_LENGTH + 1));
+            // the hashed range starts somewhere inside the buffer, like a chunk inside a window
+            int start = random.nextInt(64);
+            ByteBuffer direct = ByteBuffer.allocateDirect(start + data.length)
+                    .order(random.nextBoolean() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            direct.position(start);
+            direct.put(data);
+            direct.clear();
+
+            StreamingXXHash64 expected = FACTORY.newStreamingHash64(seed);
+            XXHash64Stream actual = new XXHash64Stream(seed);
+            for (int[] piece : pieces(data.length)) {
+                expected.update(data, piece[0], piece[1]);
+                actual.update(direct, start + piece[0], piece[1]);
+            }
+            assertEquals(expected.getValue(), actual.getValue(), "Length " + data.length + " seed " + seed + " " + direct.order());
+            assertEquals(0L, direct.position(), "Hashing must not move the buffer");
+        }
+    }
+
+    @Test
+    public void resetStartsOver() {
+        byte[] data = data(1000);
+        XXHash64Stream stream = new XXHash64Stream(FileUtil.SEED);
+        stream.update(data, 0, 333);
+        stream.reset();
+        stream.update(data, 0, data.length);
+        StreamingXXHash64 expected = FACTORY.newStreamingHash64(FileUtil.SEED);
+        expected.update(data, 0, data.length);
+        assertEquals(expected.getValue(), stream.getValue());
+    }
+
+    private byte[] data(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Offset and length pairs that cover length bytes in order, from empty pieces up to a few stripes at once.
+     */
+    private List<int[]> pieces(int length) {
+        List<int[]> pieces = new ArrayList<>();
+        int offset = 0;
+        while (offset < length) {
+            int piece = Integer.min(length - offset, random.nextInt(100));
+            pieces.add(new int[]{offset, piece});
+            offset += piece;
+        }
+        return pieces;
+    }
+
+}